@@ -6,10 +6,10 @@ import java.util.*;
 
 import com.particlehealth.tools.models.*;
 import com.particlehealth.tools.process.DocumentGenerator;
-import org.apache.commons.text.StringEscapeUtils;
-import org.eclipse.emf.common.util.Diagnostic;
+import com.particlehealth.tools.validation.ValidationReport;
+import com.particlehealth.tools.validation.ValidationService;
+import com.particlehealth.tools.validation.ValidationTier;
 import org.eclipse.mdht.uml.cda.util.CDAUtil;
-import org.eclipse.mdht.uml.cda.util.ValidationResult;
 import org.openhealthtools.mdht.uml.cda.consol.*;
 
 
@@ -20,33 +20,25 @@ public class Sample {
         DocumentGenerator documentGenerator = new DocumentGenerator();
         ContinuityOfCareDocument2 doc = documentGenerator.createCCD(createOrganization(), createPatientData());
 
-        ValidationResult result = new ValidationResult();
-      //  CDAUtil.validate(doc, result);
-
         System.out.println("\n***** Sample validation results *****");
-        for (Diagnostic diagnostic : result.getErrorDiagnostics()) {
-            System.out.println("ERROR: " + diagnostic.getMessage());
-        }
-
-        System.out.println(
-                "Number of Schema Validation Diagnostics: " + result.getSchemaValidationDiagnostics().size());
-        System.out.println("Number of EMF Resource Diagnostics: " + result.getEMFResourceDiagnostics().size());
-        System.out.println("Number of EMF Validation Diagnostics: " + result.getEMFValidationDiagnostics().size());
-        System.out.println("Number of Total Diagnostics: " + result.getAllDiagnostics().size());
-
-        if (!result.hasErrors()) {
-            System.out.println("Document is valid");
-        } else {
-            System.out.println("Document is invalid");
+        try (ValidationService validationService = new ValidationService(ValidationTier.FULL)) {
+            ValidationReport report = validationService.validate("sample", doc);
+            for (String error : report.getErrors()) {
+                System.out.println("ERROR: " + error);
+            }
+            if (report.getFailure() != null)
+                report.getFailure().printStackTrace();
+            System.out.println(validationService.getSummary());
+
+            if (report.isValid()) {
+                System.out.println("Document is valid");
+            } else {
+                System.out.println("Document is invalid");
+            }
         }
 
-        try {
-            FileWriter myWriter = new FileWriter("exampleDoc.xml");
-            ByteArrayOutputStream outStream = new ByteArrayOutputStream();
-            CDAUtil.save(doc, outStream);
-            String unescapedCCD = StringEscapeUtils.unescapeXml(new String(outStream.toByteArray()));
-            myWriter.write(unescapedCCD);
-            myWriter.close();
+        try (OutputStream out = new FileOutputStream("exampleDoc.xml")) {
+            CDAUtil.save(doc, out);
         } catch (FileNotFoundException e) {
             e.printStackTrace();
         } catch (Exception e) {
@@ -0,0 +1,89 @@
+package com.particlehealth.tools.Sample;
+
+import com.particlehealth.tools.models.*;
+import com.particlehealth.tools.process.DocumentGenerator;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.time.OffsetDateTime;
+import java.util.Arrays;
+
+/*
+    Measures how long a fresh JVM takes to produce its first document.
+    Usage: TimeToFirstDocument [--warm-up]. With --warm-up, DocumentGenerator.warmUp() runs first and is timed separately.
+    This is also the training run for the class-data-sharing archive built by the cds profile.
+ */
+public class TimeToFirstDocument {
+
+    public static void main(String[] args) throws Exception {
+        boolean warmUp = Arrays.asList(args).contains("--warm-up");
+        long jvmStartMillis = ManagementFactory.getRuntimeMXBean().getStartTime();
+        long mainMillis = System.currentTimeMillis() - jvmStartMillis;
+
+        long warmUpNanos = 0;
+        if (warmUp) {
+            long start = System.nanoTime();
+            DocumentGenerator.warmUp();
+            warmUpNanos = System.nanoTime() - start;
+        }
+
+        long start = System.nanoTime();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new DocumentGenerator().generateDocument(createOrganization(), createPatientData(), out);
+        long firstDocumentNanos = System.nanoTime() - start;
+        long totalMillis = System.currentTimeMillis() - jvmStartMillis;
+
+        System.out.println("JVM start to main: " + mainMillis + "ms");
+        if (warmUp)
+            System.out.println("warmUp: " + warmUpNanos / 1_000_000 + "ms");
+        System.out.println("First document (" + out.size() + " bytes): " + firstDocumentNanos / 1_000_000 + "ms");
+        System.out.println("JVM start to first document: " + totalMillis + "ms");
+    }
+
+    private static OrganizationData createOrganization() {
+        OrganizationData organizationData = new OrganizationData();
+        organizationData.setEmail("fakeTesting@testing.fake");
+        organizationData.setName("myFakeCompany");
+        organizationData.setProviderTaxonomyCode("FakeCodeFromValueset");
+        organizationData.setTelephone("1-234-567-8910");
+        organizationData.setAddress(createAddress("Long Island", "WA", "12345"));
+        return organizationData;
+    }
+
+    private static PatientData createPatientData() {
+        Performer performer = new Performer();
+        performer.setFamilyName("Medico");
+        performer.setGivenName("Helga");
+        performer.setNpi("1234567");
+        performer.setProviderTaxonomyCode("101YP2500X");
+        performer.setAddress(createAddress("Wilmington", "AZ", "09675"));
+
+        PatientEncounter encounter = new PatientEncounter();
+        encounter.setId("d5f1a2c4-5be4-4a49-9a0f-1f2a5c1b7e10");
+        encounter.setEffectiveTime(OffsetDateTime.parse("2021-06-01T10:15:30Z"));
+        encounter.setEncounterTypeCode("99204");
+        encounter.setStage("new");
+        encounter.setPerformer(performer);
+
+        PatientData pd = new PatientData();
+        pd.setPatientId("TimeToFirstDocument");
+        pd.setGivenName("Federico");
+        pd.setFamilyName("Aufderhar");
+        pd.setDateOfBirth("19531029");
+        pd.setGender("M");
+        pd.setEmail("testpatient1@test.com");
+        pd.setTelephone("1 234-567-8910");
+        pd.setAddress(createAddress("Boston", "CA", "16545"));
+        pd.setEncounters(Arrays.asList(encounter));
+        return pd;
+    }
+
+    private static Address createAddress(String city, String state, String postalCode) {
+        Address address = new Address();
+        address.setAddressCity(city);
+        address.setAddressState(state);
+        address.setPostalCode(postalCode);
+        address.setAddressLines(Arrays.asList("123 Main St"));
+        return address;
+    }
+}
@@ -0,0 +1,33 @@
+package com.particlehealth.tools.archive;
+
+import lombok.Getter;
+
+/*
+    Position of one document in an archive: a complete gzip member of compressedLength bytes starting at offset
+ */
+@Getter
+public class ArchiveEntry {
+
+    final String patientId;
+    final long offset;
+    final int compressedLength;
+    final int uncompressedLength;
+
+    ArchiveEntry(String patientId, long offset, int compressedLength, int uncompressedLength) {
+        this.patientId = patientId;
+        this.offset = offset;
+        this.compressedLength = compressedLength;
+        this.uncompressedLength = uncompressedLength;
+    }
+
+    String toIndexLine() {
+        return patientId + '\t' + offset + '\t' + compressedLength + '\t' + uncompressedLength;
+    }
+
+    static ArchiveEntry fromIndexLine(String line) {
+        String[] fields = line.split("\t");
+        if (fields.length != 4)
+            throw new IllegalArgumentException("Malformed index line: " + line);
+        return new ArchiveEntry(fields[0], Long.parseLong(fields[1]), Integer.parseInt(fields[2]), Integer.parseInt(fields[3]));
+    }
+}
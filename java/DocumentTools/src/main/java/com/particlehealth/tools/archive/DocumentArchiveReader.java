@@ -0,0 +1,91 @@
+package com.particlehealth.tools.archive;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+/*
+    Random access to the documents of an archive written by DocumentArchiveWriter.
+    Only the requested document is read and decompressed. Reads are positional and can run from several threads.
+    If a patient was written more than once, the last document wins.
+ */
+public class DocumentArchiveReader implements Closeable {
+
+    private final FileChannel archive;
+    private final Map<String, ArchiveEntry> entries = new LinkedHashMap<>();
+
+    public DocumentArchiveReader(Path archivePath) throws IOException {
+        this(archivePath, DocumentArchiveWriter.indexPath(archivePath));
+    }
+
+    public DocumentArchiveReader(Path archivePath, Path indexPath) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(indexPath, StandardCharsets.UTF_8)) {
+            String line = reader.readLine();
+            if (!DocumentArchiveWriter.INDEX_HEADER.equals(line))
+                throw new IOException("Not a document archive index: " + indexPath);
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty())
+                    continue;
+                ArchiveEntry entry = ArchiveEntry.fromIndexLine(line);
+                entries.put(entry.getPatientId(), entry);
+            }
+        }
+        this.archive = FileChannel.open(archivePath, StandardOpenOption.READ);
+    }
+
+    public boolean contains(String patientId) {
+        return entries.containsKey(patientId);
+    }
+
+    public ArchiveEntry getEntry(String patientId) {
+        return entries.get(patientId);
+    }
+
+    //In the order they were written
+    public Collection<ArchiveEntry> getEntries() {
+        return Collections.unmodifiableCollection(entries.values());
+    }
+
+    /*
+        The uncompressed document, or null if the patient is not in the archive
+     */
+    public byte[] read(String patientId) throws IOException {
+        ArchiveEntry entry = entries.get(patientId);
+        return entry == null ? null : read(entry);
+    }
+
+    public byte[] read(ArchiveEntry entry) throws IOException {
+        ByteBuffer compressed = ByteBuffer.allocate(entry.getCompressedLength());
+        long position = entry.getOffset();
+        while (compressed.hasRemaining()) {
+            int read = archive.read(compressed, position);
+            if (read < 0)
+                throw new EOFException("Archive ends inside the document of " + entry.getPatientId());
+            position += read;
+        }
+        try (GZIPInputStream gzip = new GZIPInputStream(new ByteArrayInputStream(compressed.array()))) {
+            byte[] document = gzip.readNBytes(entry.getUncompressedLength());
+            if (document.length != entry.getUncompressedLength())
+                throw new EOFException("Document of " + entry.getPatientId() + " is shorter than the index says");
+            return document;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        archive.close();
+    }
+}
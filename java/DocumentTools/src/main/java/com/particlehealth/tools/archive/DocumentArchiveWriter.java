@@ -0,0 +1,194 @@
+package com.particlehealth.tools.archive;
+
+import com.particlehealth.tools.process.DocumentResult;
+import com.particlehealth.tools.process.DocumentSink;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/*
+    Writes documents into one archive file as a sequence of gzip members, one per document,
+    with a tab-separated index of patientId, offset, compressed and uncompressed length next to it.
+    The archive as a whole is a valid multi-member gzip file, so zcat prints every document.
+
+    Documents are compressed on the thread that calls accept, only the append itself is serialized.
+    Use it as the sink of a BatchDocumentGenerator in COMPLETION_ORDER mode to compress on the worker threads.
+    Failed results are counted and not written. Patient ids must not contain tabs or line breaks.
+
+    Each index line is written to the index file right after its document, so a crashed process leaves an index
+    that lists every document it wrote. Every syncInterval documents, and on close, the archive and then the index
+    are forced to disk, so after a power loss the index does not reference archive bytes that were never stored,
+    up to the documents since the last sync.
+ */
+public class DocumentArchiveWriter implements DocumentSink, Closeable {
+
+    public static final String INDEX_SUFFIX = ".idx";
+    static final String INDEX_HEADER = "patientId\toffset\tcompressedLength\tuncompressedLength";
+    public static final int DEFAULT_SYNC_INTERVAL = 100;
+
+    private final FileChannel archive;
+    private final FileChannel index;
+    private final int compressionLevel;
+    private final int syncInterval;
+
+    //Guarded by this
+    private long offset;
+    private long documentCount;
+    private long unsyncedCount;
+    private long skippedCount;
+    private long uncompressedBytes;
+
+    public DocumentArchiveWriter(Path archivePath) throws IOException {
+        this(archivePath, indexPath(archivePath), Deflater.BEST_SPEED, DEFAULT_SYNC_INTERVAL);
+    }
+
+    public DocumentArchiveWriter(Path archivePath, Path indexPath, int compressionLevel) throws IOException {
+        this(archivePath, indexPath, compressionLevel, DEFAULT_SYNC_INTERVAL);
+    }
+
+    /*
+        Existing archive and index files are replaced. With a syncInterval of 1 every document is forced to disk before
+        write returns.
+     */
+    public DocumentArchiveWriter(Path archivePath, Path indexPath, int compressionLevel, int syncInterval) throws IOException {
+        this(archivePath, indexPath, compressionLevel, syncInterval, DocumentArchiveWriter::openForWriting);
+    }
+
+    //Opens the archive and index through the given opener, so tests can see which channels were opened and closed
+    DocumentArchiveWriter(Path archivePath, Path indexPath, int compressionLevel, int syncInterval, ChannelOpener opener) throws IOException {
+        if (syncInterval < 1)
+            throw new IllegalArgumentException("Sync interval must be at least 1: " + syncInterval);
+        this.compressionLevel = compressionLevel;
+        this.syncInterval = syncInterval;
+        this.archive = opener.open(archivePath);
+        FileChannel indexChannel = null;
+        try {
+            indexChannel = opener.open(indexPath);
+            writeFully(indexChannel, (INDEX_HEADER + System.lineSeparator()).getBytes(StandardCharsets.UTF_8));
+        } catch (IOException | RuntimeException e) {
+            closeAfterFailure(indexChannel, e);
+            closeAfterFailure(archive, e);
+            throw e;
+        }
+        this.index = indexChannel;
+    }
+
+    public static Path indexPath(Path archivePath) {
+        return archivePath.resolveSibling(archivePath.getFileName() + INDEX_SUFFIX);
+    }
+
+    @Override
+    public void accept(DocumentResult result) {
+        if (!result.isSuccess()) {
+            synchronized (this) {
+                skippedCount++;
+            }
+            return;
+        }
+        try {
+            write(result.getPatientData().getPatientId(), result.getDocument());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public ArchiveEntry write(String patientId, byte[] document) throws IOException {
+        if (patientId == null || patientId.indexOf('\t') >= 0 || patientId.indexOf('\n') >= 0 || patientId.indexOf('\r') >= 0)
+            throw new IllegalArgumentException("Patient id can not be stored in the archive index: " + patientId);
+        byte[] compressed = compress(document);
+        return append(patientId, compressed, document.length);
+    }
+
+    public synchronized long getDocumentCount() {
+        return documentCount;
+    }
+
+    public synchronized long getSkippedCount() {
+        return skippedCount;
+    }
+
+    public synchronized long getUncompressedBytes() {
+        return uncompressedBytes;
+    }
+
+    public synchronized long getCompressedBytes() {
+        return offset;
+    }
+
+    /*
+        Forces the documents written so far and their index lines to disk
+     */
+    public synchronized void sync() throws IOException {
+        archive.force(false);
+        index.force(false);
+        unsyncedCount = 0;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try (FileChannel archiveChannel = archive; FileChannel indexChannel = index) {
+            sync();
+        }
+    }
+
+    private synchronized ArchiveEntry append(String patientId, byte[] compressed, int uncompressedLength) throws IOException {
+        writeFully(archive, compressed);
+        ArchiveEntry entry = new ArchiveEntry(patientId, offset, compressed.length, uncompressedLength);
+        writeFully(index, (entry.toIndexLine() + System.lineSeparator()).getBytes(StandardCharsets.UTF_8));
+        offset += compressed.length;
+        documentCount++;
+        uncompressedBytes += uncompressedLength;
+        if (++unsyncedCount >= syncInterval)
+            sync();
+        return entry;
+    }
+
+    private static FileChannel openForWriting(Path path) throws IOException {
+        return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    private static void writeFully(FileChannel channel, byte[] bytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+    }
+
+    private static void closeAfterFailure(FileChannel channel, Exception failure) {
+        if (channel == null)
+            return;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            failure.addSuppressed(e);
+        }
+    }
+
+    private byte[] compress(byte[] document) throws IOException {
+        //XML documents usually compress to well under a quarter of their size
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(Math.max(512, document.length / 4));
+        try (GZIPOutputStream gzip = new LeveledGZIPOutputStream(compressed, compressionLevel)) {
+            gzip.write(document);
+        }
+        return compressed.toByteArray();
+    }
+
+    interface ChannelOpener {
+        FileChannel open(Path path) throws IOException;
+    }
+
+    private static class LeveledGZIPOutputStream extends GZIPOutputStream {
+        LeveledGZIPOutputStream(ByteArrayOutputStream out, int level) throws IOException {
+            super(out);
+            def.setLevel(level);
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package com.particlehealth.tools.cli;
+
+import com.particlehealth.tools.input.LoadStatistics;
+import com.particlehealth.tools.input.MalformedRecordException;
+import com.particlehealth.tools.input.PatientDataReader;
+import com.particlehealth.tools.metrics.InMemoryGenerationMetrics;
+import com.particlehealth.tools.models.Address;
+import com.particlehealth.tools.models.OrganizationData;
+import com.particlehealth.tools.models.PatientData;
+import com.particlehealth.tools.process.BatchDocumentGenerator;
+import com.particlehealth.tools.process.DocumentGenerator;
+import com.particlehealth.tools.process.GeneratedDocumentCache;
+import com.particlehealth.tools.process.StaxDocumentRenderer;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+/*
+    Generates one document per patient for every patient in the input files and writes them to the output directory.
+    Prints a progress line while running and a summary at the end.
+    Exit status: 0 when every document was written, 1 when some patients failed, 2 for bad arguments or a run that could not finish.
+ */
+public class BatchGenerate {
+
+    static final int EXIT_OK = 0;
+    static final int EXIT_FAILURES = 1;
+    static final int EXIT_ERROR = 2;
+
+    private final BatchOptions options;
+    private final PrintStream out;
+    private final InMemoryGenerationMetrics metrics = new InMemoryGenerationMetrics();
+    private final ErrorSummary errors = new ErrorSummary();
+    private final LongAdder skipped = new LongAdder();
+    private final FileOutputSink sink;
+    private GeneratedDocumentCache cache;
+
+    //Progress of the file being read, read by the progress thread
+    private volatile PatientDataReader currentReader;
+    private volatile Path currentInput;
+    private volatile int inputNumber;
+    private int inputCount;
+    private long lastReportNanos;
+    private long lastReportCount;
+
+    BatchGenerate(BatchOptions options, PrintStream out) {
+        this.options = options;
+        this.out = out;
+        this.sink = new FileOutputSink(options.getOutputDirectory(), options.getLayout(), errors);
+    }
+
+    public static void main(String[] args) {
+        BatchOptions options;
+        try {
+            options = BatchOptions.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(BatchOptions.USAGE);
+            System.exit(EXIT_ERROR);
+            return;
+        }
+        if (options.isHelp()) {
+            System.out.println(BatchOptions.USAGE);
+            return;
+        }
+
+        int status;
+        try {
+            status = new BatchGenerate(options, System.out).run();
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            status = EXIT_ERROR;
+        } catch (Exception e) {
+            System.err.println("Batch stopped: " + e);
+            e.printStackTrace();
+            status = EXIT_ERROR;
+        }
+        System.exit(status);
+    }
+
+    int run() throws IOException, InterruptedException {
+        OrganizationData orgData = loadOrganization(options.getOrganizationFile());
+        List<Path> inputs = options.resolveInputFiles();
+        inputCount = inputs.size();
+        Files.createDirectories(options.getOutputDirectory());
+
+        DocumentGenerator documentGenerator = new DocumentGenerator();
+        documentGenerator.setMetrics(metrics);
+        if (options.isStreaming())
+            documentGenerator.setStreamingRenderer(new StaxDocumentRenderer());
+        if (options.getCacheDirectory() != null) {
+            cache = new GeneratedDocumentCache(options.getCacheDirectory(), options.getCacheSizeMegabytes() * 1024L * 1024L);
+            documentGenerator.setDocumentCache(cache);
+        }
+        DocumentGenerator.warmUp();
+
+        long start = System.nanoTime();
+        lastReportNanos = start;
+        ScheduledExecutorService progress = startProgress();
+        try (BatchDocumentGenerator batch = new BatchDocumentGenerator(documentGenerator, options.getThreads())) {
+            for (Path input : inputs) {
+                inputNumber++;
+                try (PatientDataReader reader = PatientDataReader.open(input)) {
+                    reader.setMalformedRecordHandler(this::recordMalformed);
+                    currentInput = input;
+                    currentReader = reader;
+                    Stream<PatientData> patients = reader.stream();
+                    if (options.isResume())
+                        patients = patients.filter(this::notWritten);
+                    batch.generate(orgData, patients, BatchDocumentGenerator.Delivery.COMPLETION_ORDER, sink);
+                }
+            }
+        } finally {
+            if (progress != null)
+                progress.shutdownNow();
+        }
+
+        printSummary(System.nanoTime() - start);
+        return errors.getFailed() > 0 ? EXIT_FAILURES : EXIT_OK;
+    }
+
+    //A malformed row fails its patient, or only itself when it can not be placed, and the batch goes on
+    private void recordMalformed(MalformedRecordException e) {
+        String failed = e.getPatientId() != null ? e.getPatientId() : e.getPath().getFileName() + " record " + e.getRecordNumber();
+        errors.record(failed, e);
+    }
+
+    private boolean notWritten(PatientData patientData) {
+        if (!sink.exists(patientData.getPatientId()))
+            return true;
+        skipped.increment();
+        return false;
+    }
+
+    private ScheduledExecutorService startProgress() {
+        if (options.getProgressSeconds() == 0)
+            return null;
+        ScheduledExecutorService progress = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "ccd-batch-progress");
+            thread.setDaemon(true);
+            return thread;
+        });
+        progress.scheduleAtFixedRate(() -> out.println(progressLine()), options.getProgressSeconds(), options.getProgressSeconds(), TimeUnit.SECONDS);
+        return progress;
+    }
+
+    private synchronized String progressLine() {
+        long now = System.nanoTime();
+        long written = sink.getWritten();
+        double rate = (written - lastReportCount) * 1_000_000_000d / Math.max(1, now - lastReportNanos);
+        lastReportNanos = now;
+        lastReportCount = written;
+
+        StringBuilder line = new StringBuilder(160);
+        line.append(String.format("written=%d failed=%d skipped=%d rate=%.1f docs/s p50=%.1fms p99=%.1fms",
+                written, errors.getFailed(), skipped.sum(), rate,
+                metrics.getLatencyPercentile(0.5) / 1e6, metrics.getLatencyPercentile(0.99) / 1e6));
+        if (cache != null)
+            line.append(String.format(" cache hits=%.1f%%", cache.getStatistics().getHitRate() * 100));
+        PatientDataReader reader = currentReader;
+        if (reader != null) {
+            LoadStatistics statistics = reader.getStatistics();
+            line.append(String.format(" input %d/%d %s %.1f%%", inputNumber, inputCount, currentInput.getFileName(), statistics.getProgress() * 100));
+        }
+        return line.toString();
+    }
+
+    private void printSummary(long elapsedNanos) {
+        long written = sink.getWritten();
+        out.println(String.format("Done in %.1fs: written=%d failed=%d skipped=%d rate=%.1f docs/s output=%d bytes",
+                elapsedNanos / 1e9, written, errors.getFailed(), skipped.sum(),
+                written * 1_000_000_000d / Math.max(1, elapsedNanos), sink.getWrittenBytes()));
+        out.println(String.format("Latency of the most recent documents: p50=%.1fms p99=%.1fms",
+                metrics.getLatencyPercentile(0.5) / 1e6, metrics.getLatencyPercentile(0.99) / 1e6));
+        if (cache != null)
+            out.println("Cache: " + cache.getStatistics());
+        errors.print(out);
+    }
+
+    static OrganizationData loadOrganization(Path file) throws IOException {
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        }
+        OrganizationData orgData = new OrganizationData();
+        orgData.setName(required(properties, "name", file));
+        orgData.setNpi(properties.getProperty("npi"));
+        orgData.setEmail(properties.getProperty("email"));
+        orgData.setTelephone(properties.getProperty("telephone"));
+        orgData.setProviderTaxonomyCode(properties.getProperty("providerTaxonomyCode"));
+        if (orgData.getEmail() == null && orgData.getTelephone() == null)
+            throw new IllegalArgumentException(file + " needs an email or telephone");
+
+        Address address = new Address();
+        List<String> lines = new ArrayList<>(2);
+        lines.add(required(properties, "addressLine1", file));
+        if (properties.getProperty("addressLine2") != null)
+            lines.add(properties.getProperty("addressLine2"));
+        address.setAddressLines(lines);
+        address.setAddressCity(properties.getProperty("addressCity"));
+        address.setAddressState(properties.getProperty("addressState"));
+        address.setPostalCode(properties.getProperty("postalCode"));
+        orgData.setAddress(address);
+        return orgData;
+    }
+
+    private static String required(Properties properties, String key, Path file) {
+        String value = properties.getProperty(key);
+        if (value == null || value.isBlank())
+            throw new IllegalArgumentException(file + " is missing " + key);
+        return value;
+    }
+}
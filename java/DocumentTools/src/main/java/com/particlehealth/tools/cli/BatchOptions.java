@@ -0,0 +1,167 @@
+package com.particlehealth.tools.cli;
+
+import lombok.Getter;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/*
+    Command line of BatchGenerate. Invalid arguments throw an IllegalArgumentException with a message for the user.
+ */
+@Getter
+public class BatchOptions {
+
+    static final String USAGE = String.join("\n",
+            "Usage: BatchGenerate --organization <file> --output <dir> (--input <file|dir> | --manifest <file>)... [options]",
+            "  --input <file|dir>       NDJSON (.ndjson, .jsonl) or CSV input, or a directory of them. Can be repeated",
+            "  --manifest <file>        File listing input files, one per line. Blank lines and lines starting with # are skipped",
+            "  --organization <file>    Properties file with name, npi, email, telephone, providerTaxonomyCode,",
+            "                           addressLine1, addressLine2, addressCity, addressState, postalCode",
+            "  --output <dir>           Output directory, created if missing",
+            "  --layout <flat|sharded>  flat: <output>/<patientId>.xml, sharded: <output>/<xx>/<patientId>.xml (default sharded)",
+            "  --threads <n>            Worker threads (default: available processors)",
+            "  --resume                 Skip patients whose output file already exists",
+            "  --streaming              Write documents with StaxDocumentRenderer instead of the MDHT model",
+            "  --cache <dir>            Keep generated documents in this directory and reuse them for patients whose data did not change",
+            "  --cache-size <MB>        Size limit of the cache directory, least recently used documents are removed (default 1024)",
+            "  --progress <seconds>     Interval of the progress line, 0 to turn it off (default 5)",
+            "  --help                   Print this message");
+
+    private final List<Path> inputs = new ArrayList<>();
+    private final List<Path> manifests = new ArrayList<>();
+    private Path organizationFile;
+    private Path outputDirectory;
+    private OutputLayout layout = OutputLayout.SHARDED;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private boolean resume;
+    private boolean streaming;
+    private Path cacheDirectory;
+    private int cacheSizeMegabytes = 1024;
+    private int progressSeconds = 5;
+    private boolean help;
+
+    private BatchOptions() {
+    }
+
+    public static BatchOptions parse(String[] args) {
+        BatchOptions options = new BatchOptions();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            switch (arg) {
+                case "--input":
+                    options.inputs.add(Paths.get(value(args, ++i, arg)));
+                    break;
+                case "--manifest":
+                    options.manifests.add(Paths.get(value(args, ++i, arg)));
+                    break;
+                case "--organization":
+                    options.organizationFile = Paths.get(value(args, ++i, arg));
+                    break;
+                case "--output":
+                    options.outputDirectory = Paths.get(value(args, ++i, arg));
+                    break;
+                case "--layout":
+                    String layout = value(args, ++i, arg);
+                    try {
+                        options.layout = OutputLayout.valueOf(layout.toUpperCase(Locale.ROOT));
+                    } catch (IllegalArgumentException e) {
+                        throw new IllegalArgumentException("Unknown layout: " + layout);
+                    }
+                    break;
+                case "--threads":
+                    options.threads = intValue(args, ++i, arg, 1);
+                    break;
+                case "--cache":
+                    options.cacheDirectory = Paths.get(value(args, ++i, arg));
+                    break;
+                case "--cache-size":
+                    options.cacheSizeMegabytes = intValue(args, ++i, arg, 1);
+                    break;
+                case "--progress":
+                    options.progressSeconds = intValue(args, ++i, arg, 0);
+                    break;
+                case "--resume":
+                    options.resume = true;
+                    break;
+                case "--streaming":
+                    options.streaming = true;
+                    break;
+                case "--help":
+                case "-h":
+                    options.help = true;
+                    return options;
+                default:
+                    throw new IllegalArgumentException("Unknown argument: " + arg);
+            }
+        }
+        if (options.organizationFile == null)
+            throw new IllegalArgumentException("--organization is required");
+        if (options.outputDirectory == null)
+            throw new IllegalArgumentException("--output is required");
+        if (options.inputs.isEmpty() && options.manifests.isEmpty())
+            throw new IllegalArgumentException("--input or --manifest is required");
+        return options;
+    }
+
+    /*
+        Input files in processing order: each --input in turn, directories expanded to their input files sorted by name,
+        then the files of each manifest, relative paths resolved against the manifest's directory
+     */
+    public List<Path> resolveInputFiles() throws IOException {
+        List<Path> files = new ArrayList<>();
+        for (Path input : inputs)
+            addInput(input, files);
+        for (Path manifest : manifests) {
+            Path base = manifest.toAbsolutePath().getParent();
+            for (String line : Files.readAllLines(manifest)) {
+                String entry = line.trim();
+                if (!entry.isEmpty() && !entry.startsWith("#"))
+                    addInput(base.resolve(entry), files);
+            }
+        }
+        if (files.isEmpty())
+            throw new IllegalArgumentException("No input files found");
+        return files;
+    }
+
+    private static void addInput(Path input, List<Path> files) throws IOException {
+        if (!Files.isDirectory(input)) {
+            if (!Files.isRegularFile(input))
+                throw new IllegalArgumentException("Input not found: " + input);
+            files.add(input);
+            return;
+        }
+        try (Stream<Path> children = Files.list(input)) {
+            files.addAll(children.filter(BatchOptions::isInputFile).sorted().collect(Collectors.toList()));
+        }
+    }
+
+    private static boolean isInputFile(Path path) {
+        String name = path.getFileName().toString().toLowerCase(Locale.ROOT);
+        return Files.isRegularFile(path) && (name.endsWith(".ndjson") || name.endsWith(".jsonl") || name.endsWith(".csv"));
+    }
+
+    private static String value(String[] args, int index, String option) {
+        if (index >= args.length)
+            throw new IllegalArgumentException(option + " needs a value");
+        return args[index];
+    }
+
+    private static int intValue(String[] args, int index, String option, int min) {
+        String value = value(args, index, option);
+        try {
+            int parsed = Integer.parseInt(value);
+            if (parsed >= min)
+                return parsed;
+        } catch (NumberFormatException ignored) {
+        }
+        throw new IllegalArgumentException(option + " must be a whole number of at least " + min + ": " + value);
+    }
+}
@@ -0,0 +1,40 @@
+package com.particlehealth.tools.cli;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/*
+    Failed patients counted by exception class, with the first few kept as examples
+ */
+class ErrorSummary {
+
+    private static final int MAX_EXAMPLES = 20;
+
+    private final Map<String, Long> counts = new TreeMap<>();
+    private final List<String> examples = new ArrayList<>();
+    private long failed;
+
+    synchronized void record(String patientId, Throwable error) {
+        failed++;
+        counts.merge(error.getClass().getName(), 1L, Long::sum);
+        if (examples.size() < MAX_EXAMPLES)
+            examples.add(patientId + ": " + error);
+    }
+
+    synchronized long getFailed() {
+        return failed;
+    }
+
+    synchronized void print(PrintStream out) {
+        if (failed == 0)
+            return;
+        out.println("Failures by cause:");
+        counts.forEach((cause, count) -> out.println("  " + count + "\t" + cause));
+        out.println("First failures:");
+        for (String example : examples)
+            out.println("  " + example);
+    }
+}
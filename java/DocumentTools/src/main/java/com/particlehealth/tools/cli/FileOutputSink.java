@@ -0,0 +1,83 @@
+package com.particlehealth.tools.cli;
+
+import com.particlehealth.tools.process.DocumentResult;
+import com.particlehealth.tools.process.DocumentSink;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+    Writes each document to its own file, from the worker threads. A document is written to <name>.tmp, forced to disk
+    and renamed into place, so a file with the final name is always complete, even after a power loss, and a resumed run
+    can trust it. A rename lost to a power loss only means the patient is generated again.
+    Generation and write failures are recorded in the error summary and do not stop the batch.
+ */
+class FileOutputSink implements DocumentSink {
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final Path outputDirectory;
+    private final OutputLayout layout;
+    private final ErrorSummary errors;
+    private final Set<Path> createdDirectories = ConcurrentHashMap.newKeySet();
+    private final LongAdder written = new LongAdder();
+    private final LongAdder writtenBytes = new LongAdder();
+
+    FileOutputSink(Path outputDirectory, OutputLayout layout, ErrorSummary errors) {
+        this.outputDirectory = outputDirectory;
+        this.layout = layout;
+        this.errors = errors;
+    }
+
+    @Override
+    public void accept(DocumentResult result) {
+        String patientId = result.getPatientData().getPatientId();
+        if (!result.isSuccess()) {
+            errors.record(patientId, result.getError());
+            return;
+        }
+        try {
+            write(layout.resolve(outputDirectory, patientId), result.getDocument());
+            written.increment();
+            writtenBytes.add(result.getDocument().length);
+        } catch (IOException e) {
+            errors.record(patientId, e);
+        }
+    }
+
+    boolean exists(String patientId) {
+        return Files.exists(layout.resolve(outputDirectory, patientId));
+    }
+
+    long getWritten() {
+        return written.sum();
+    }
+
+    long getWrittenBytes() {
+        return writtenBytes.sum();
+    }
+
+    private void write(Path target, byte[] document) throws IOException {
+        Path directory = target.getParent();
+        if (!createdDirectories.contains(directory)) {
+            Files.createDirectories(directory);
+            createdDirectories.add(directory);
+        }
+        Path temp = target.resolveSibling(target.getFileName() + TEMP_SUFFIX);
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(document);
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+            channel.force(false);
+        }
+        Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,38 @@
+package com.particlehealth.tools.cli;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+public enum OutputLayout {
+    //<output>/<patientId>.xml
+    FLAT,
+    //<output>/<2 hex digits>/<patientId>.xml, spreads millions of documents over 256 directories
+    SHARDED;
+
+    public Path resolve(Path outputDirectory, String patientId) {
+        String fileName = fileName(patientId);
+        if (this == FLAT)
+            return outputDirectory.resolve(fileName);
+        String shard = String.format("%02x", patientId.hashCode() & 0xFF);
+        return outputDirectory.resolve(shard).resolve(fileName);
+    }
+
+    /*
+        Patient ids are used as file names with anything but letters, digits, '-', '_' and inner '.' percent-encoded,
+        so an id can never name a path outside its directory
+     */
+    static String fileName(String patientId) {
+        StringBuilder name = new StringBuilder(patientId.length() + 4);
+        byte[] bytes = patientId.getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < bytes.length; i++) {
+            int b = bytes[i] & 0xFF;
+            boolean safe = (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9')
+                    || b == '-' || b == '_' || (b == '.' && i > 0);
+            if (safe)
+                name.append((char) b);
+            else
+                name.append('%').append(String.format("%02X", b));
+        }
+        return name.append(".xml").toString();
+    }
+}
@@ -0,0 +1,65 @@
+package com.particlehealth.tools.input;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+    Fields of an input row. Every row is one encounter, and repeats the fields of its patient.
+    A patient without encounters is a single row with the encounter and performer columns left empty.
+    CSV headers and NDJSON field names are the names below, matched case-sensitively. Other columns are ignored.
+ */
+public enum Column {
+    PATIENT_ID("patientId"),
+    GIVEN_NAME("givenName"),
+    FAMILY_NAME("familyName"),
+    //yyyyMMdd
+    DATE_OF_BIRTH("dateOfBirth"),
+    //M or F
+    GENDER("gender"),
+    ADDRESS_LINE_1("addressLine1"),
+    ADDRESS_LINE_2("addressLine2"),
+    ADDRESS_CITY("addressCity"),
+    ADDRESS_STATE("addressState"),
+    POSTAL_CODE("postalCode"),
+    TELEPHONE("telephone"),
+    EMAIL("email"),
+    SSN("ssn"),
+
+    ENCOUNTER_ID("encounterId"),
+    //ISO-8601, for example 2020-01-10T09:30:00Z. Times without an offset are read as UTC
+    EFFECTIVE_TIME("effectiveTime"),
+    STAGE("stage"),
+    ENCOUNTER_TYPE_CODE("encounterTypeCode"),
+
+    PERFORMER_GIVEN_NAME("performerGivenName"),
+    PERFORMER_FAMILY_NAME("performerFamilyName"),
+    PERFORMER_NPI("performerNpi"),
+    PERFORMER_TAXONOMY_CODE("performerTaxonomyCode"),
+    PERFORMER_ADDRESS_LINE_1("performerAddressLine1"),
+    PERFORMER_ADDRESS_LINE_2("performerAddressLine2"),
+    PERFORMER_CITY("performerCity"),
+    PERFORMER_STATE("performerState"),
+    PERFORMER_POSTAL_CODE("performerPostalCode");
+
+    private static final Map<String, Column> BY_NAME = new HashMap<>();
+
+    static {
+        for (Column column : values())
+            BY_NAME.put(column.fieldName, column);
+    }
+
+    final String fieldName;
+
+    Column(String fieldName) {
+        this.fieldName = fieldName;
+    }
+
+    public String getFieldName() {
+        return fieldName;
+    }
+
+    //null for a column that is not read
+    static Column forName(String fieldName) {
+        return BY_NAME.get(fieldName);
+    }
+}
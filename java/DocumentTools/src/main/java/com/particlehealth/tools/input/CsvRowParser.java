@@ -0,0 +1,82 @@
+package com.particlehealth.tools.input;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+    Fields are separated by commas and may be enclosed in double quotes, with "" for a quote inside.
+    Values are not trimmed. An empty field, quoted or not, is read as missing.
+ */
+class CsvRowParser implements RowParser {
+
+    //Column of each position in the header, null for ignored positions
+    private final Column[] columns;
+    private final List<String> fields = new ArrayList<>();
+    private byte[] unquoted = new byte[256];
+
+    CsvRowParser(byte[] header, int length) {
+        List<String> names = new ArrayList<>();
+        split(header, length, names);
+        columns = new Column[names.size()];
+        boolean hasPatientId = false;
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = names.get(i) == null ? null : Column.forName(names.get(i));
+            hasPatientId |= columns[i] == Column.PATIENT_ID;
+        }
+        if (!hasPatientId)
+            throw new IllegalArgumentException("CSV header has no " + Column.PATIENT_ID.getFieldName() + " column");
+    }
+
+    @Override
+    public String[] parse(byte[] record, int length) {
+        split(record, length, fields);
+        if (fields.size() > columns.length)
+            throw new IllegalArgumentException("Record has " + fields.size() + " fields, the header has " + columns.length);
+        String[] values = new String[Column.values().length];
+        for (int i = 0; i < fields.size(); i++) {
+            if (columns[i] != null)
+                values[columns[i].ordinal()] = fields.get(i);
+        }
+        return values;
+    }
+
+    private void split(byte[] record, int length, List<String> into) {
+        into.clear();
+        int i = 0;
+        while (true) {
+            if (i < length && record[i] == '"') {
+                int valueLength = 0;
+                i++;
+                while (true) {
+                    if (i >= length)
+                        throw new IllegalArgumentException("Unterminated quoted field");
+                    byte b = record[i++];
+                    if (b == '"') {
+                        if (i < length && record[i] == '"') {
+                            i++;
+                        } else {
+                            break;
+                        }
+                    }
+                    if (valueLength == unquoted.length)
+                        unquoted = Arrays.copyOf(unquoted, unquoted.length * 2);
+                    unquoted[valueLength++] = b;
+                }
+                into.add(valueLength == 0 ? null : new String(unquoted, 0, valueLength, StandardCharsets.UTF_8));
+                if (i < length && record[i] != ',')
+                    throw new IllegalArgumentException("Unexpected character after quoted field at byte " + i);
+            } else {
+                int start = i;
+                while (i < length && record[i] != ',')
+                    i++;
+                into.add(i == start ? null : new String(record, start, i - start, StandardCharsets.UTF_8));
+            }
+            if (i >= length)
+                return;
+            //Skip the comma
+            i++;
+        }
+    }
+}
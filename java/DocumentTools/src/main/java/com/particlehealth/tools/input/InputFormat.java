@@ -0,0 +1,20 @@
+package com.particlehealth.tools.input;
+
+import java.nio.file.Path;
+import java.util.Locale;
+
+public enum InputFormat {
+    //One JSON object per line, with the columns as fields
+    NDJSON,
+    //RFC 4180 CSV with a header row naming the columns
+    CSV;
+
+    public static InputFormat fromFileName(Path path) {
+        String name = path.getFileName().toString().toLowerCase(Locale.ROOT);
+        if (name.endsWith(".ndjson") || name.endsWith(".jsonl") || name.endsWith(".json"))
+            return NDJSON;
+        if (name.endsWith(".csv"))
+            return CSV;
+        throw new IllegalArgumentException("Can not tell the input format of " + path + " from its name");
+    }
+}
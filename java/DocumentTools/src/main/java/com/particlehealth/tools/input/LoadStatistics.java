@@ -0,0 +1,47 @@
+package com.particlehealth.tools.input;
+
+import lombok.Getter;
+
+@Getter
+public class LoadStatistics {
+
+    final long patients;
+    final long rows;
+    //Reported to the malformed record handler and skipped
+    final long malformedRecords;
+    final long bytesRead;
+    final long fileSize;
+    //Since the reader was opened, including the time the consumer spent on each patient
+    final long elapsedNanos;
+    //Spent inside the reader reading and parsing
+    final long readNanos;
+
+    LoadStatistics(long patients, long rows, long malformedRecords, long bytesRead, long fileSize, long elapsedNanos, long readNanos) {
+        this.patients = patients;
+        this.rows = rows;
+        this.malformedRecords = malformedRecords;
+        this.bytesRead = bytesRead;
+        this.fileSize = fileSize;
+        this.elapsedNanos = elapsedNanos;
+        this.readNanos = readNanos;
+    }
+
+    public double getPatientsPerSecond() {
+        return elapsedNanos == 0 ? 0 : patients * 1_000_000_000d / elapsedNanos;
+    }
+
+    //What the reader alone could sustain if the consumer took no time
+    public double getReadPatientsPerSecond() {
+        return readNanos == 0 ? 0 : patients * 1_000_000_000d / readNanos;
+    }
+
+    public double getProgress() {
+        return fileSize == 0 ? 1 : (double) bytesRead / fileSize;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("patients=%d rows=%d malformed=%d read=%d/%d bytes elapsed=%dms rate=%.1f patients/s parse rate=%.1f patients/s",
+                patients, rows, malformedRecords, bytesRead, fileSize, elapsedNanos / 1_000_000, getPatientsPerSecond(), getReadPatientsPerSecond());
+    }
+}
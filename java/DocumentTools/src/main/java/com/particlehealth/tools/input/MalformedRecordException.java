@@ -0,0 +1,40 @@
+package com.particlehealth.tools.input;
+
+import java.nio.file.Path;
+
+/*
+    A record of a bulk extract that could not be read. The patient id is null when the record has none
+    or could not be split into fields, and could not be placed among the rows of a patient.
+ */
+public class MalformedRecordException extends IllegalArgumentException {
+
+    private final Path path;
+    private final long recordNumber;
+    private final String patientId;
+    private final String problem;
+
+    MalformedRecordException(Path path, long recordNumber, String patientId, String problem, Throwable cause) {
+        super(path + " record " + recordNumber + (patientId == null ? "" : " (patient " + patientId + ")") + ": " + problem, cause);
+        this.path = path;
+        this.recordNumber = recordNumber;
+        this.patientId = patientId;
+        this.problem = problem;
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    //1-based count of non-empty records, a CSV header included
+    public long getRecordNumber() {
+        return recordNumber;
+    }
+
+    public String getPatientId() {
+        return patientId;
+    }
+
+    MalformedRecordException forPatient(String patientId) {
+        return new MalformedRecordException(path, recordNumber, patientId, problem, getCause());
+    }
+}
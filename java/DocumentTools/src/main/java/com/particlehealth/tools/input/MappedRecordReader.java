@@ -0,0 +1,120 @@
+package com.particlehealth.tools.input;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/*
+    Splits a file into line records by walking memory-mapped windows of it, so files of any size are read
+    without going through the heap more than one record at a time. The current record is copied into a reused buffer.
+    With quoted set, line breaks between double quotes stay part of the record, as in CSV.
+    Empty lines and a trailing \r are dropped, as is a UTF-8 byte order mark at the start of the file.
+ */
+class MappedRecordReader implements Closeable {
+
+    static final int DEFAULT_WINDOW_SIZE = 64 * 1024 * 1024;
+
+    private final Path path;
+    private final FileChannel channel;
+    private final long size;
+    private final int windowSize;
+    private final boolean quoted;
+
+    //The window is unmapped once it is garbage collected, a MappedByteBuffer can not be released explicitly
+    private MappedByteBuffer window;
+    private long windowStart;
+    private long position;
+
+    private byte[] record = new byte[8192];
+    private int length;
+    private long recordNumber;
+
+    MappedRecordReader(Path path, boolean quoted) throws IOException {
+        this(path, quoted, DEFAULT_WINDOW_SIZE);
+    }
+
+    MappedRecordReader(Path path, boolean quoted, int windowSize) throws IOException {
+        this.path = path;
+        this.quoted = quoted;
+        this.windowSize = windowSize;
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        this.size = channel.size();
+        if (size >= 3) {
+            map(0);
+            if ((window.get(0) & 0xFF) == 0xEF && (window.get(1) & 0xFF) == 0xBB && (window.get(2) & 0xFF) == 0xBF)
+                position = 3;
+        }
+    }
+
+    /*
+        Moves to the next non-empty record, returns false at the end of the file
+     */
+    boolean next() throws IOException {
+        while (position < size) {
+            length = 0;
+            boolean inQuotes = false;
+            while (position < size) {
+                if (window == null || position >= windowStart + window.limit())
+                    map(position);
+                byte b = window.get((int) (position - windowStart));
+                position++;
+                if (b == '\n' && !inQuotes)
+                    break;
+                if (b == '"' && quoted)
+                    inQuotes = !inQuotes;
+                if (length == record.length)
+                    record = Arrays.copyOf(record, record.length * 2);
+                record[length++] = b;
+            }
+            if (length > 0 && record[length - 1] == '\r')
+                length--;
+            if (length > 0) {
+                recordNumber++;
+                return true;
+            }
+        }
+        length = 0;
+        return false;
+    }
+
+    //Valid up to getLength() until the next call to next()
+    byte[] getRecord() {
+        return record;
+    }
+
+    int getLength() {
+        return length;
+    }
+
+    //1-based count of non-empty records read so far, for error messages
+    long getRecordNumber() {
+        return recordNumber;
+    }
+
+    long getPosition() {
+        return position;
+    }
+
+    long getSize() {
+        return size;
+    }
+
+    Path getPath() {
+        return path;
+    }
+
+    @Override
+    public void close() throws IOException {
+        window = null;
+        channel.close();
+    }
+
+    private void map(long start) throws IOException {
+        windowStart = start;
+        window = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(windowSize, size - start));
+    }
+}
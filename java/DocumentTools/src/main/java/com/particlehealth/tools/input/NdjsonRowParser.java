@@ -0,0 +1,42 @@
+package com.particlehealth.tools.input;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+
+/*
+    Each record is a flat JSON object. String, number and boolean values are read as their text,
+    null as missing, and nested objects or arrays are skipped.
+ */
+class NdjsonRowParser implements RowParser {
+
+    //Thread safe and expensive to create, shared by all readers
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    @Override
+    public String[] parse(byte[] record, int length) throws IOException {
+        String[] values = new String[Column.values().length];
+        try (JsonParser parser = JSON_FACTORY.createParser(record, 0, length)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT)
+                throw new IllegalArgumentException("Record is not a JSON object");
+            JsonToken token;
+            while ((token = parser.nextToken()) == JsonToken.FIELD_NAME) {
+                Column column = Column.forName(parser.getCurrentName());
+                JsonToken value = parser.nextToken();
+                if (value == JsonToken.START_OBJECT || value == JsonToken.START_ARRAY) {
+                    parser.skipChildren();
+                } else if (column != null && value != JsonToken.VALUE_NULL) {
+                    String text = parser.getText();
+                    values[column.ordinal()] = text.isEmpty() ? null : text;
+                }
+            }
+            if (token != JsonToken.END_OBJECT)
+                throw new IllegalArgumentException("Record is not a JSON object");
+            if (parser.nextToken() != null)
+                throw new IllegalArgumentException("Record has content after the JSON object");
+        }
+        return values;
+    }
+}
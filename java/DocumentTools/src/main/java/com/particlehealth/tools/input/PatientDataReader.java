@@ -0,0 +1,319 @@
+package com.particlehealth.tools.input;
+
+import com.particlehealth.tools.models.Address;
+import com.particlehealth.tools.models.PatientData;
+import com.particlehealth.tools.models.PatientEncounter;
+import com.particlehealth.tools.models.Performer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/*
+    Reads PatientData from a bulk extract, one patient at a time. Only the rows of the current patient are held in memory.
+    Rows of a patient must be next to each other in the file, as in an extract sorted by patientId.
+    A patient whose rows are split up comes out once for each run of rows.
+
+    Not thread safe. getStatistics() can be called from any thread to report progress.
+    Read errors throw an UncheckedIOException. Malformed rows throw a MalformedRecordException naming the file and record,
+    unless a handler is set with setMalformedRecordHandler. Then each malformed record is handed to the handler and skipped,
+    together with the rest of its patient: a patient with a malformed row is never returned with only some of its encounters.
+    A record that can not be split into fields, or has no patientId, counts as part of the patient whose rows surround it.
+ */
+public class PatientDataReader implements Iterator<PatientData>, Closeable {
+
+    private static final int PATIENT_ID = Column.PATIENT_ID.ordinal();
+    private static final Column[] PERFORMER_COLUMNS = {Column.PERFORMER_GIVEN_NAME, Column.PERFORMER_FAMILY_NAME, Column.PERFORMER_NPI,
+            Column.PERFORMER_TAXONOMY_CODE, Column.PERFORMER_ADDRESS_LINE_1, Column.PERFORMER_ADDRESS_LINE_2, Column.PERFORMER_CITY,
+            Column.PERFORMER_STATE, Column.PERFORMER_POSTAL_CODE};
+
+    private final MappedRecordReader records;
+    private final RowParser parser;
+    private final long start = System.nanoTime();
+
+    //First row of the patient after the current one
+    private String[] pendingRow;
+    private PatientData next;
+    //null to throw on the first malformed record
+    private Consumer<MalformedRecordException> malformedRecordHandler;
+    //Records without a usable patientId skipped since the last good row, only with a handler
+    private final List<MalformedRecordException> skippedRecords = new ArrayList<>();
+
+    //Written by the reading thread only
+    private volatile long patients;
+    private volatile long rows;
+    private volatile long malformedRecords;
+    private volatile long readNanos;
+    private volatile long finishedNanos;
+
+    private PatientDataReader(MappedRecordReader records, InputFormat format) throws IOException {
+        this.records = records;
+        if (format == InputFormat.CSV) {
+            if (!records.next())
+                throw new IllegalArgumentException(records.getPath() + " has no CSV header");
+            this.parser = new CsvRowParser(records.getRecord(), records.getLength());
+        } else {
+            this.parser = new NdjsonRowParser();
+        }
+    }
+
+    public static PatientDataReader open(Path path) throws IOException {
+        return open(path, InputFormat.fromFileName(path));
+    }
+
+    public static PatientDataReader open(Path path, InputFormat format) throws IOException {
+        MappedRecordReader records = new MappedRecordReader(path, format == InputFormat.CSV);
+        try {
+            return new PatientDataReader(records, format);
+        } catch (IOException | RuntimeException e) {
+            records.close();
+            throw e;
+        }
+    }
+
+    /*
+        Report malformed records to the handler and skip them with the rest of their patient, instead of throwing
+     */
+    public void setMalformedRecordHandler(Consumer<MalformedRecordException> malformedRecordHandler) {
+        this.malformedRecordHandler = malformedRecordHandler;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next == null && finishedNanos == 0) {
+            long readStart = System.nanoTime();
+            try {
+                next = readPatient();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                readNanos += System.nanoTime() - readStart;
+            }
+            if (next == null)
+                finishedNanos = System.nanoTime();
+        }
+        return next != null;
+    }
+
+    @Override
+    public PatientData next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        PatientData patientData = next;
+        next = null;
+        return patientData;
+    }
+
+    /*
+        Lazy stream over the remaining patients. Closing the stream closes the reader.
+     */
+    public Stream<PatientData> stream() {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(() -> {
+                    try {
+                        close();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+    }
+
+    public LoadStatistics getStatistics() {
+        long end = finishedNanos != 0 ? finishedNanos : System.nanoTime();
+        return new LoadStatistics(patients, rows, malformedRecords, records.getPosition(), records.getSize(), end - start, readNanos);
+    }
+
+    @Override
+    public void close() throws IOException {
+        records.close();
+    }
+
+    private PatientData readPatient() throws IOException {
+        while (true) {
+            String[] row = pendingRow != null ? pendingRow : readRow();
+            pendingRow = null;
+            if (row == null) {
+                reportSkipped(null);
+                return null;
+            }
+            //Skipped records before the first row of a patient are not counted as part of it
+            reportSkipped(null);
+
+            String patientId = row[PATIENT_ID];
+            PatientData patientData = createPatient(row);
+            List<PatientEncounter> encounters = new ArrayList<>();
+            //Encounters of a patient with the same performer columns share one instance
+            Map<List<String>, Performer> performers = new HashMap<>();
+            boolean failed = false;
+            do {
+                if (!failed) {
+                    try {
+                        PatientEncounter encounter = createEncounter(row, performers);
+                        if (encounter != null)
+                            encounters.add(encounter);
+                    } catch (MalformedRecordException e) {
+                        failed = true;
+                        report(e.forPatient(patientId));
+                    }
+                }
+                row = readRow();
+                if (row != null && patientId.equals(row[PATIENT_ID]) && !skippedRecords.isEmpty()) {
+                    failed = true;
+                    reportSkipped(patientId);
+                }
+            } while (row != null && patientId.equals(row[PATIENT_ID]));
+            pendingRow = row;
+
+            if (!failed) {
+                patientData.setEncounters(encounters);
+                patients++;
+                return patientData;
+            }
+        }
+    }
+
+    //Next row with a patientId. With a handler, records that can not be read are collected in skippedRecords
+    private String[] readRow() throws IOException {
+        while (records.next()) {
+            String[] row;
+            try {
+                row = parser.parse(records.getRecord(), records.getLength());
+                if (row[PATIENT_ID] == null)
+                    throw malformed("Missing " + Column.PATIENT_ID.getFieldName(), null);
+            } catch (IOException | RuntimeException e) {
+                MalformedRecordException failure = e instanceof MalformedRecordException ? (MalformedRecordException) e : malformed(e.getMessage(), e);
+                if (malformedRecordHandler == null)
+                    throw failure;
+                skippedRecords.add(failure);
+                continue;
+            }
+            rows++;
+            return row;
+        }
+        return null;
+    }
+
+    private void reportSkipped(String patientId) {
+        for (MalformedRecordException skipped : skippedRecords)
+            report(patientId == null ? skipped : skipped.forPatient(patientId));
+        skippedRecords.clear();
+    }
+
+    private void report(MalformedRecordException failure) {
+        if (malformedRecordHandler == null)
+            throw failure;
+        malformedRecords++;
+        malformedRecordHandler.accept(failure);
+    }
+
+    private PatientData createPatient(String[] row) {
+        PatientData patientData = new PatientData();
+        patientData.setPatientId(row[PATIENT_ID]);
+        patientData.setGivenName(value(row, Column.GIVEN_NAME));
+        patientData.setFamilyName(value(row, Column.FAMILY_NAME));
+        patientData.setDateOfBirth(value(row, Column.DATE_OF_BIRTH));
+        patientData.setGender(value(row, Column.GENDER));
+        patientData.setTelephone(value(row, Column.TELEPHONE));
+        patientData.setEmail(value(row, Column.EMAIL));
+        patientData.setSsn(value(row, Column.SSN));
+        patientData.setAddress(createAddress(row, Column.ADDRESS_LINE_1, Column.ADDRESS_LINE_2,
+                Column.ADDRESS_CITY, Column.ADDRESS_STATE, Column.POSTAL_CODE));
+        return patientData;
+    }
+
+    //null for a row without encounter columns
+    private PatientEncounter createEncounter(String[] row, Map<List<String>, Performer> performers) {
+        if (!any(row, Column.ENCOUNTER_ID, Column.EFFECTIVE_TIME, Column.STAGE, Column.ENCOUNTER_TYPE_CODE))
+            return null;
+        PatientEncounter encounter = new PatientEncounter();
+        encounter.setId(value(row, Column.ENCOUNTER_ID));
+        encounter.setStage(value(row, Column.STAGE));
+        encounter.setEncounterTypeCode(value(row, Column.ENCOUNTER_TYPE_CODE));
+        String effectiveTime = value(row, Column.EFFECTIVE_TIME);
+        if (effectiveTime != null)
+            encounter.setEffectiveTime(parseTime(effectiveTime));
+
+        if (any(row, PERFORMER_COLUMNS))
+            encounter.setPerformer(performers.computeIfAbsent(values(row, PERFORMER_COLUMNS), key -> createPerformer(row)));
+        return encounter;
+    }
+
+    private Performer createPerformer(String[] row) {
+        Performer performer = new Performer();
+        performer.setGivenName(value(row, Column.PERFORMER_GIVEN_NAME));
+        performer.setFamilyName(value(row, Column.PERFORMER_FAMILY_NAME));
+        performer.setNpi(value(row, Column.PERFORMER_NPI));
+        performer.setProviderTaxonomyCode(value(row, Column.PERFORMER_TAXONOMY_CODE));
+        performer.setAddress(createAddress(row, Column.PERFORMER_ADDRESS_LINE_1, Column.PERFORMER_ADDRESS_LINE_2,
+                Column.PERFORMER_CITY, Column.PERFORMER_STATE, Column.PERFORMER_POSTAL_CODE));
+        return performer;
+    }
+
+    private static Address createAddress(String[] row, Column line1, Column line2, Column city, Column state, Column postalCode) {
+        if (!any(row, line1, line2, city, state, postalCode))
+            return null;
+        Address address = new Address();
+        List<String> lines = new ArrayList<>(2);
+        if (value(row, line1) != null)
+            lines.add(value(row, line1));
+        if (value(row, line2) != null)
+            lines.add(value(row, line2));
+        address.setAddressLines(lines);
+        address.setAddressCity(value(row, city));
+        address.setAddressState(value(row, state));
+        address.setPostalCode(value(row, postalCode));
+        return address;
+    }
+
+    private OffsetDateTime parseTime(String text) {
+        try {
+            return OffsetDateTime.parse(text);
+        } catch (DateTimeParseException e) {
+            try {
+                return LocalDateTime.parse(text).atOffset(ZoneOffset.UTC);
+            } catch (DateTimeParseException ignored) {
+                throw malformed("Unreadable " + Column.EFFECTIVE_TIME.getFieldName() + ": " + text, e);
+            }
+        }
+    }
+
+    private MalformedRecordException malformed(String message, Throwable cause) {
+        return new MalformedRecordException(records.getPath(), records.getRecordNumber(), null, message, cause);
+    }
+
+    private static String value(String[] row, Column column) {
+        return row[column.ordinal()];
+    }
+
+    private static List<String> values(String[] row, Column... columns) {
+        String[] values = new String[columns.length];
+        for (int i = 0; i < columns.length; i++)
+            values[i] = value(row, columns[i]);
+        return Arrays.asList(values);
+    }
+
+    private static boolean any(String[] row, Column... columns) {
+        for (Column column : columns) {
+            if (row[column.ordinal()] != null)
+                return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,11 @@
+package com.particlehealth.tools.input;
+
+import java.io.IOException;
+
+interface RowParser {
+
+    /*
+        Values of the record indexed by Column ordinal, null where the column is missing or empty
+     */
+    String[] parse(byte[] record, int length) throws IOException;
+}
@@ -0,0 +1,40 @@
+package com.particlehealth.tools.metrics;
+
+/*
+    Receives measurements from DocumentGenerator. Implement it to forward to any metrics registry.
+    Methods are called concurrently from every generating thread and must be thread-safe and cheap.
+    When isEnabled returns false the generator does not read the clock or wrap any streams.
+ */
+public interface GenerationMetrics {
+
+    GenerationMetrics NOOP = new GenerationMetrics() {
+        @Override
+        public boolean isEnabled() {
+            return false;
+        }
+
+        @Override
+        public void recordPhase(GenerationPhase phase, long nanos) {
+        }
+
+        @Override
+        public void recordDocument(int encounterCount, long outputBytes, long nanos) {
+        }
+
+        @Override
+        public void recordError(GenerationPhase phase, Throwable cause) {
+        }
+    };
+
+    default boolean isEnabled() {
+        return true;
+    }
+
+    void recordPhase(GenerationPhase phase, long nanos);
+
+    //Called once per document written by generateDocument, nanos covers all phases
+    void recordDocument(int encounterCount, long outputBytes, long nanos);
+
+    //Called for every failed phase, whether or not isEnabled returns true
+    void recordError(GenerationPhase phase, Throwable cause);
+}
@@ -0,0 +1,12 @@
+package com.particlehealth.tools.metrics;
+
+public enum GenerationPhase {
+    //createCCD: copying the template and adding the patient and encounters to the model
+    BUILD_MODEL,
+    //CDAUtil.save of the model
+    SERIALIZE,
+    //Decoding the saved bytes into a String, only for the String generateDocument
+    DECODE,
+    //StaxDocumentRenderer writing the document without a model
+    RENDER
+}
@@ -0,0 +1,156 @@
+package com.particlehealth.tools.metrics;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+    Default GenerationMetrics that keeps totals in memory. Counters are totals since creation or the last reset,
+    latency percentiles cover the most recent documents only.
+ */
+public class InMemoryGenerationMetrics implements GenerationMetrics {
+
+    private static final int DEFAULT_WINDOW = 4096;
+
+    private final Map<GenerationPhase, PhaseTimer> phases = new EnumMap<>(GenerationPhase.class);
+    private final LongAdder documents = new LongAdder();
+    private final LongAdder outputBytes = new LongAdder();
+    private final LongAccumulator maxOutputBytes = new LongAccumulator(Math::max, 0);
+    private final LongAdder encounters = new LongAdder();
+    private final LongAccumulator maxEncounters = new LongAccumulator(Math::max, 0);
+    private final Map<String, LongAdder> errors = new ConcurrentHashMap<>();
+    private final RollingHistogram latency;
+
+    public InMemoryGenerationMetrics() {
+        this(DEFAULT_WINDOW);
+    }
+
+    public InMemoryGenerationMetrics(int latencyWindow) {
+        for (GenerationPhase phase : GenerationPhase.values())
+            phases.put(phase, new PhaseTimer());
+        latency = new RollingHistogram(latencyWindow);
+    }
+
+    @Override
+    public void recordPhase(GenerationPhase phase, long nanos) {
+        PhaseTimer timer = phases.get(phase);
+        timer.count.increment();
+        timer.totalNanos.add(nanos);
+        timer.maxNanos.accumulate(nanos);
+    }
+
+    @Override
+    public void recordDocument(int encounterCount, long bytes, long nanos) {
+        documents.increment();
+        outputBytes.add(bytes);
+        maxOutputBytes.accumulate(bytes);
+        encounters.add(encounterCount);
+        maxEncounters.accumulate(encounterCount);
+        latency.record(nanos);
+    }
+
+    @Override
+    public void recordError(GenerationPhase phase, Throwable cause) {
+        errors.computeIfAbsent(phase + ":" + cause.getClass().getName(), k -> new LongAdder()).increment();
+    }
+
+    public long getDocumentCount() {
+        return documents.sum();
+    }
+
+    public long getOutputBytes() {
+        return outputBytes.sum();
+    }
+
+    public long getErrorCount() {
+        return errors.values().stream().mapToLong(LongAdder::sum).sum();
+    }
+
+    //Keyed by phase and exception class, for example SERIALIZE:java.io.IOException
+    public Map<String, Long> getErrorCounts() {
+        Map<String, Long> counts = new TreeMap<>();
+        errors.forEach((cause, count) -> counts.put(cause, count.sum()));
+        return counts;
+    }
+
+    /*
+        Document latency in nanoseconds at the given quantile, from 0 to 1, over the latency window
+     */
+    public long getLatencyPercentile(double quantile) {
+        return RollingHistogram.percentile(latency.snapshot(), quantile);
+    }
+
+    public void reset() {
+        for (PhaseTimer timer : phases.values()) {
+            timer.count.reset();
+            timer.totalNanos.reset();
+            timer.maxNanos.reset();
+        }
+        documents.reset();
+        outputBytes.reset();
+        maxOutputBytes.reset();
+        encounters.reset();
+        maxEncounters.reset();
+        errors.clear();
+        latency.reset();
+    }
+
+    /*
+        Durations are in microseconds, sizes in bytes
+     */
+    public String toJson() {
+        StringBuilder json = new StringBuilder(512);
+        json.append("{\"phases\":{");
+        boolean first = true;
+        for (Map.Entry<GenerationPhase, PhaseTimer> entry : phases.entrySet()) {
+            PhaseTimer timer = entry.getValue();
+            long count = timer.count.sum();
+            if (!first)
+                json.append(',');
+            first = false;
+            json.append('"').append(entry.getKey()).append("\":{\"count\":").append(count)
+                    .append(",\"totalMicros\":").append(timer.totalNanos.sum() / 1000)
+                    .append(",\"meanMicros\":").append(count == 0 ? 0 : timer.totalNanos.sum() / count / 1000)
+                    .append(",\"maxMicros\":").append(timer.maxNanos.get() / 1000).append('}');
+        }
+
+        long documentCount = documents.sum();
+        json.append("},\"documents\":{\"count\":").append(documentCount)
+                .append(",\"outputBytes\":").append(outputBytes.sum())
+                .append(",\"meanOutputBytes\":").append(documentCount == 0 ? 0 : outputBytes.sum() / documentCount)
+                .append(",\"maxOutputBytes\":").append(maxOutputBytes.get())
+                .append(",\"encounters\":").append(encounters.sum())
+                .append(",\"maxEncounters\":").append(maxEncounters.get()).append('}');
+
+        long[] window = latency.snapshot();
+        json.append(",\"latency\":{\"window\":").append(window.length)
+                .append(",\"p50Micros\":").append(RollingHistogram.percentile(window, 0.5) / 1000)
+                .append(",\"p90Micros\":").append(RollingHistogram.percentile(window, 0.9) / 1000)
+                .append(",\"p99Micros\":").append(RollingHistogram.percentile(window, 0.99) / 1000)
+                .append(",\"maxMicros\":").append(RollingHistogram.percentile(window, 1) / 1000).append('}');
+
+        json.append(",\"errors\":{");
+        first = true;
+        for (Map.Entry<String, Long> entry : getErrorCounts().entrySet()) {
+            if (!first)
+                json.append(',');
+            first = false;
+            json.append('"').append(entry.getKey().replace("\\", "\\\\").replace("\"", "\\\"")).append("\":").append(entry.getValue());
+        }
+        return json.append("}}").toString();
+    }
+
+    @Override
+    public String toString() {
+        return toJson();
+    }
+
+    private static class PhaseTimer {
+        final LongAdder count = new LongAdder();
+        final LongAdder totalNanos = new LongAdder();
+        final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+    }
+}
@@ -0,0 +1,57 @@
+package com.particlehealth.tools.metrics;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+    Keeps the most recent window values in a ring buffer, percentiles are computed over those only.
+    Recording is lock-free, a snapshot copies and sorts the window.
+ */
+public class RollingHistogram {
+
+    private final AtomicLongArray samples;
+    private final AtomicLong recorded = new AtomicLong();
+
+    public RollingHistogram(int window) {
+        if (window < 1)
+            throw new IllegalArgumentException("window must be at least 1");
+        this.samples = new AtomicLongArray(window);
+    }
+
+    public void record(long value) {
+        samples.set((int) (recorded.getAndIncrement() % samples.length()), value);
+    }
+
+    public long getCount() {
+        return recorded.get();
+    }
+
+    /*
+        Sorted copy of the values currently in the window
+     */
+    public long[] snapshot() {
+        int size = (int) Math.min(recorded.get(), samples.length());
+        long[] values = new long[size];
+        for (int i = 0; i < size; i++)
+            values[i] = samples.get(i);
+        Arrays.sort(values);
+        return values;
+    }
+
+    /*
+        quantile between 0 and 1 over a sorted snapshot, 0 for an empty snapshot
+     */
+    public static long percentile(long[] sorted, double quantile) {
+        if (sorted.length == 0)
+            return 0;
+        int index = (int) Math.ceil(quantile * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    public void reset() {
+        for (int i = 0; i < samples.length(); i++)
+            samples.set(i, 0);
+        recorded.set(0);
+    }
+}
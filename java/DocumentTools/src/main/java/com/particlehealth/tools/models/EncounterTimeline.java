@@ -0,0 +1,108 @@
+package com.particlehealth.tools.models;
+
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/*
+    Encounters of a patient sorted by effectiveTime, for range queries that cost O(log n) plus the size of the result.
+    Encounters at the same instant keep their order in the patient's list. A snapshot: later changes to the patient's
+    encounters are not reflected.
+ */
+public class EncounterTimeline {
+
+    private static final DateTimeFormatter TIMESTAMP_FORMAT = DateTimeFormatter.ofPattern("yyyyMMddHHmmss").withZone(ZoneOffset.UTC);
+    private static final Comparator<PatientEncounter> BY_TIME =
+            Comparator.comparing(PatientEncounter::getEffectiveTime, OffsetDateTime.timeLineOrder());
+
+    private final List<PatientEncounter> sorted;
+    //Formatted on first use
+    private volatile String earliestTimestamp;
+
+    EncounterTimeline(List<PatientEncounter> encounters) {
+        List<PatientEncounter> copy = new ArrayList<>(encounters);
+        for (PatientEncounter encounter : copy) {
+            if (encounter.getEffectiveTime() == null)
+                throw new IllegalArgumentException("Encounter " + encounter.getId() + " has no effectiveTime");
+        }
+        copy.sort(BY_TIME);
+        this.sorted = Collections.unmodifiableList(copy);
+    }
+
+    public List<PatientEncounter> getEncounters() {
+        return sorted;
+    }
+
+    public int size() {
+        return sorted.size();
+    }
+
+    public boolean isEmpty() {
+        return sorted.isEmpty();
+    }
+
+    //null when there are no encounters
+    public OffsetDateTime getEarliest() {
+        return sorted.isEmpty() ? null : sorted.get(0).getEffectiveTime();
+    }
+
+    //null when there are no encounters
+    public OffsetDateTime getLatest() {
+        return sorted.isEmpty() ? null : sorted.get(sorted.size() - 1).getEffectiveTime();
+    }
+
+    /*
+        yyyyMMddHHmmss of the earliest encounter in UTC, empty when there are no encounters
+     */
+    public String getEarliestTimestamp() {
+        String timestamp = earliestTimestamp;
+        if (timestamp == null) {
+            timestamp = sorted.isEmpty() ? "" : TIMESTAMP_FORMAT.format(getEarliest());
+            earliestTimestamp = timestamp;
+        }
+        return timestamp;
+    }
+
+    /*
+        Encounters from 'from' to 'to', both inclusive, in chronological order. A view of the timeline, not a copy.
+     */
+    public List<PatientEncounter> between(OffsetDateTime from, OffsetDateTime to) {
+        if (from.isAfter(to))
+            throw new IllegalArgumentException("Window starts after it ends: " + from + " - " + to);
+        int start = firstNotBefore(from);
+        int end = firstAfter(to);
+        return sorted.subList(start, Math.max(start, end));
+    }
+
+    //Index of the first encounter at or after the time, size() if none
+    private int firstNotBefore(OffsetDateTime time) {
+        int low = 0;
+        int high = sorted.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (sorted.get(middle).getEffectiveTime().isBefore(time))
+                low = middle + 1;
+            else
+                high = middle;
+        }
+        return low;
+    }
+
+    //Index of the first encounter after the time, size() if none
+    private int firstAfter(OffsetDateTime time) {
+        int low = 0;
+        int high = sorted.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (sorted.get(middle).getEffectiveTime().isAfter(time))
+                high = middle;
+            else
+                low = middle + 1;
+        }
+        return low;
+    }
+}
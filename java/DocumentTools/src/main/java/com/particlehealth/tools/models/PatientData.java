@@ -1,16 +1,25 @@
 package com.particlehealth.tools.models;
 
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.Setter;
 
 import java.time.OffsetDateTime;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.Collections;
 import java.util.List;
 
+/*
+    The encounter timeline and the first encounter time are computed once and cached until setEncounters or invalidateTimeline.
+    After changing the encounters in place, adding, removing or replacing list elements or changing an encounter's
+    effectiveTime, call invalidateTimeline, otherwise windows and the serviceEvent start still reflect the old encounters.
+ */
 @Getter @Setter
 public class PatientData {
 
+    private static final DateTimeFormatter TIMESTAMP_FORMAT = DateTimeFormatter.ofPattern("yyyyMMddHHmmss").withZone(ZoneOffset.UTC);
+
     String patientId;
     String givenName;
     String familyName;
@@ -21,21 +30,65 @@ public class PatientData {
     String telephone;
     String email;
     String ssn;
+    @Setter(AccessLevel.NONE)
     List<PatientEncounter> encounters;
 
+    //Cleared when the encounters change, rebuilt on next use
+    @Getter(AccessLevel.NONE) @Setter(AccessLevel.NONE)
+    private volatile EncounterTimeline timeline;
+    @Getter(AccessLevel.NONE) @Setter(AccessLevel.NONE)
+    private volatile String firstEncounterTime;
+
+    public void setEncounters(List<PatientEncounter> encounters) {
+        this.encounters = encounters;
+        invalidateTimeline();
+    }
+
+    /*
+        Drops the cached timeline and first encounter time, call after changing the encounters in place
+     */
+    public void invalidateTimeline() {
+        timeline = null;
+        firstEncounterTime = null;
+    }
+
+    /*
+        The encounters sorted by effectiveTime, with range queries. Sorted on first use and cached, see the class comment.
+     */
+    public EncounterTimeline getEncounterTimeline() {
+        EncounterTimeline current = timeline;
+        if (current == null) {
+            current = new EncounterTimeline(encounters == null ? Collections.emptyList() : encounters);
+            timeline = current;
+        }
+        return current;
+    }
+
+    /*
+        yyyyMMddHHmmss of the earliest encounter in UTC, empty when there are none. Taken from the timeline when it is
+        already built, otherwise found in one pass without sorting. Cached, see the class comment.
+     */
     public String getFirstEncounterTime() {
+        String current = firstEncounterTime;
+        if (current == null) {
+            EncounterTimeline currentTimeline = timeline;
+            current = currentTimeline != null ? currentTimeline.getEarliestTimestamp() : findFirstEncounterTime();
+            firstEncounterTime = current;
+        }
+        return current;
+    }
+
+    private String findFirstEncounterTime() {
         if (encounters == null || encounters.isEmpty())
             return "";
         OffsetDateTime earliest = null;
         for (PatientEncounter enc : encounters) {
-            if (earliest == null) {
+            if (enc.getEffectiveTime() == null)
+                throw new IllegalArgumentException("Encounter " + enc.getId() + " has no effectiveTime");
+            if (earliest == null || earliest.isAfter(enc.getEffectiveTime()))
                 earliest = enc.getEffectiveTime();
-            } else {
-                if (earliest.isAfter(enc.getEffectiveTime()))
-                    earliest = enc.getEffectiveTime();
-            }
         }
-        return OffsetDateTime.ofInstant(earliest.toInstant(), ZoneOffset.UTC).format(DateTimeFormatter.ofPattern("yyyyMMddHHmmss"));
+        return TIMESTAMP_FORMAT.format(earliest);
     }
 
-}
\ No newline at end of file
+}
@@ -5,10 +5,8 @@ import lombok.Setter;
 import org.eclipse.mdht.uml.cda.AssignedEntity;
 import org.eclipse.mdht.uml.cda.CDAFactory;
 import org.eclipse.mdht.uml.cda.Performer2;
-import org.eclipse.mdht.uml.cda.Person;
 import org.eclipse.mdht.uml.hl7.datatypes.DatatypesFactory;
 import org.eclipse.mdht.uml.hl7.datatypes.II;
-import org.eclipse.mdht.uml.hl7.datatypes.PN;
 import org.eclipse.mdht.uml.hl7.vocab.NullFlavor;
 
 @Getter @Setter
@@ -33,14 +31,6 @@ public class Performer {
             assignedEntity.getAddrs().add(address.createAddress());
         }
 
-        if (familyName != null && givenName != null) {
-            Person person = CDAFactory.eINSTANCE.createPerson();
-            PN name = DatatypesFactory.eINSTANCE.createPN();
-            name.addFamily(familyName);
-            name.addGiven(givenName);
-            person.getNames().add(name);
-        }
-
         II assignedEntityId = DatatypesFactory.eINSTANCE.createII("2.16.840.1.113883.4.6");
         if (npi != null) {
             assignedEntityId.setExtension(npi);
@@ -0,0 +1,206 @@
+package com.particlehealth.tools.process;
+
+import com.particlehealth.tools.models.OrganizationData;
+import com.particlehealth.tools.models.PatientData;
+
+import java.io.ByteArrayOutputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+
+/*
+    Generates documents for many patients of one organization on a bounded worker pool.
+    At most maxInFlight patients are queued, being generated or waiting to be delivered at any time,
+    so reading the input never runs ahead of the workers and the sink.
+ */
+public class BatchDocumentGenerator implements AutoCloseable {
+
+    public enum Delivery {
+        //Results reach the sink in the order patients were read
+        INPUT_ORDER,
+        //Results reach the sink as soon as they finish, from the worker threads
+        COMPLETION_ORDER
+    }
+
+    private final DocumentGenerator documentGenerator;
+    private final ExecutorService executor;
+    private final int maxInFlight;
+
+    public BatchDocumentGenerator(DocumentGenerator documentGenerator) {
+        this(documentGenerator, Runtime.getRuntime().availableProcessors());
+    }
+
+    public BatchDocumentGenerator(DocumentGenerator documentGenerator, int workers) {
+        this(documentGenerator, workers, workers * 4);
+    }
+
+    public BatchDocumentGenerator(DocumentGenerator documentGenerator, int workers, int maxInFlight) {
+        if (workers < 1)
+            throw new IllegalArgumentException("workers must be at least 1");
+        if (maxInFlight < workers)
+            throw new IllegalArgumentException("maxInFlight must be at least the number of workers");
+        this.documentGenerator = documentGenerator;
+        this.maxInFlight = maxInFlight;
+        this.executor = Executors.newFixedThreadPool(workers, new WorkerThreadFactory());
+    }
+
+    public BatchSummary generate(OrganizationData orgData, Stream<PatientData> patients, Delivery delivery, DocumentSink sink) throws InterruptedException {
+        return generate(orgData, patients.iterator(), delivery, sink);
+    }
+
+    /*
+        Blocks until every patient from the iterator has been generated and handed to the sink.
+        Failures to generate a patient are delivered to the sink as results with an error and do not stop the batch.
+     */
+    public BatchSummary generate(OrganizationData orgData, Iterator<PatientData> patients, Delivery delivery, DocumentSink sink) throws InterruptedException {
+        Run run = new Run(orgData, delivery, sink);
+        long start = System.nanoTime();
+        long submitted = 0;
+        try {
+            while (run.sinkFailure.get() == null && patients.hasNext()) {
+                PatientData patientData = patients.next();
+                run.permits.acquire();
+                long sequence = submitted++;
+                try {
+                    executor.execute(() -> run.process(sequence, patientData));
+                } catch (RuntimeException e) {
+                    //Rejected, e.g. after close(). It was the last one submitted, so no later result waits for it
+                    submitted--;
+                    run.permits.release();
+                    throw e;
+                }
+            }
+        } finally {
+            //Wait for everything in flight to be delivered, also when reading the input failed
+            run.permits.acquireUninterruptibly(maxInFlight);
+            run.permits.release(maxInFlight);
+        }
+
+        RuntimeException sinkFailure = run.sinkFailure.get();
+        if (sinkFailure != null)
+            throw sinkFailure;
+        return new BatchSummary(submitted, run.succeeded.get(), run.failed.get(), System.nanoTime() - start);
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(1, TimeUnit.MINUTES))
+                executor.shutdownNow();
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private byte[] generateDocument(OrganizationData orgData, PatientData patientData) throws Exception {
+        GenerationContext context = GenerationContext.current();
+        ByteArrayOutputStream out = context.acquireBuffer();
+        try {
+            documentGenerator.generateDocument(orgData, patientData, out);
+            return out.toByteArray();
+        } finally {
+            context.releaseBuffer(out);
+        }
+    }
+
+    /*
+        State for a single call to generate
+     */
+    private class Run {
+        final OrganizationData orgData;
+        final Delivery delivery;
+        final DocumentSink sink;
+        final Semaphore permits = new Semaphore(maxInFlight);
+        final AtomicLong succeeded = new AtomicLong();
+        final AtomicLong failed = new AtomicLong();
+        final AtomicReference<RuntimeException> sinkFailure = new AtomicReference<>();
+
+        //INPUT_ORDER only, guarded by reorderBuffer
+        final Map<Long, DocumentResult> reorderBuffer = new HashMap<>();
+        long nextSequence = 0;
+
+        Run(OrganizationData orgData, Delivery delivery, DocumentSink sink) {
+            this.orgData = orgData;
+            this.delivery = delivery;
+            this.sink = sink;
+        }
+
+        void process(long sequence, PatientData patientData) {
+            long start = System.nanoTime();
+            DocumentResult result;
+            try {
+                byte[] document = generateDocument(orgData, patientData);
+                result = new DocumentResult(sequence, patientData, document, null, System.nanoTime() - start);
+            } catch (Exception e) {
+                result = new DocumentResult(sequence, patientData, null, e, System.nanoTime() - start);
+            } catch (Throwable e) {
+                //E.g. a StackOverflowError on a pathological patient, a failure of this patient like any other
+                result = new DocumentResult(sequence, patientData, null, new ExecutionException(e), System.nanoTime() - start);
+            }
+
+            if (delivery == Delivery.COMPLETION_ORDER) {
+                try {
+                    deliver(result);
+                } finally {
+                    permits.release();
+                }
+                return;
+            }
+
+            synchronized (reorderBuffer) {
+                reorderBuffer.put(sequence, result);
+                DocumentResult next;
+                while ((next = reorderBuffer.remove(nextSequence)) != null) {
+                    nextSequence++;
+                    try {
+                        deliver(next);
+                    } finally {
+                        permits.release();
+                    }
+                }
+            }
+        }
+
+        void deliver(DocumentResult result) {
+            if (result.isSuccess())
+                succeeded.incrementAndGet();
+            else
+                failed.incrementAndGet();
+            //After a sink failure the remaining results are drained without being delivered
+            if (sinkFailure.get() != null)
+                return;
+            try {
+                sink.accept(result);
+            } catch (RuntimeException e) {
+                sinkFailure.compareAndSet(null, e);
+            } catch (Error e) {
+                sinkFailure.compareAndSet(null, new IllegalStateException("Sink failed: " + e, e));
+            }
+        }
+    }
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+        private static final AtomicInteger POOL_NUMBER = new AtomicInteger(1);
+        private final int poolNumber = POOL_NUMBER.getAndIncrement();
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "ccd-batch-" + poolNumber + "-worker-" + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
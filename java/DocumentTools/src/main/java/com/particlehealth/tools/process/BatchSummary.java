@@ -0,0 +1,29 @@
+package com.particlehealth.tools.process;
+
+import lombok.Getter;
+
+@Getter
+public class BatchSummary {
+
+    final long submitted;
+    final long succeeded;
+    final long failed;
+    final long elapsedNanos;
+
+    BatchSummary(long submitted, long succeeded, long failed, long elapsedNanos) {
+        this.submitted = submitted;
+        this.succeeded = succeeded;
+        this.failed = failed;
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    public double getDocumentsPerSecond() {
+        return elapsedNanos == 0 ? 0 : submitted * 1_000_000_000d / elapsedNanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("submitted=%d succeeded=%d failed=%d elapsed=%dms rate=%.1f docs/s",
+                submitted, succeeded, failed, elapsedNanos / 1_000_000, getDocumentsPerSecond());
+    }
+}
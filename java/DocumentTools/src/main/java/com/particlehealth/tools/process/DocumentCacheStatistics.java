@@ -0,0 +1,38 @@
+package com.particlehealth.tools.process;
+
+import lombok.Getter;
+
+@Getter
+public class DocumentCacheStatistics {
+
+    final long hits;
+    final long misses;
+    //Misses whose document could not be stored, see GeneratedDocumentCache
+    final long uncacheable;
+    final long evictions;
+    //Size of the documents written from the cache instead of being generated
+    final long bytesServed;
+    final long entryCount;
+    final long storedBytes;
+
+    DocumentCacheStatistics(long hits, long misses, long uncacheable, long evictions, long bytesServed, long entryCount, long storedBytes) {
+        this.hits = hits;
+        this.misses = misses;
+        this.uncacheable = uncacheable;
+        this.evictions = evictions;
+        this.bytesServed = bytesServed;
+        this.entryCount = entryCount;
+        this.storedBytes = storedBytes;
+    }
+
+    public double getHitRate() {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("hits=%d misses=%d hitRate=%.1f%% uncacheable=%d evictions=%d bytesServed=%d entries=%d storedBytes=%d",
+                hits, misses, getHitRate() * 100, uncacheable, evictions, bytesServed, entryCount, storedBytes);
+    }
+}
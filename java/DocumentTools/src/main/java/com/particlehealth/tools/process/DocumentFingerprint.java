@@ -0,0 +1,133 @@
+package com.particlehealth.tools.process;
+
+import com.particlehealth.tools.models.Address;
+import com.particlehealth.tools.models.OrganizationData;
+import com.particlehealth.tools.models.PatientData;
+import com.particlehealth.tools.models.PatientEncounter;
+import com.particlehealth.tools.models.Performer;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.OffsetDateTime;
+import java.util.List;
+
+/*
+    SHA-256 over every field of the organization and patient that can change the generated document.
+    Each value is written with a presence marker and its length, so no two different inputs hash the same bytes.
+    FORMAT_VERSION must be raised whenever the document shape changes, which retires every cached document.
+ */
+final class DocumentFingerprint {
+
+    static final int FORMAT_VERSION = 1;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final ThreadLocal<MessageDigest> DIGEST = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    });
+
+    private final MessageDigest digest;
+
+    private DocumentFingerprint() {
+        digest = DIGEST.get();
+        digest.reset();
+    }
+
+    /*
+        Lowercase hex. The renderer is part of the key because the StAX and MDHT documents are equivalent, not byte-identical.
+     */
+    static String compute(OrganizationData orgData, PatientData patientData, boolean streaming) {
+        DocumentFingerprint fingerprint = new DocumentFingerprint();
+        fingerprint.add(FORMAT_VERSION);
+        fingerprint.add(streaming ? 1 : 0);
+
+        fingerprint.add(orgData.getName());
+        fingerprint.add(orgData.getNpi());
+        fingerprint.add(orgData.getTelephone());
+        fingerprint.add(orgData.getEmail());
+        fingerprint.add(orgData.getProviderTaxonomyCode());
+        fingerprint.add(orgData.getAddress());
+
+        fingerprint.add(patientData.getPatientId());
+        fingerprint.add(patientData.getGivenName());
+        fingerprint.add(patientData.getFamilyName());
+        fingerprint.add(patientData.getDateOfBirth());
+        fingerprint.add(patientData.getGender());
+        fingerprint.add(patientData.getTelephone());
+        fingerprint.add(patientData.getEmail());
+        fingerprint.add(patientData.getSsn());
+        fingerprint.add(patientData.getAddress());
+
+        List<PatientEncounter> encounters = patientData.getEncounters();
+        fingerprint.add(encounters == null ? -1 : encounters.size());
+        if (encounters != null) {
+            for (PatientEncounter encounter : encounters) {
+                fingerprint.add(encounter.getId());
+                fingerprint.add(encounter.getStage());
+                fingerprint.add(encounter.getEncounterTypeCode());
+                //The narrative prints the time with its offset, so the offset matters as well as the instant
+                OffsetDateTime effectiveTime = encounter.getEffectiveTime();
+                fingerprint.add(effectiveTime == null ? null : effectiveTime.toString());
+                fingerprint.add(encounter.getPerformer());
+            }
+        }
+        return fingerprint.toHex();
+    }
+
+    private void add(Performer performer) {
+        add(performer == null ? 0 : 1);
+        if (performer == null)
+            return;
+        add(performer.getFamilyName());
+        add(performer.getGivenName());
+        add(performer.getNpi());
+        add(performer.getProviderTaxonomyCode());
+        add(performer.getAddress());
+    }
+
+    private void add(Address address) {
+        add(address == null ? 0 : 1);
+        if (address == null)
+            return;
+        add(address.getPostalCode());
+        add(address.getAddressState());
+        add(address.getAddressCity());
+        List<String> lines = address.getAddressLines();
+        add(lines == null ? -1 : lines.size());
+        if (lines != null) {
+            for (String line : lines)
+                add(line);
+        }
+    }
+
+    private void add(String value) {
+        if (value == null) {
+            add(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        add(bytes.length);
+        digest.update(bytes);
+    }
+
+    private void add(int value) {
+        digest.update((byte) (value >>> 24));
+        digest.update((byte) (value >>> 16));
+        digest.update((byte) (value >>> 8));
+        digest.update((byte) value);
+    }
+
+    private String toHex() {
+        byte[] hash = digest.digest();
+        char[] hex = new char[hash.length * 2];
+        for (int i = 0; i < hash.length; i++) {
+            hex[i * 2] = HEX[(hash[i] >> 4) & 0xF];
+            hex[i * 2 + 1] = HEX[hash[i] & 0xF];
+        }
+        return new String(hex);
+    }
+}
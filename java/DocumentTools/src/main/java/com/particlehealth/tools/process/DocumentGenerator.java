@@ -1,60 +1,333 @@
 package com.particlehealth.tools.process;
 
+import com.particlehealth.tools.metrics.GenerationMetrics;
+import com.particlehealth.tools.metrics.GenerationPhase;
 import com.particlehealth.tools.models.*;
-import org.apache.commons.text.StringEscapeUtils;
+import lombok.Getter;
+import lombok.Setter;
 import org.eclipse.mdht.uml.cda.*;
 import org.eclipse.mdht.uml.cda.util.CDAUtil;
 import org.eclipse.mdht.uml.hl7.datatypes.*;
 import org.eclipse.mdht.uml.hl7.vocab.*;
 import org.openhealthtools.mdht.uml.cda.consol.*;
 
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.time.Instant;
 import java.time.OffsetDateTime;
 import java.time.ZoneOffset;
-import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class DocumentGenerator {
 
+    private static final int CHANNEL_BUFFER_SIZE = 64 * 1024;
+    private static final String ENCOUNTERS_SECTION_CODE = "46240-8";
+    private static final int DEFAULT_PARALLEL_ENCOUNTER_THRESHOLD = 1000;
+    //Encounter entries built by one task of the encounter pool
+    static final int ENCOUNTER_CHUNK_SIZE = 256;
+
+    private static final Object WARM_UP_LOCK = new Object();
+    private static volatile boolean warmedUp;
+
+    //Invariant headers and placeholder sections, the same for every organization and patient. Built on first use, copied per document
+    private volatile DocumentTemplate template;
+
+    //Set to true to copy the invariant parts from a shared template instead of building them for every document.
+    //Off until a benchmark shows the copy is faster than building the parts, see GenerationBenchmark
+    @Getter @Setter
+    private boolean templateEnabled;
+
+    //When set, generateDocument writes through the EMF-free renderer instead of building and saving the MDHT model
+    @Getter @Setter
+    private StaxDocumentRenderer streamingRenderer;
+
+    //Receives per-phase timings, sizes and errors. The default records nothing and costs nothing
+    @Getter @Setter
+    private GenerationMetrics metrics = GenerationMetrics.NOOP;
+
+    //When set, generateDocument writes patients whose data did not change from the disk cache. createCCD is never cached
+    @Getter @Setter
+    private GeneratedDocumentCache documentCache;
+
+    //When set, the encounter entries of patients with more than parallelEncounterThreshold encounters are built on this pool
+    //while the narrative is built on the calling thread. The document is the same as one built sequentially
+    @Getter @Setter
+    private ForkJoinPool encounterPool;
+
+    @Getter @Setter
+    private int parallelEncounterThreshold = DEFAULT_PARALLEL_ENCOUNTER_THRESHOLD;
+
     /*
-        When CDAUtil.save is run it escapes the HTML tags in the encounters.text
-        generateDocument wraps the creation of the document and unescapes the tags
+        Registers the EMF packages and runs one throwaway generation and save, so that the first real document
+        does not pay for package registration, lazy metadata loading and class loading.
+        Safe to call more than once and from several threads, only the first call does any work.
+     */
+    public static void warmUp() {
+        if (warmedUp)
+            return;
+        synchronized (WARM_UP_LOCK) {
+            if (warmedUp)
+                return;
+            CDAPackage.eINSTANCE.eClass();
+            DatatypesPackage.eINSTANCE.eClass();
+            VocabPackage.eINSTANCE.eClass();
+            ConsolPackage.eINSTANCE.eClass();
+
+            DocumentGenerator documentGenerator = new DocumentGenerator();
+            try {
+                documentGenerator.generateDocument(createWarmUpOrganization(), createWarmUpPatient(), OutputStream.nullOutputStream());
+            } catch (IOException e) {
+                throw new IllegalStateException("Warm-up generation failed", e);
+            }
+            warmedUp = true;
+        }
+    }
+
+    /*
+        Creates the document and returns it as XML
         Can be written to an stream and saved from here
+        A failure is recorded in the metrics by the phase it happened in and thrown, an IOException wrapped in an UncheckedIOException
      */
     public String generateDocument(OrganizationData orgData, PatientData patientData) {
-        ContinuityOfCareDocument2 doc = createCCD(orgData, patientData);
-        String unescapedCCD = "";
+        String ccd;
+        GenerationContext context = GenerationContext.current();
+        ByteArrayOutputStream outStream = context.acquireBuffer();
         try {
-            ByteArrayOutputStream outStream = new ByteArrayOutputStream();
-            CDAUtil.save(doc, outStream);
-            unescapedCCD = StringEscapeUtils.unescapeXml(new String(outStream.toByteArray()));
-        } catch (Exception e) {
-            e.printStackTrace();
+            generateDocument(orgData, patientData, outStream);
+            long start = metrics.isEnabled() ? System.nanoTime() : 0;
+            ccd = outStream.toString(StandardCharsets.UTF_8);
+            if (metrics.isEnabled())
+                metrics.recordPhase(GenerationPhase.DECODE, System.nanoTime() - start);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            context.releaseBuffer(outStream);
         }
-        return unescapedCCD;
+        return ccd;
+    }
+
+    /*
+        Writes the UTF-8 encoded document straight to the stream, so no full copy of the document is held in memory.
+        The stream is flushed but not closed.
+     */
+    public void generateDocument(OrganizationData orgData, PatientData patientData, OutputStream out) throws IOException {
+        if (!metrics.isEnabled()) {
+            emitDocument(orgData, patientData, out);
+            return;
+        }
+        long start = System.nanoTime();
+        CountingOutputStream countingStream = new CountingOutputStream(out);
+        emitDocument(orgData, patientData, countingStream);
+        int encounterCount = patientData.getEncounters() == null ? 0 : patientData.getEncounters().size();
+        metrics.recordDocument(encounterCount, countingStream.getCount(), System.nanoTime() - start);
+    }
+
+    /*
+        Writes the document to a channel such as a FileChannel. The channel is left open.
+     */
+    public void generateDocument(OrganizationData orgData, PatientData patientData, WritableByteChannel channel) throws IOException {
+        OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), CHANNEL_BUFFER_SIZE);
+        generateDocument(orgData, patientData, out);
     }
 
     public ContinuityOfCareDocument2 createCCD(OrganizationData orgData, PatientData patientData) {
+        return createCCD(orgData, patientData, OffsetDateTime.ofInstant(Instant.now(), ZoneOffset.UTC));
+    }
+
+    public ContinuityOfCareDocument2 createCCD(OrganizationData orgData, PatientData patientData, OffsetDateTime documentTime) {
+        return createCCD(orgData, patientData, documentTime, null, null);
+    }
+
+    /*
+        A document created now with only the encounters from 'from' to 'to', both inclusive, in chronological order,
+        and the serviceEvent covering the window. The encounters are sorted once per PatientData, see PatientData.getEncounterTimeline,
+        after that building the document costs in proportion to the encounters in the window.
+     */
+    public ContinuityOfCareDocument2 createWindowedCCD(OrganizationData orgData, PatientData patientData, OffsetDateTime from, OffsetDateTime to) {
+        if (from == null || to == null)
+            throw new IllegalArgumentException("A window needs both a start and an end");
+        return createCCD(orgData, patientData, OffsetDateTime.ofInstant(Instant.now(), ZoneOffset.UTC), from, to);
+    }
+
+    private ContinuityOfCareDocument2 createCCD(OrganizationData orgData, PatientData patientData, OffsetDateTime documentTime,
+                                                OffsetDateTime from, OffsetDateTime to) {
+        long start = metrics.isEnabled() ? System.nanoTime() : 0;
+        ContinuityOfCareDocument2 doc;
+        try {
+            doc = buildCCD(orgData, patientData, documentTime, from, to);
+        } catch (RuntimeException e) {
+            metrics.recordError(GenerationPhase.BUILD_MODEL, e);
+            throw e;
+        }
+        if (metrics.isEnabled())
+            metrics.recordPhase(GenerationPhase.BUILD_MODEL, System.nanoTime() - start);
+        return doc;
+    }
+
+    private void emitDocument(OrganizationData orgData, PatientData patientData, OutputStream out) throws IOException {
+        OffsetDateTime creationTime = OffsetDateTime.now(ZoneOffset.UTC);
+        if (documentCache != null)
+            documentCache.write(this, orgData, patientData, GenerationContext.current().formatTimestamp(creationTime), out);
+        else
+            writeDocument(orgData, patientData, creationTime, out);
+    }
+
+    void writeDocument(OrganizationData orgData, PatientData patientData, OffsetDateTime creationTime, OutputStream out) throws IOException {
+        if (streamingRenderer != null) {
+            long start = metrics.isEnabled() ? System.nanoTime() : 0;
+            try {
+                streamingRenderer.render(orgData, patientData, creationTime, out);
+            } catch (IOException | RuntimeException e) {
+                metrics.recordError(GenerationPhase.RENDER, e);
+                throw e;
+            }
+            if (metrics.isEnabled())
+                metrics.recordPhase(GenerationPhase.RENDER, System.nanoTime() - start);
+            return;
+        }
+
+        ContinuityOfCareDocument2 doc = createCCD(orgData, patientData, creationTime);
+        long start = metrics.isEnabled() ? System.nanoTime() : 0;
+        try {
+            GenerationContext.current().save(doc, out);
+            out.flush();
+        } catch (IOException e) {
+            metrics.recordError(GenerationPhase.SERIALIZE, e);
+            throw e;
+        } catch (Exception e) {
+            metrics.recordError(GenerationPhase.SERIALIZE, e);
+            throw new IOException("Failed to save document for patient " + patientData.getPatientId(), e);
+        }
+        if (metrics.isEnabled())
+            metrics.recordPhase(GenerationPhase.SERIALIZE, System.nanoTime() - start);
+    }
+
+    //Without a window, from and to are null and every encounter is included in the patient's order
+    private ContinuityOfCareDocument2 buildCCD(OrganizationData orgData, PatientData patientData, OffsetDateTime documentTime,
+                                               OffsetDateTime from, OffsetDateTime to) {
+        GenerationContext context = GenerationContext.current();
         //CreationTime to be used throughout the doc
-        String creationTime = OffsetDateTime.ofInstant(Instant.now(), ZoneOffset.UTC).format(DateTimeFormatter.ofPattern("yyyyMMddHHmmss"));
-        String firstEncounterTime = patientData.getFirstEncounterTime();
-        // create and initialize an instance of the ContinuityOfCareDocument class
-        ContinuityOfCareDocument2 doc = ConsolFactory.eINSTANCE.createContinuityOfCareDocument2().init();
+        String creationTime = context.formatTimestamp(documentTime);
+        List<PatientEncounter> encounters;
+        String serviceStart;
+        String serviceEnd;
+        if (from == null) {
+            encounters = patientData.getEncounters();
+            serviceStart = patientData.getFirstEncounterTime();
+            serviceEnd = creationTime;
+        } else {
+            encounters = patientData.getEncounterTimeline().between(from, to);
+            serviceStart = context.formatTimestamp(from);
+            serviceEnd = context.formatTimestamp(to);
+        }
+        // start from the invariant header and placeholder sections, copied from the template
+        ContinuityOfCareDocument2 doc = templateEnabled ? template().newDocument() : createTemplate();
 
         initializeHeaders(doc, patientData.getPatientId(), creationTime);
         initializeAuthor(doc, orgData, creationTime);
         initializeCustodian(doc, orgData);
-        initializeDocumentationOf(doc, firstEncounterTime, creationTime);
+        initializeDocumentationOf(doc, serviceStart, serviceEnd);
         initializeRecordTarget(doc, patientData);
-        initializeComponent(doc, patientData);
+        initializeComponent(doc, encounters);
+
+        return doc;
+    }
+
+    /*
+        Adds encounters to a document from createCCD, or loaded from XML written by generateDocument,
+        without rebuilding the existing ones. New entries and narrative rows are numbered after the existing encounters
+        and the serviceEvent low/high is widened to cover them.
+     */
+    public void appendEncounters(ClinicalDocument ccdDocument, List<PatientEncounter> newEncounters) {
+        if (newEncounters.isEmpty())
+            return;
+        Section section = findEncountersSection(ccdDocument);
+        if (section == null) {
+            initializeEncounters(ccdDocument, newEncounters);
+        } else {
+            int firstIndex = section.getEncounters().size() + 1;
+            int count = firstIndex;
+            for (PatientEncounter patientEncounter : newEncounters) {
+                section.addEncounter(createEncounterActivity(patientEncounter, count));
+                count++;
+            }
+            appendNarrativeRows(section, newEncounters, firstIndex);
+        }
+        widenServiceEvent(ccdDocument, newEncounters);
+    }
+
+    /*
+        Reads a document written by generateDocument, appends the encounters and writes the updated document to out.
+        The whole document is loaded into the MDHT model and saved again, so this costs in proportion to the size
+        of the existing document, not the number of new encounters. Use the ClinicalDocument variant to append repeatedly.
+        The output stream is flushed but not closed.
+     */
+    public void appendEncounters(InputStream document, List<PatientEncounter> newEncounters, OutputStream out) throws IOException {
+        ClinicalDocument doc;
+        try {
+            doc = CDAUtil.load(document);
+        } catch (Exception e) {
+            throw new IOException("Failed to load document", e);
+        }
+        appendEncounters(doc, newEncounters);
+        try {
+            CDAUtil.save(doc, out);
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Failed to save document", e);
+        }
+        out.flush();
+    }
+
+    private DocumentTemplate template() {
+        DocumentTemplate current = template;
+        if (current == null) {
+            synchronized (this) {
+                current = template;
+                if (current == null) {
+                    current = new DocumentTemplate(createTemplate());
+                    template = current;
+                }
+            }
+        }
+        return current;
+    }
 
+    /*
+        Builds the parts of the document that are the same for every document
+     */
+    private ContinuityOfCareDocument2 createTemplate() {
+        // create and initialize an instance of the ContinuityOfCareDocument class
+        ContinuityOfCareDocument2 doc = ConsolFactory.eINSTANCE.createContinuityOfCareDocument2().init();
+        initializeStaticHeaders(doc);
+        initializeStaticSections(doc);
         return doc;
     }
 
 
     private void initializeHeaders(ContinuityOfCareDocument2 ccdDocument, String uuid, String creationTime) {
+        II id = DatatypesFactory.eINSTANCE.createII(uuid);
+        ccdDocument.setId(id);
+
+        TS effectiveTime = DatatypesFactory.eINSTANCE.createTS(creationTime);
+        ccdDocument.setEffectiveTime(effectiveTime);
+    }
+
+    private void initializeStaticHeaders(ContinuityOfCareDocument2 ccdDocument) {
         //2.16.840.1.113883.10.20.22.1.1:2015-08-01
         InfrastructureRootTypeId typeId = CDAFactory.eINSTANCE.createInfrastructureRootTypeId();
         typeId.setExtension("POCD_HD000040");
@@ -62,9 +335,6 @@ public class DocumentGenerator {
 
         ccdDocument.setLanguageCode(DatatypesFactory.eINSTANCE.createCS("en-US"));
 
-        II id = DatatypesFactory.eINSTANCE.createII(uuid);
-        ccdDocument.setId(id);
-
         II templateId1 = DatatypesFactory.eINSTANCE.createII("2.16.840.1.113883.10.20.22.1.1", "2015-08-01");
         II templateId2 = DatatypesFactory.eINSTANCE.createII("2.16.840.1.113883.10.20.22.1.2", "2015-08-01");
 
@@ -79,8 +349,6 @@ public class DocumentGenerator {
         ST title = DatatypesFactory.eINSTANCE.createST("Patient Encounters");
         ccdDocument.setTitle(title);
 
-        TS effectiveTime = DatatypesFactory.eINSTANCE.createTS(creationTime);
-        ccdDocument.setEffectiveTime(effectiveTime);
         CE confidentialityCode = DatatypesFactory.eINSTANCE.createCE("N", "2.16.840.1.113883.5.25");
         confidentialityCode.setCodeSystemName("Confidentiality");
         confidentialityCode.setDisplayName("Normal");
@@ -160,7 +428,11 @@ public class DocumentGenerator {
 
         custodianOrganization.setAddr(orgData.getAddress().createAddress());
         //CustodianOrganization only takes 1 TEL object, either email or telephone will be used. At least 1 is required
-        custodianOrganization.setTelecom(createTelecoms(orgData.getEmail(), orgData.getTelephone()).get(0));
+        if (orgData.getEmail() == null && orgData.getTelephone() == null)
+            throw new IllegalArgumentException("Organization requires an email or telephone");
+        custodianOrganization.setTelecom(orgData.getEmail() != null
+                ? createTelecoms(orgData.getEmail(), null).get(0)
+                : createTelecoms(null, orgData.getTelephone()).get(0));
 
         //NPI Unknown root
         II npiId = DatatypesFactory.eINSTANCE.createII();
@@ -173,21 +445,21 @@ public class DocumentGenerator {
         ccdDocument.setCustodian(custodian);
     }
 
-    private void initializeDocumentationOf(ContinuityOfCareDocument2 ccdDocument, String firstEncounterTime, String creationTime) {
+    private void initializeDocumentationOf(ContinuityOfCareDocument2 ccdDocument, String firstEncounterTime, String endTime) {
         DocumentationOf documentationOf = CDAFactory.eINSTANCE.createDocumentationOf();
         documentationOf.setTypeCode(ActRelationshipType.DOC);
 
         ServiceEvent serviceEvent = CDAFactory.eINSTANCE.createServiceEvent();
         serviceEvent.setClassCode(ActClassRoot.PCPR);
 
-        //This maps the time from the first encounter to the time the document is created.
+        //This maps the time from the first encounter, or the start of the window, to the time the document is created, or the end of the window.
         IVL_TS effectiveTime = DatatypesFactory.eINSTANCE.createIVL_TS();
         IVXB_TS t1 = DatatypesFactory.eINSTANCE.createIVXB_TS();
         IVXB_TS t2 = DatatypesFactory.eINSTANCE.createIVXB_TS();
         if (firstEncounterTime.isEmpty())
-            firstEncounterTime = creationTime;
+            firstEncounterTime = endTime;
         t1.setValue(firstEncounterTime);
-        t2.setValue(creationTime);
+        t2.setValue(endTime);
         effectiveTime.setLow(t1);
         effectiveTime.setHigh(t2);
         serviceEvent.setEffectiveTime(effectiveTime);
@@ -196,7 +468,13 @@ public class DocumentGenerator {
         ccdDocument.getDocumentationOfs().add(documentationOf);
     }
 
-    private void initializeComponent(ContinuityOfCareDocument2 ccdDocument, PatientData patientData) {
+    private void initializeComponent(ContinuityOfCareDocument2 ccdDocument, List<PatientEncounter> encounters) {
+        //Generate Encounters
+        if (encounters != null)
+            initializeEncounters(ccdDocument, encounters);
+    }
+
+    private void initializeStaticSections(ContinuityOfCareDocument2 ccdDocument) {
         //Allergies
         initializeAllergiesSection(ccdDocument);
 
@@ -214,10 +492,6 @@ public class DocumentGenerator {
 
         //Vital Signs
         initializeVitalSigns(ccdDocument);
-
-        //Generate Encounters
-        if (patientData.getEncounters() != null)
-            initializeEncounters(ccdDocument, patientData.getEncounters());
     }
 
 
@@ -292,29 +566,100 @@ public class DocumentGenerator {
                 .createCE("8716-3", "2.16.840.1.113883.6.1", "LOINC", "Vital Signs"));
     }
 
-    private void initializeEncounters(ContinuityOfCareDocument2 ccdDocument, List<PatientEncounter> encounters) {
+    private void initializeEncounters(ClinicalDocument ccdDocument, List<PatientEncounter> encounters) {
         EncountersSection2 section = ConsolFactory.eINSTANCE.createEncountersSection2().init();
         ccdDocument.addSection(section);
         section.setTitle(DatatypesFactory.eINSTANCE.createST("Encounters Section"));
         StrucDocText text = CDAFactory.eINSTANCE.createStrucDocText();
         section.setCode(DatatypesFactory.eINSTANCE
-                .createCE("46240-8", "2.16.840.1.113883.6.1", "LOINC", "Encounters"));
+                .createCE(ENCOUNTERS_SECTION_CODE, "2.16.840.1.113883.6.1", "LOINC", "Encounters"));
+
+        NarrativeTableBuilder table = new NarrativeTableBuilder("Doctor", "Stage", "Encounter Date");
+        if (encounterPool != null && encounters.size() > parallelEncounterThreshold) {
+            //Entries are built as detached subtrees and attached in encounter order once all are done
+            Entry[] entries = new Entry[encounters.size()];
+            AtomicBoolean abandoned = new AtomicBoolean();
+            ForkJoinTask<Void> entriesTask = encounterPool.submit(new EncounterEntriesTask(encounters, entries, 0, entries.length, abandoned));
+            try {
+                addEncounterRows(table, encounters);
+            } catch (RuntimeException | Error e) {
+                //Cancelling would only mark the root task done while its chunks keep running. Chunks not started yet
+                //skip their work instead, and the ones already running are waited for, so none outlives the failed call
+                abandoned.set(true);
+                entriesTask.quietlyJoin();
+                throw e;
+            }
+            entriesTask.join();
+            section.getEntries().addAll(Arrays.asList(entries));
+        } else {
+            int count = 1;
+            for (PatientEncounter patientEncounter : encounters) {
+                section.addEncounter(createEncounterActivity(patientEncounter, count));
+                count++;
+            }
+            addEncounterRows(table, encounters);
+        }
+
+        table.appendTo(text);
+        section.setText(text);
+    }
 
+    private void addEncounterRows(NarrativeTableBuilder table, List<PatientEncounter> encounters) {
         int count = 1;
-        StringBuilder sb = prepareTable();
         for (PatientEncounter patientEncounter : encounters) {
-            section.addEncounter(createEncounterActivity(patientEncounter, count));
+            addEncounterRow(table, patientEncounter, count);
+            count++;
+        }
+    }
 
-            sb.append("<tr ID=\"#Encounter").append(count).append("\">");
-            sb.append("<td>").append(patientEncounter.getPerformer().getGivenName() + patientEncounter.getPerformer().getFamilyName()).append("</td>");
-            sb.append("<td>").append(patientEncounter.getStage()).append("</td>");
-            sb.append("<td>").append(patientEncounter.getEffectiveTime()).append("</td></tr>");
+    private void addEncounterRow(NarrativeTableBuilder table, PatientEncounter patientEncounter, int count) {
+        table.addRow("Encounter" + count,
+                patientEncounter.getPerformer().getGivenName() + patientEncounter.getPerformer().getFamilyName(),
+                String.valueOf(patientEncounter.getStage()),
+                String.valueOf(patientEncounter.getEffectiveTime()));
+    }
+
+    private Section findEncountersSection(ClinicalDocument ccdDocument) {
+        for (Section section : ccdDocument.getSections()) {
+            if (section.getCode() != null && ENCOUNTERS_SECTION_CODE.equals(section.getCode().getCode()))
+                return section;
+        }
+        return null;
+    }
 
+    private void appendNarrativeRows(Section section, List<PatientEncounter> encounters, int firstIndex) {
+        NarrativeTableBuilder table = NarrativeTableBuilder.find(section.getText());
+        if (table == null)
+            throw new IllegalArgumentException("Encounters section narrative is not an encounter table");
+        int count = firstIndex;
+        for (PatientEncounter patientEncounter : encounters) {
+            addEncounterRow(table, patientEncounter, count);
             count++;
         }
+    }
 
-        text.addText(closeTable(sb));
-        section.setText(text);
+    /*
+        Widens low/high of the documentationOf/serviceEvent to cover the given encounters.
+        Times are yyyyMMddHHmmss strings, so they compare lexicographically.
+     */
+    private void widenServiceEvent(ClinicalDocument ccdDocument, List<PatientEncounter> encounters) {
+        if (ccdDocument.getDocumentationOfs().isEmpty() || ccdDocument.getDocumentationOfs().get(0).getServiceEvent() == null)
+            return;
+        IVL_TS effectiveTime = ccdDocument.getDocumentationOfs().get(0).getServiceEvent().getEffectiveTime();
+        if (effectiveTime == null || effectiveTime.getLow() == null || effectiveTime.getHigh() == null)
+            return;
+        String low = effectiveTime.getLow().getValue();
+        String high = effectiveTime.getHigh().getValue();
+        GenerationContext context = GenerationContext.current();
+        for (PatientEncounter enc : encounters) {
+            String time = context.formatTimestamp(enc.getEffectiveTime());
+            if (low == null || time.compareTo(low) < 0)
+                low = time;
+            if (high == null || time.compareTo(high) > 0)
+                high = time;
+        }
+        effectiveTime.getLow().setValue(low);
+        effectiveTime.getHigh().setValue(high);
     }
 
     private EncounterActivity2 createEncounterActivity(PatientEncounter enc, Integer i) {
@@ -322,21 +667,58 @@ public class DocumentGenerator {
         activity.setClassCode(ActClass.ENC);
         activity.setMoodCode(x_DocumentEncounterMood.EVN);
         activity.getIds().add(DatatypesFactory.eINSTANCE.createII(enc.getId()));
-        String effectiveTime = OffsetDateTime.ofInstant(enc.getEffectiveTime().toInstant(), ZoneOffset.UTC).format(DateTimeFormatter.ofPattern("yyyyMMddHHmmss"));
+        String effectiveTime = GenerationContext.current().formatTimestamp(enc.getEffectiveTime());
         activity.setEffectiveTime(DatatypesFactory.eINSTANCE.createIVL_TS(effectiveTime));
 
         CD code = DatatypesFactory.eINSTANCE.createCD();
         code.setCode(enc.getEncounterTypeCode());
         code.setCodeSystem("2.16.840.1.113883.6.12");
+        //Points at the encounter's row of the narrative table
         ED ed = DatatypesFactory.eINSTANCE.createED();
-        ed.addText("#Encounter" + i);
-        code.setOriginalText(DatatypesFactory.eINSTANCE.createED());
-        activity.setCode(DatatypesFactory.eINSTANCE.createCD());
+        ed.setReference(DatatypesFactory.eINSTANCE.createTEL("#Encounter" + i));
+        code.setOriginalText(ed);
+        activity.setCode(code);
 
         activity.getPerformers().add(enc.getPerformer().createPerformer());
         return activity;
     }
 
+    /*
+        Fills entries[from, to) with the entries of the encounters at the same positions, splitting into chunks of ENCOUNTER_CHUNK_SIZE.
+        Stops early once abandoned is set.
+     */
+    private class EncounterEntriesTask extends RecursiveAction {
+        private final List<PatientEncounter> encounters;
+        private final Entry[] entries;
+        private final int from;
+        private final int to;
+        private final AtomicBoolean abandoned;
+
+        EncounterEntriesTask(List<PatientEncounter> encounters, Entry[] entries, int from, int to, AtomicBoolean abandoned) {
+            this.encounters = encounters;
+            this.entries = entries;
+            this.from = from;
+            this.to = to;
+            this.abandoned = abandoned;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > ENCOUNTER_CHUNK_SIZE) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new EncounterEntriesTask(encounters, entries, from, middle, abandoned),
+                        new EncounterEntriesTask(encounters, entries, middle, to, abandoned));
+                return;
+            }
+            for (int i = from; i < to && !abandoned.get(); i++) {
+                //The same entry Section.addEncounter creates
+                Entry entry = CDAFactory.eINSTANCE.createEntry();
+                entry.setEncounter(createEncounterActivity(encounters.get(i), i + 1));
+                entries[i] = entry;
+            }
+        }
+    }
+
     private List<TEL> createTelecoms(String email, String telephone) {
         List<TEL> tels = new ArrayList<>();
         if (email != null) {
@@ -352,20 +734,50 @@ public class DocumentGenerator {
         return tels;
     }
 
-    private StringBuilder prepareTable() {
-        StringBuilder sb = new StringBuilder();
-        sb.append("<table>");
-        sb.append("<tr>");
-        sb.append("<th>Doctor</th>");
-        sb.append("<th>Stage</th>");
-        sb.append("<th>Encounter Date</th>");
-        sb.append("</tr>");
-        return sb;
+    private static OrganizationData createWarmUpOrganization() {
+        OrganizationData orgData = new OrganizationData();
+        orgData.setName("Warm-up");
+        orgData.setProviderTaxonomyCode("WarmUp");
+        orgData.setEmail("warm-up@example.invalid");
+        orgData.setTelephone("000-000-0000");
+        orgData.setAddress(createWarmUpAddress());
+        return orgData;
     }
 
-    private String closeTable(StringBuilder sb) {
-        sb.append("</table>");
-        return sb.toString();
+    private static PatientData createWarmUpPatient() {
+        Performer performer = new Performer();
+        performer.setFamilyName("Warm");
+        performer.setGivenName("Up");
+        performer.setNpi("0000000000");
+        performer.setProviderTaxonomyCode("WarmUp");
+        performer.setAddress(createWarmUpAddress());
+
+        PatientEncounter encounter = new PatientEncounter();
+        encounter.setId("warm-up-encounter");
+        encounter.setEffectiveTime(OffsetDateTime.of(2000, 1, 1, 0, 0, 0, 0, ZoneOffset.UTC));
+        encounter.setEncounterTypeCode("99204");
+        encounter.setStage("new");
+        encounter.setPerformer(performer);
+
+        PatientData patientData = new PatientData();
+        patientData.setPatientId("warm-up");
+        patientData.setGivenName("Warm");
+        patientData.setFamilyName("Up");
+        patientData.setDateOfBirth("20000101");
+        patientData.setGender("F");
+        patientData.setEmail("warm-up@example.invalid");
+        patientData.setTelephone("000-000-0000");
+        patientData.setAddress(createWarmUpAddress());
+        patientData.setEncounters(List.of(encounter));
+        return patientData;
     }
 
+    private static Address createWarmUpAddress() {
+        Address address = new Address();
+        address.setAddressCity("Warm-up");
+        address.setAddressState("MA");
+        address.setPostalCode("00000");
+        address.setAddressLines(List.of("1 Warm-up St", "Unit 1"));
+        return address;
+    }
 }
@@ -0,0 +1,31 @@
+package com.particlehealth.tools.process;
+
+import com.particlehealth.tools.models.PatientData;
+import lombok.Getter;
+
+/*
+    Outcome of generating one patient's document in a batch.
+    Exactly one of document or error is set.
+ */
+@Getter
+public class DocumentResult {
+
+    //Position of the patient in the batch input, starting at 0
+    final long sequence;
+    final PatientData patientData;
+    final byte[] document;
+    final Exception error;
+    final long durationNanos;
+
+    DocumentResult(long sequence, PatientData patientData, byte[] document, Exception error, long durationNanos) {
+        this.sequence = sequence;
+        this.patientData = patientData;
+        this.document = document;
+        this.error = error;
+        this.durationNanos = durationNanos;
+    }
+
+    public boolean isSuccess() {
+        return error == null;
+    }
+}
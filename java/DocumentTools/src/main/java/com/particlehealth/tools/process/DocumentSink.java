@@ -0,0 +1,13 @@
+package com.particlehealth.tools.process;
+
+/*
+    Receives batch results, failures included.
+    In COMPLETION_ORDER mode accept is called concurrently from worker threads and must be thread-safe.
+    In INPUT_ORDER mode calls are serialized.
+    A RuntimeException thrown from accept stops the batch and is rethrown from BatchDocumentGenerator.generate.
+ */
+@FunctionalInterface
+public interface DocumentSink {
+
+    void accept(DocumentResult result);
+}
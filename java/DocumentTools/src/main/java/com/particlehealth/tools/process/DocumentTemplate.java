@@ -0,0 +1,22 @@
+package com.particlehealth.tools.process;
+
+import org.eclipse.emf.ecore.util.EcoreUtil;
+import org.openhealthtools.mdht.uml.cda.consol.ContinuityOfCareDocument2;
+
+/*
+    A fully initialized document holding only the parts shared by every document.
+    The prototype is never handed out or modified after construction, so threads copy it without locking.
+    Each document starts as a deep copy of it.
+ */
+public class DocumentTemplate {
+
+    private final ContinuityOfCareDocument2 prototype;
+
+    DocumentTemplate(ContinuityOfCareDocument2 prototype) {
+        this.prototype = prototype;
+    }
+
+    public ContinuityOfCareDocument2 newDocument() {
+        return EcoreUtil.copy(prototype);
+    }
+}
@@ -0,0 +1,306 @@
+package com.particlehealth.tools.process;
+
+import com.particlehealth.tools.models.OrganizationData;
+import com.particlehealth.tools.models.PatientData;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/*
+    Disk cache of generated documents keyed by DocumentFingerprint, so a patient whose data did not change
+    is written from the cache instead of being generated again.
+
+    Documents are generated and stored with a sentinel creation time, together with the offsets where it appears.
+    Every emitted document, fresh or cached, gets the real creation time written over those offsets.
+    A document in which the sentinel does not appear exactly where the creation time goes is passed through and not stored.
+
+    The cache holds at most maxBytes of entry files and evicts the least recently used ones beyond that.
+    Recency survives restarts as the file modification time. Safe for concurrent use by several generators and threads,
+    but not by several processes sharing the directory.
+ */
+public class GeneratedDocumentCache {
+
+    static final String ENTRY_SUFFIX = ".ccd";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int MAGIC = 0x43434443;
+    //Year 1000, far outside any real creation or encounter time, formats as 10000101000000
+    static final OffsetDateTime SENTINEL_TIME = OffsetDateTime.of(1000, 1, 1, 0, 0, 0, 0, ZoneOffset.UTC);
+    private static final byte[] SENTINEL = "10000101000000".getBytes(StandardCharsets.US_ASCII);
+
+    private final Path directory;
+    private final long maxBytes;
+
+    //Access ordered, eldest first. Guarded by itself
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(1024, 0.75f, true);
+    private long storedBytes;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder uncacheable = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder bytesServed = new LongAdder();
+
+    /*
+        Picks up the entries already in the directory, which is created if missing
+     */
+    public GeneratedDocumentCache(Path directory, long maxBytes) throws IOException {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        Files.createDirectories(directory);
+        loadIndex();
+    }
+
+    /*
+        Writes the document for the patient with the given creation time, from the cache when possible.
+        The generator is only called on a miss, with the sentinel creation time.
+     */
+    void write(DocumentGenerator generator, OrganizationData orgData, PatientData patientData,
+               String creationTime, OutputStream out) throws IOException {
+        String key = DocumentFingerprint.compute(orgData, patientData, generator.getStreamingRenderer() != null);
+        CachedDocument cached = read(key);
+        if (cached != null) {
+            hits.increment();
+            bytesServed.add(cached.document.length);
+            cached.writeTo(out, creationTime);
+            out.flush();
+            return;
+        }
+
+        misses.increment();
+        GenerationContext context = GenerationContext.current();
+        ByteArrayOutputStream buffer = context.acquireBuffer();
+        try {
+            generator.writeDocument(orgData, patientData, SENTINEL_TIME, buffer);
+            byte[] document = buffer.toByteArray();
+            int[] offsets = findSentinel(document);
+            //Document, author and serviceEvent high always carry the creation time, serviceEvent low too without encounters
+            int expected = patientData.getFirstEncounterTime().isEmpty() ? 4 : 3;
+            CachedDocument generated = new CachedDocument(document, offsets);
+            if (offsets.length == expected)
+                store(key, generated);
+            else
+                uncacheable.increment();
+            generated.writeTo(out, creationTime);
+            out.flush();
+        } finally {
+            context.releaseBuffer(buffer);
+        }
+    }
+
+    public DocumentCacheStatistics getStatistics() {
+        long entryCount;
+        long bytes;
+        synchronized (entries) {
+            entryCount = entries.size();
+            bytes = storedBytes;
+        }
+        return new DocumentCacheStatistics(hits.sum(), misses.sum(), uncacheable.sum(), evictions.sum(), bytesServed.sum(), entryCount, bytes);
+    }
+
+    /*
+        Removes every entry from the directory
+     */
+    public void clear() throws IOException {
+        List<String> keys;
+        synchronized (entries) {
+            keys = new ArrayList<>(entries.keySet());
+            entries.clear();
+            storedBytes = 0;
+        }
+        for (String key : keys)
+            Files.deleteIfExists(entryPath(key));
+    }
+
+    private CachedDocument read(String key) throws IOException {
+        synchronized (entries) {
+            if (entries.get(key) == null)
+                return null;
+        }
+        Path path = entryPath(key);
+        try {
+            CachedDocument cached = CachedDocument.parse(Files.readAllBytes(path));
+            Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+            return cached;
+        } catch (IOException | RuntimeException e) {
+            //Evicted meanwhile, or damaged. Either way it is regenerated
+            remove(key);
+            Files.deleteIfExists(path);
+            return null;
+        }
+    }
+
+    private void store(String key, CachedDocument cached) throws IOException {
+        Path path = entryPath(key);
+        Files.createDirectories(path.getParent());
+        Path temp = path.resolveSibling(path.getFileName() + "." + Thread.currentThread().getId() + TEMP_SUFFIX);
+        byte[] entry = cached.toBytes();
+        Files.write(temp, entry);
+        Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE);
+
+        List<String> evicted = new ArrayList<>();
+        synchronized (entries) {
+            Long previous = entries.put(key, (long) entry.length);
+            storedBytes += entry.length - (previous == null ? 0 : previous);
+            Iterator<Map.Entry<String, Long>> eldest = entries.entrySet().iterator();
+            while (storedBytes > maxBytes && eldest.hasNext()) {
+                Map.Entry<String, Long> candidate = eldest.next();
+                if (candidate.getKey().equals(key))
+                    continue;
+                storedBytes -= candidate.getValue();
+                evicted.add(candidate.getKey());
+                eldest.remove();
+            }
+        }
+        for (String evictedKey : evicted) {
+            Files.deleteIfExists(entryPath(evictedKey));
+            evictions.increment();
+        }
+    }
+
+    private void remove(String key) {
+        synchronized (entries) {
+            Long size = entries.remove(key);
+            if (size != null)
+                storedBytes -= size;
+        }
+    }
+
+    private void loadIndex() throws IOException {
+        List<Path> files;
+        try (Stream<Path> walk = Files.walk(directory, 2)) {
+            files = walk.filter(Files::isRegularFile).collect(Collectors.toList());
+        }
+        List<StoredEntry> found = new ArrayList<>();
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            if (name.endsWith(TEMP_SUFFIX)) {
+                //Left behind by a crash during a store
+                Files.deleteIfExists(file);
+            } else if (name.endsWith(ENTRY_SUFFIX)) {
+                String key = name.substring(0, name.length() - ENTRY_SUFFIX.length());
+                found.add(new StoredEntry(key, Files.size(file), Files.getLastModifiedTime(file)));
+            }
+        }
+        found.sort(Comparator.comparing(entry -> entry.modified));
+        List<String> evicted = new ArrayList<>();
+        synchronized (entries) {
+            for (StoredEntry entry : found) {
+                entries.put(entry.key, entry.size);
+                storedBytes += entry.size;
+            }
+            Iterator<Map.Entry<String, Long>> eldest = entries.entrySet().iterator();
+            while (storedBytes > maxBytes && eldest.hasNext()) {
+                Map.Entry<String, Long> candidate = eldest.next();
+                storedBytes -= candidate.getValue();
+                evicted.add(candidate.getKey());
+                eldest.remove();
+            }
+        }
+        for (String key : evicted)
+            Files.deleteIfExists(entryPath(key));
+    }
+
+    private Path entryPath(String key) {
+        return directory.resolve(key.substring(0, 2)).resolve(key + ENTRY_SUFFIX);
+    }
+
+    //Offsets of every non-overlapping occurrence of the sentinel timestamp
+    static int[] findSentinel(byte[] document) {
+        List<Integer> offsets = new ArrayList<>(4);
+        outer:
+        for (int i = 0; i <= document.length - SENTINEL.length; i++) {
+            for (int j = 0; j < SENTINEL.length; j++) {
+                if (document[i + j] != SENTINEL[j])
+                    continue outer;
+            }
+            offsets.add(i);
+            i += SENTINEL.length - 1;
+        }
+        return offsets.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    private static class StoredEntry {
+        final String key;
+        final long size;
+        final FileTime modified;
+
+        StoredEntry(String key, long size, FileTime modified) {
+            this.key = key;
+            this.size = size;
+            this.modified = modified;
+        }
+    }
+
+    /*
+        Entry file: magic, offset count, offsets, document length, document
+     */
+    static class CachedDocument {
+        final byte[] document;
+        final int[] offsets;
+
+        CachedDocument(byte[] document, int[] offsets) {
+            this.document = document;
+            this.offsets = offsets;
+        }
+
+        static CachedDocument parse(byte[] entry) throws IOException {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(entry));
+            if (in.readInt() != MAGIC)
+                throw new IOException("Not a cache entry");
+            int[] offsets = new int[in.readInt()];
+            for (int i = 0; i < offsets.length; i++)
+                offsets[i] = in.readInt();
+            byte[] document = new byte[in.readInt()];
+            in.readFully(document);
+            for (int offset : offsets) {
+                if (offset < 0 || offset > document.length - SENTINEL.length)
+                    throw new IOException("Cache entry offset out of range");
+            }
+            return new CachedDocument(document, offsets);
+        }
+
+        byte[] toBytes() throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(document.length + 16 + offsets.length * 4);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(MAGIC);
+            out.writeInt(offsets.length);
+            for (int offset : offsets)
+                out.writeInt(offset);
+            out.writeInt(document.length);
+            out.write(document);
+            out.flush();
+            return bytes.toByteArray();
+        }
+
+        void writeTo(OutputStream out, String creationTime) throws IOException {
+            byte[] time = creationTime.getBytes(StandardCharsets.US_ASCII);
+            int position = 0;
+            for (int offset : offsets) {
+                out.write(document, position, offset - position);
+                out.write(time);
+                position = offset + SENTINEL.length;
+            }
+            out.write(document, position, document.length - position);
+        }
+    }
+}
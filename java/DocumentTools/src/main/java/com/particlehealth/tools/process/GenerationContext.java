@@ -0,0 +1,151 @@
+package com.particlehealth.tools.process;
+
+import org.eclipse.emf.common.util.URI;
+import org.eclipse.emf.ecore.xmi.XMLResource;
+import org.eclipse.mdht.uml.cda.CDAFactory;
+import org.eclipse.mdht.uml.cda.ClinicalDocument;
+import org.eclipse.mdht.uml.cda.DocumentRoot;
+import org.eclipse.mdht.uml.cda.util.CDAUtil;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+
+/*
+    State that DocumentGenerator and StaxDocumentRenderer keep per thread and reuse from one document to the next:
+    the timestamp scratch buffer, an output buffer that keeps its capacity, and the EMF resource documents are saved through.
+    Everything is reset between documents, nothing of one document is visible in the next.
+    Worker threads keep their context, including an output buffer of up to MAX_RETAINED_BUFFER_SIZE, for as long as they live.
+ */
+final class GenerationContext {
+
+    static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+    //A buffer grown beyond this for an unusually large document is dropped after use rather than kept
+    static final int MAX_RETAINED_BUFFER_SIZE = 16 * 1024 * 1024;
+
+    //Only for years outside 1-9999, where the pattern prints the year of era or more digits
+    private static final DateTimeFormatter TIMESTAMP_FORMAT = DateTimeFormatter.ofPattern("yyyyMMddHHmmss").withZone(ZoneOffset.UTC);
+    private static final ThreadLocal<GenerationContext> CONTEXT = ThreadLocal.withInitial(GenerationContext::new);
+
+    private final char[] timestamp = new char[14];
+
+    private ReusableOutputStream buffer;
+    private boolean bufferInUse;
+
+    //Created on first save, the resource holding it is reached through documentRoot.eResource()
+    private DocumentRoot documentRoot;
+    private boolean saving;
+
+    private GenerationContext() {
+    }
+
+    static GenerationContext current() {
+        return CONTEXT.get();
+    }
+
+    /*
+        yyyyMMddHHmmss of the time in UTC, the same as formatting it with DateTimeFormatter but without the intermediate objects
+     */
+    String formatTimestamp(OffsetDateTime time) {
+        long epochSecond = time.toEpochSecond();
+        long epochDay = Math.floorDiv(epochSecond, 86400);
+        int secondOfDay = (int) Math.floorMod(epochSecond, 86400);
+
+        //Civil date from days since 1970-01-01 in the proleptic Gregorian calendar, eras of 400 years starting 0000-03-01
+        long shifted = epochDay + 719468;
+        long era = Math.floorDiv(shifted, 146097);
+        long dayOfEra = shifted - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long monthFromMarch = (5 * dayOfYear + 2) / 153;
+        int day = (int) (dayOfYear - (153 * monthFromMarch + 2) / 5 + 1);
+        int month = (int) (monthFromMarch < 10 ? monthFromMarch + 3 : monthFromMarch - 9);
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+        if (year < 1 || year > 9999)
+            return TIMESTAMP_FORMAT.format(time);
+
+        writeDigits((int) year, 0, 4);
+        writeDigits(month, 4, 2);
+        writeDigits(day, 6, 2);
+        writeDigits(secondOfDay / 3600, 8, 2);
+        writeDigits(secondOfDay / 60 % 60, 10, 2);
+        writeDigits(secondOfDay % 60, 12, 2);
+        return new String(timestamp);
+    }
+
+    /*
+        An empty buffer for one document, to be handed back with releaseBuffer. It keeps the capacity of earlier documents,
+        so it rarely has to grow. A nested call on the same thread gets a new buffer.
+     */
+    ByteArrayOutputStream acquireBuffer() {
+        if (bufferInUse)
+            return new ReusableOutputStream(INITIAL_BUFFER_SIZE);
+        if (buffer == null)
+            buffer = new ReusableOutputStream(INITIAL_BUFFER_SIZE);
+        bufferInUse = true;
+        buffer.reset();
+        return buffer;
+    }
+
+    void releaseBuffer(ByteArrayOutputStream released) {
+        if (released != buffer)
+            return;
+        bufferInUse = false;
+        buffer.reset();
+        if (buffer.capacity() > MAX_RETAINED_BUFFER_SIZE)
+            buffer = null;
+    }
+
+    /*
+        CDAUtil.save through a resource kept for the thread, with the EMF save configuration and lookup tables cached
+        across saves. The document is attached only for the duration of the save.
+        Documents that already belong to a resource, for example loaded ones, are saved through their own.
+     */
+    void save(ClinicalDocument doc, OutputStream out) throws Exception {
+        if (doc.eResource() != null || saving) {
+            CDAUtil.save(doc, out);
+            return;
+        }
+        if (documentRoot == null)
+            createResource();
+        saving = true;
+        documentRoot.setClinicalDocument(doc);
+        try {
+            CDAUtil.save(doc, out);
+        } finally {
+            documentRoot.setClinicalDocument(null);
+            saving = false;
+        }
+    }
+
+    private void createResource() {
+        XMLResource resource = (XMLResource) CDAUtil.createResourceSet().createResource(URI.createURI("urn:hl7-org:v3"));
+        resource.getDefaultSaveOptions().put(XMLResource.OPTION_CONFIGURATION_CACHE, Boolean.TRUE);
+        resource.getDefaultSaveOptions().put(XMLResource.OPTION_USE_CACHED_LOOKUP_TABLE, new ArrayList<>());
+        //The same root CDAUtil.save builds for a document without a resource
+        documentRoot = CDAFactory.eINSTANCE.createDocumentRoot();
+        documentRoot.getXMLNSPrefixMap().put("", "urn:hl7-org:v3");
+        documentRoot.getXSISchemaLocation().put("urn:hl7-org:v3", CDAUtil.SCHEMA_NAME);
+        resource.getContents().add(documentRoot);
+    }
+
+    private void writeDigits(int value, int offset, int width) {
+        for (int i = offset + width - 1; i >= offset; i--) {
+            timestamp[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+    }
+
+    private static class ReusableOutputStream extends ByteArrayOutputStream {
+        ReusableOutputStream(int size) {
+            super(size);
+        }
+
+        int capacity() {
+            return buf.length;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.particlehealth.tools.process;
+
+import org.eclipse.emf.ecore.EStructuralFeature;
+import org.eclipse.emf.ecore.util.ExtendedMetaData;
+import org.eclipse.emf.ecore.util.FeatureMap;
+import org.eclipse.emf.ecore.util.FeatureMapUtil;
+import org.eclipse.emf.ecore.xml.type.AnyType;
+import org.eclipse.emf.ecore.xml.type.XMLTypeFactory;
+import org.eclipse.mdht.uml.cda.StrucDocText;
+
+/*
+    Builds a narrative table as table/thead/tbody/tr/td elements of the section text.
+    CDAUtil.save writes them as markup with their text escaped, the same way CDAUtil.load reads a narrative back,
+    so the saved document needs no post-processing.
+ */
+public class NarrativeTableBuilder {
+
+    private static final String CDA_NAMESPACE = "urn:hl7-org:v3";
+    private static final EStructuralFeature ID_ATTRIBUTE = ExtendedMetaData.INSTANCE.demandFeature(null, "ID", false);
+
+    private final AnyType table;
+    private final AnyType body;
+
+    public NarrativeTableBuilder(String... headers) {
+        table = XMLTypeFactory.eINSTANCE.createAnyType();
+        AnyType head = addElement(table, "thead");
+        AnyType headerRow = addElement(head, "tr");
+        for (String header : headers)
+            addCell(headerRow, "th", header);
+        body = addElement(table, "tbody");
+    }
+
+    private NarrativeTableBuilder(AnyType table, AnyType body) {
+        this.table = table;
+        this.body = body;
+    }
+
+    /*
+        Continues the first table of the text, built here or loaded from XML. Returns null if the text has no table.
+        Rows go into the tbody, or straight into the table if it has none.
+     */
+    public static NarrativeTableBuilder find(StrucDocText text) {
+        AnyType table = findElement(text.getMixed(), "table");
+        if (table == null)
+            return null;
+        AnyType body = findElement(table.getMixed(), "tbody");
+        return new NarrativeTableBuilder(table, body != null ? body : table);
+    }
+
+    /*
+        id is the row's ID attribute, referenced from entries as "#" + id. Pass null for a row without one.
+     */
+    public NarrativeTableBuilder addRow(String id, String... cells) {
+        AnyType row = addElement(body, "tr");
+        if (id != null)
+            row.getAnyAttribute().add(ID_ATTRIBUTE, id);
+        for (String cell : cells)
+            addCell(row, "td", cell);
+        return this;
+    }
+
+    /*
+        Adds the table to the text. Only needed for a new table, rows added later still show up in it.
+     */
+    public void appendTo(StrucDocText text) {
+        text.getMixed().add(feature("table"), table);
+    }
+
+    private static AnyType addElement(AnyType parent, String name) {
+        AnyType element = XMLTypeFactory.eINSTANCE.createAnyType();
+        parent.getMixed().add(feature(name), element);
+        return element;
+    }
+
+    private static void addCell(AnyType row, String name, String value) {
+        AnyType cell = addElement(row, name);
+        if (value != null)
+            FeatureMapUtil.addText(cell.getMixed(), value);
+    }
+
+    private static AnyType findElement(FeatureMap content, String name) {
+        for (FeatureMap.Entry entry : content) {
+            if (entry.getValue() instanceof AnyType && name.equals(entry.getEStructuralFeature().getName()))
+                return (AnyType) entry.getValue();
+        }
+        return null;
+    }
+
+    private static EStructuralFeature feature(String name) {
+        return ExtendedMetaData.INSTANCE.demandFeature(CDA_NAMESPACE, name, true);
+    }
+}
@@ -0,0 +1,501 @@
+package com.particlehealth.tools.process;
+
+import com.particlehealth.tools.models.*;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+    Writes the same CCD as DocumentGenerator.createCCD + CDAUtil.save straight from the model classes
+    with a streaming XML writer, without building an EMF model.
+    DocumentGenerator stays the reference implementation: any change to the document shape has to be made in both,
+    and StaxDocumentRendererEquivalenceTest has to pass.
+ */
+public class StaxDocumentRenderer {
+
+    private static final String CDA_NS = "urn:hl7-org:v3";
+    private static final String XSI_NS = "http://www.w3.org/2001/XMLSchema-instance";
+    //Matches CDAUtil.SCHEMA_NAME
+    private static final String SCHEMA_LOCATION = CDA_NS + " infrastructure/cda/CDA_SDTC.xsd";
+    private static final String LOINC = "2.16.840.1.113883.6.1";
+    private static final String NPI_ROOT = "2.16.840.1.113883.4.6";
+
+    /*
+        Values the MDHT consol init() methods fill in, the rest of the document mirrors DocumentGenerator
+     */
+    private static final String REALM_CODE = "US";
+    private static final String ENCOUNTER_ACTIVITY_TEMPLATE_ID = "2.16.840.1.113883.10.20.22.4.49";
+    private static final String ENCOUNTERS_SECTION_TEMPLATE_ID = "2.16.840.1.113883.10.20.22.2.22.1";
+    private static final String TEMPLATE_VERSION = "2015-08-01";
+
+    private static final List<PlaceholderSection> PLACEHOLDER_SECTIONS = List.of(
+            new PlaceholderSection("2.16.840.1.113883.10.20.22.2.6.1", TEMPLATE_VERSION, "48765-2",
+                    "Allergies, adverse reactions, alerts", "Allergies Section", "No Allergies Data", true),
+            new PlaceholderSection("2.16.840.1.113883.10.20.22.2.1.1", "2014-06-09", "10160-0",
+                    "History of medication use", "Medications Section", "No Medications Data", true),
+            new PlaceholderSection("2.16.840.1.113883.10.20.22.2.5.1", TEMPLATE_VERSION, "11450-4",
+                    "Problem list", "Problem Section", "No Problems Data", true),
+            new PlaceholderSection("2.16.840.1.113883.10.20.22.2.3.1", TEMPLATE_VERSION, "30954-2",
+                    "Relevant diagnostic tests and/or laboratory data", "Results Section", "No Results Data", true),
+            new PlaceholderSection("2.16.840.1.113883.10.20.22.2.17", TEMPLATE_VERSION, "29762-2",
+                    "Social History", "Social History Section", "No Social History Data", false),
+            new PlaceholderSection("2.16.840.1.113883.10.20.22.2.4.1", TEMPLATE_VERSION, "8716-3",
+                    "Vital Signs", "Vital Signs Section", "No Vital Signs Data", true));
+
+    //Organizations whose author and custodian markup is kept, the least recently used is dropped beyond this
+    private static final int MAX_CACHED_ORGANIZATIONS = 64;
+
+    private final XMLOutputFactory outputFactory = XMLOutputFactory.newInstance();
+
+    //assignedAuthor and custodian markup keyed by a snapshot of the organization's values, so a changed OrganizationData
+    //is rendered again instead of getting the markup of its old values
+    private final Map<OrganizationKey, OrganizationFragments> organizationFragments = Collections.synchronizedMap(
+            new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<OrganizationKey, OrganizationFragments> eldest) {
+                    return size() > MAX_CACHED_ORGANIZATIONS;
+                }
+            });
+
+    public void render(OrganizationData orgData, PatientData patientData, OutputStream out) throws IOException {
+        render(orgData, patientData, OffsetDateTime.now(ZoneOffset.UTC), out);
+    }
+
+    /*
+        Writes the UTF-8 encoded document to the stream. The stream is flushed but not closed.
+     */
+    public void render(OrganizationData orgData, PatientData patientData, OffsetDateTime creationTime, OutputStream out) throws IOException {
+        String creationTimestamp = formatTimestamp(creationTime);
+        OrganizationFragments orgFragments = organizationFragments.computeIfAbsent(new OrganizationKey(orgData),
+                key -> renderOrganizationFragments(orgData));
+        try {
+            XMLStreamWriter writer = outputFactory.createXMLStreamWriter(out, "UTF-8");
+            writer.writeStartDocument("UTF-8", "1.0");
+            writer.writeStartElement("ClinicalDocument");
+            writer.writeNamespace("xsi", XSI_NS);
+            writer.writeDefaultNamespace(CDA_NS);
+            writer.writeAttribute("xsi", XSI_NS, "schemaLocation", SCHEMA_LOCATION);
+
+            writeHeaders(writer, patientData.getPatientId(), creationTimestamp);
+            writeRecordTarget(writer, patientData);
+            writeAuthor(writer, out, orgFragments, creationTimestamp);
+            writeFragment(writer, out, orgFragments.custodian);
+            writeDocumentationOf(writer, patientData.getFirstEncounterTime(), creationTimestamp);
+
+            writer.writeStartElement("component");
+            writer.writeStartElement("structuredBody");
+            for (PlaceholderSection section : PLACEHOLDER_SECTIONS)
+                writePlaceholderSection(writer, section);
+            if (patientData.getEncounters() != null)
+                writeEncounters(writer, out, patientData.getEncounters());
+            writer.writeEndElement();
+            writer.writeEndElement();
+
+            writer.writeEndElement();
+            writer.writeEndDocument();
+            writer.flush();
+            writer.close();
+        } catch (XMLStreamException e) {
+            throw new IOException("Failed to render document for patient " + patientData.getPatientId(), e);
+        }
+        out.flush();
+    }
+
+    private void writeHeaders(XMLStreamWriter writer, String uuid, String creationTime) throws XMLStreamException {
+        writer.writeEmptyElement("realmCode");
+        writer.writeAttribute("code", REALM_CODE);
+        writer.writeEmptyElement("typeId");
+        writer.writeAttribute("root", "2.16.840.1.113883.1.3");
+        writer.writeAttribute("extension", "POCD_HD000040");
+        writeII(writer, "templateId", null, "2.16.840.1.113883.10.20.22.1.1", TEMPLATE_VERSION);
+        writeII(writer, "templateId", null, "2.16.840.1.113883.10.20.22.1.2", TEMPLATE_VERSION);
+        writeII(writer, "id", null, uuid, null);
+        writeCode(writer, "code", "34133-9", LOINC, "LOINC", "Summarization of Episode Note");
+        writeTextElement(writer, "title", "Patient Encounters");
+        writeValue(writer, "effectiveTime", creationTime);
+        writeCode(writer, "confidentialityCode", "N", "2.16.840.1.113883.5.25", "Confidentiality", "Normal");
+        writer.writeEmptyElement("languageCode");
+        writer.writeAttribute("code", "en-US");
+    }
+
+    private void writeRecordTarget(XMLStreamWriter writer, PatientData patientData) throws XMLStreamException {
+        writer.writeStartElement("recordTarget");
+        writer.writeStartElement("patientRole");
+        writeII(writer, "id", null, patientData.getPatientId(), null);
+        writeAddress(writer, patientData.getAddress());
+        writeTelecoms(writer, patientData.getEmail(), patientData.getTelephone(), true);
+
+        writer.writeStartElement("patient");
+        writer.writeStartElement("name");
+        writeNamePart(writer, "family", patientData.getFamilyName());
+        writeNamePart(writer, "given", patientData.getGivenName());
+        writer.writeEndElement();
+        writeCode(writer, "administrativeGenderCode", patientData.getGender(), "2.16.840.1.113883.5.1", null, null);
+        writeValue(writer, "birthTime", patientData.getDateOfBirth());
+        writeNullFlavor(writer, "raceCode", "UNK");
+        writeNullFlavor(writer, "ethnicGroupCode", "UNK");
+        writer.writeEndElement();
+
+        writer.writeEndElement();
+        writer.writeEndElement();
+    }
+
+    private OrganizationFragments renderOrganizationFragments(OrganizationData orgData) {
+        return new OrganizationFragments(renderFragment(writer -> writeAssignedAuthor(writer, orgData)),
+                renderFragment(writer -> writeCustodian(writer, orgData)));
+    }
+
+    private void writeAuthor(XMLStreamWriter writer, OutputStream out, OrganizationFragments orgFragments, String creationTime) throws XMLStreamException, IOException {
+        writer.writeStartElement("author");
+        writeII(writer, "templateId", "UNK", NPI_ROOT, null);
+        writer.writeEmptyElement("time");
+        writer.writeAttribute("xsi", XSI_NS, "type", "IVL_TS");
+        writer.writeAttribute("value", creationTime);
+        writeFragment(writer, out, orgFragments.assignedAuthor);
+        writer.writeEndElement();
+    }
+
+    private void writeAssignedAuthor(XMLStreamWriter writer, OrganizationData orgData) throws XMLStreamException {
+        writer.writeStartElement("assignedAuthor");
+        writeNullFlavor(writer, "id", "NA");
+        writeCode(writer, "code", orgData.getProviderTaxonomyCode(), "2.16.840.1.113883.6.10.1",
+                "Healthcare Provider Taxonomy (HIPAA)", null);
+        writeAddress(writer, orgData.getAddress());
+        writeTelecoms(writer, orgData.getEmail(), orgData.getTelephone(), true);
+        writer.writeStartElement("representedOrganization");
+        writeNamePart(writer, "name", orgData.getName());
+        writeAddress(writer, orgData.getAddress());
+        writer.writeEndElement();
+        writer.writeEndElement();
+    }
+
+    private void writeCustodian(XMLStreamWriter writer, OrganizationData orgData) throws XMLStreamException {
+        writer.writeStartElement("custodian");
+        writer.writeStartElement("assignedCustodian");
+        writer.writeStartElement("representedCustodianOrganization");
+        writeII(writer, "id", "UNK", NPI_ROOT, null);
+        writeNamePart(writer, "name", orgData.getName());
+        //CustodianOrganization only takes 1 TEL object, either email or telephone will be used. At least 1 is required
+        if (orgData.getEmail() == null && orgData.getTelephone() == null)
+            throw new IllegalArgumentException("Organization requires an email or telephone");
+        writeTelecoms(writer, orgData.getEmail(), orgData.getTelephone(), false);
+        writeAddress(writer, orgData.getAddress());
+        writer.writeEndElement();
+        writer.writeEndElement();
+        writer.writeEndElement();
+    }
+
+    private void writeDocumentationOf(XMLStreamWriter writer, String firstEncounterTime, String creationTime) throws XMLStreamException {
+        writer.writeStartElement("documentationOf");
+        writer.writeAttribute("typeCode", "DOC");
+        writer.writeStartElement("serviceEvent");
+        writer.writeAttribute("classCode", "PCPR");
+        writer.writeStartElement("effectiveTime");
+        writeValue(writer, "low", firstEncounterTime.isEmpty() ? creationTime : firstEncounterTime);
+        writeValue(writer, "high", creationTime);
+        writer.writeEndElement();
+        writer.writeEndElement();
+        writer.writeEndElement();
+    }
+
+    private void writePlaceholderSection(XMLStreamWriter writer, PlaceholderSection section) throws XMLStreamException {
+        writer.writeStartElement("component");
+        writer.writeStartElement("section");
+        if (section.nullFlavor)
+            writer.writeAttribute("nullFlavor", "NI");
+        writeII(writer, "templateId", null, section.templateId, section.templateVersion);
+        writeCode(writer, "code", section.code, LOINC, "LOINC", section.displayName);
+        writeTextElement(writer, "title", section.title);
+        writeTextElement(writer, "text", section.text);
+        writer.writeEndElement();
+        writer.writeEndElement();
+    }
+
+    private void writeEncounters(XMLStreamWriter writer, OutputStream out, List<PatientEncounter> encounters) throws XMLStreamException, IOException {
+        writer.writeStartElement("component");
+        writer.writeStartElement("section");
+        writeII(writer, "templateId", null, ENCOUNTERS_SECTION_TEMPLATE_ID, TEMPLATE_VERSION);
+        writeCode(writer, "code", "46240-8", LOINC, "LOINC", "Encounters");
+        writeTextElement(writer, "title", "Encounters Section");
+
+        writer.writeStartElement("text");
+        writer.writeStartElement("table");
+        writer.writeStartElement("thead");
+        writer.writeStartElement("tr");
+        writeTextElement(writer, "th", "Doctor");
+        writeTextElement(writer, "th", "Stage");
+        writeTextElement(writer, "th", "Encounter Date");
+        writer.writeEndElement();
+        writer.writeEndElement();
+        writer.writeStartElement("tbody");
+        int count = 1;
+        for (PatientEncounter patientEncounter : encounters) {
+            writer.writeStartElement("tr");
+            writer.writeAttribute("ID", "Encounter" + count);
+            writeTextElement(writer, "td", patientEncounter.getPerformer().getGivenName() + patientEncounter.getPerformer().getFamilyName());
+            writeTextElement(writer, "td", String.valueOf(patientEncounter.getStage()));
+            writeTextElement(writer, "td", String.valueOf(patientEncounter.getEffectiveTime()));
+            writer.writeEndElement();
+            count++;
+        }
+        writer.writeEndElement();
+        writer.writeEndElement();
+        writer.writeEndElement();
+
+        //Encounters mostly share a few performers, each distinct performer is rendered once per document
+        Map<PerformerKey, byte[]> performerFragments = new HashMap<>();
+        count = 1;
+        for (PatientEncounter patientEncounter : encounters)
+            writeEncounterActivity(writer, out, patientEncounter, count++, performerFragments);
+
+        writer.writeEndElement();
+        writer.writeEndElement();
+    }
+
+    private void writeEncounterActivity(XMLStreamWriter writer, OutputStream out, PatientEncounter enc, int count,
+                                        Map<PerformerKey, byte[]> performerFragments) throws XMLStreamException, IOException {
+        writer.writeStartElement("entry");
+        writer.writeStartElement("encounter");
+        writer.writeAttribute("classCode", "ENC");
+        writer.writeAttribute("moodCode", "EVN");
+        writeII(writer, "templateId", null, ENCOUNTER_ACTIVITY_TEMPLATE_ID, TEMPLATE_VERSION);
+        writeII(writer, "id", null, enc.getId(), null);
+        writer.writeStartElement("code");
+        writeOptionalAttribute(writer, "code", enc.getEncounterTypeCode());
+        writer.writeAttribute("codeSystem", "2.16.840.1.113883.6.12");
+        writer.writeStartElement("originalText");
+        writeValue(writer, "reference", "#Encounter" + count);
+        writer.writeEndElement();
+        writer.writeEndElement();
+        writeValue(writer, "effectiveTime", formatTimestamp(enc.getEffectiveTime()));
+        Performer encounterPerformer = enc.getPerformer();
+        PerformerKey performerKey = new PerformerKey(encounterPerformer);
+        byte[] performer = performerFragments.get(performerKey);
+        if (performer == null) {
+            performer = renderFragment(fragmentWriter -> writePerformer(fragmentWriter, encounterPerformer));
+            performerFragments.put(performerKey, performer);
+        }
+        writeFragment(writer, out, performer);
+        writer.writeEndElement();
+        writer.writeEndElement();
+    }
+
+    private void writePerformer(XMLStreamWriter writer, Performer performer) throws XMLStreamException {
+        writer.writeStartElement("performer");
+        writer.writeStartElement("assignedEntity");
+        if (performer.getNpi() != null)
+            writeII(writer, "id", null, NPI_ROOT, performer.getNpi());
+        else
+            writeII(writer, "id", "UNK", NPI_ROOT, null);
+        String taxonomyCode = performer.getProviderTaxonomyCode();
+        if (taxonomyCode != null && taxonomyCode.isEmpty())
+            writeCode(writer, "code", taxonomyCode, "2.16.840.1.114222.4.11.1066", null, null);
+        if (performer.getAddress() != null)
+            writeAddress(writer, performer.getAddress());
+        writer.writeEndElement();
+        writer.writeEndElement();
+    }
+
+    private byte[] renderFragment(FragmentRenderer renderer) {
+        ByteArrayOutputStream fragment = new ByteArrayOutputStream(512);
+        try {
+            XMLStreamWriter writer = outputFactory.createXMLStreamWriter(fragment, "UTF-8");
+            renderer.render(writer);
+            writer.flush();
+            writer.close();
+        } catch (XMLStreamException e) {
+            throw new IllegalStateException("Failed to render document fragment", e);
+        }
+        return fragment.toByteArray();
+    }
+
+    /*
+        Copies pre-rendered markup into the document. Writing empty text makes the writer close
+        a start tag it still holds open, so the markup lands inside the current element.
+     */
+    private void writeFragment(XMLStreamWriter writer, OutputStream out, byte[] fragment) throws XMLStreamException, IOException {
+        writer.writeCharacters("");
+        writer.flush();
+        out.write(fragment);
+    }
+
+    private void writeAddress(XMLStreamWriter writer, Address address) throws XMLStreamException {
+        writer.writeStartElement("addr");
+        writeNamePart(writer, "country", "USA");
+        writeNamePart(writer, "state", address.getAddressState());
+        writeNamePart(writer, "city", address.getAddressCity());
+        writeNamePart(writer, "postalCode", address.getPostalCode());
+        List<String> addressLines = address.getAddressLines();
+        if (addressLines != null && addressLines.size() > 0)
+            writeNamePart(writer, "streetAddressLine", addressLines.get(0));
+        if (addressLines != null && addressLines.size() > 1)
+            writeNamePart(writer, "streetAddressLine", addressLines.get(1));
+        writer.writeEndElement();
+    }
+
+    private void writeTelecoms(XMLStreamWriter writer, String email, String telephone, boolean all) throws XMLStreamException {
+        if (email != null) {
+            writeTelecom(writer, email, "H");
+            if (!all)
+                return;
+        }
+        if (telephone != null)
+            writeTelecom(writer, telephone, "HP");
+    }
+
+    private void writeTelecom(XMLStreamWriter writer, String value, String use) throws XMLStreamException {
+        writer.writeEmptyElement("telecom");
+        writer.writeAttribute("value", value);
+        writer.writeAttribute("use", use);
+    }
+
+    private void writeII(XMLStreamWriter writer, String element, String nullFlavor, String root, String extension) throws XMLStreamException {
+        writer.writeEmptyElement(element);
+        writeOptionalAttribute(writer, "nullFlavor", nullFlavor);
+        writeOptionalAttribute(writer, "root", root);
+        writeOptionalAttribute(writer, "extension", extension);
+    }
+
+    private void writeCode(XMLStreamWriter writer, String element, String code, String codeSystem, String codeSystemName, String displayName) throws XMLStreamException {
+        writer.writeEmptyElement(element);
+        writeOptionalAttribute(writer, "code", code);
+        writeOptionalAttribute(writer, "codeSystem", codeSystem);
+        writeOptionalAttribute(writer, "codeSystemName", codeSystemName);
+        writeOptionalAttribute(writer, "displayName", displayName);
+    }
+
+    private void writeValue(XMLStreamWriter writer, String element, String value) throws XMLStreamException {
+        writer.writeEmptyElement(element);
+        writeOptionalAttribute(writer, "value", value);
+    }
+
+    private void writeNullFlavor(XMLStreamWriter writer, String element, String nullFlavor) throws XMLStreamException {
+        writer.writeEmptyElement(element);
+        writer.writeAttribute("nullFlavor", nullFlavor);
+    }
+
+    /*
+        MDHT rejects null name and address parts, fail the same way
+     */
+    private void writeNamePart(XMLStreamWriter writer, String element, String value) throws XMLStreamException {
+        if (value == null)
+            throw new IllegalArgumentException(element + " is null");
+        writeTextElement(writer, element, value);
+    }
+
+    private void writeTextElement(XMLStreamWriter writer, String element, String text) throws XMLStreamException {
+        writer.writeStartElement(element);
+        writer.writeCharacters(text);
+        writer.writeEndElement();
+    }
+
+    private void writeOptionalAttribute(XMLStreamWriter writer, String name, String value) throws XMLStreamException {
+        if (value != null)
+            writer.writeAttribute(name, value);
+    }
+
+    private static String formatTimestamp(OffsetDateTime time) {
+        return GenerationContext.current().formatTimestamp(time);
+    }
+
+    @FunctionalInterface
+    private interface FragmentRenderer {
+        void render(XMLStreamWriter writer) throws XMLStreamException;
+    }
+
+    private static class OrganizationFragments {
+        final byte[] assignedAuthor;
+        final byte[] custodian;
+
+        OrganizationFragments(byte[] assignedAuthor, byte[] custodian) {
+            this.assignedAuthor = assignedAuthor;
+            this.custodian = custodian;
+        }
+    }
+
+    /*
+        The values of an organization that end up in its author and custodian markup, copied when the key is made
+     */
+    private static final class OrganizationKey {
+        private final List<Object> values;
+
+        OrganizationKey(OrganizationData orgData) {
+            values = Arrays.asList(orgData.getName(), orgData.getNpi(), orgData.getTelephone(), orgData.getEmail(),
+                    orgData.getProviderTaxonomyCode(), addressValues(orgData.getAddress()));
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof OrganizationKey && values.equals(((OrganizationKey) other).values);
+        }
+
+        @Override
+        public int hashCode() {
+            return values.hashCode();
+        }
+    }
+
+    /*
+        The values of a performer that end up in its markup, copied when the key is made
+     */
+    private static final class PerformerKey {
+        private final List<Object> values;
+
+        PerformerKey(Performer performer) {
+            values = Arrays.asList(performer.getFamilyName(), performer.getGivenName(), performer.getNpi(),
+                    performer.getProviderTaxonomyCode(), addressValues(performer.getAddress()));
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof PerformerKey && values.equals(((PerformerKey) other).values);
+        }
+
+        @Override
+        public int hashCode() {
+            return values.hashCode();
+        }
+    }
+
+    private static List<Object> addressValues(Address address) {
+        if (address == null)
+            return null;
+        List<String> lines = address.getAddressLines();
+        return Arrays.asList(address.getPostalCode(), lines == null ? null : new ArrayList<>(lines),
+                address.getAddressState(), address.getAddressCity());
+    }
+
+    private static class PlaceholderSection {
+        final String templateId;
+        final String templateVersion;
+        final String code;
+        final String displayName;
+        final String title;
+        final String text;
+        final boolean nullFlavor;
+
+        PlaceholderSection(String templateId, String templateVersion, String code, String displayName,
+                           String title, String text, boolean nullFlavor) {
+            this.templateId = templateId;
+            this.templateVersion = templateVersion;
+            this.code = code;
+            this.displayName = displayName;
+            this.title = title;
+            this.text = text;
+            this.nullFlavor = nullFlavor;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.particlehealth.tools.validation;
+
+import lombok.Getter;
+import org.eclipse.emf.common.util.Diagnostic;
+import org.eclipse.mdht.uml.cda.util.ValidationResult;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/*
+    Diagnostics for one document. Only the messages are kept so the report does not hold on to the document model.
+    A document left out by sampling has no tier and no diagnostics.
+ */
+@Getter
+public class ValidationReport {
+
+    final String documentId;
+    final ValidationTier tier;
+    final List<String> errors;
+    final List<String> warnings;
+    final int infoCount;
+    //Set when the validator itself failed, for example on a document that is not well-formed XML
+    final Exception failure;
+    final long durationNanos;
+
+    ValidationReport(String documentId, ValidationTier tier, ValidationResult result, Exception failure, long durationNanos) {
+        this.documentId = documentId;
+        this.tier = tier;
+        this.errors = result == null ? Collections.emptyList() : messages(result.getErrorDiagnostics());
+        this.warnings = result == null ? Collections.emptyList() : messages(result.getWarningDiagnostics());
+        this.infoCount = result == null ? 0 : result.getInfoDiagnostics().size();
+        this.failure = failure;
+        this.durationNanos = durationNanos;
+    }
+
+    static ValidationReport skipped(String documentId) {
+        return new ValidationReport(documentId, null, null, null, 0);
+    }
+
+    public boolean isSampled() {
+        return tier != null;
+    }
+
+    public boolean isValid() {
+        return failure == null && errors.isEmpty();
+    }
+
+    private static List<String> messages(List<Diagnostic> diagnostics) {
+        List<String> messages = new ArrayList<>(diagnostics.size());
+        for (Diagnostic diagnostic : diagnostics)
+            messages.add(diagnostic.getMessage());
+        return messages;
+    }
+
+    @Override
+    public String toString() {
+        if (!isSampled())
+            return documentId + ": not sampled";
+        if (failure != null)
+            return documentId + ": " + tier + " validation failed: " + failure;
+        return String.format("%s: %s %s, %d errors, %d warnings, %dms", documentId, tier, isValid() ? "valid" : "invalid",
+                errors.size(), warnings.size(), durationNanos / 1_000_000);
+    }
+}
@@ -0,0 +1,293 @@
+package com.particlehealth.tools.validation;
+
+import lombok.Getter;
+import lombok.Setter;
+import org.eclipse.mdht.uml.cda.ClinicalDocument;
+import org.eclipse.mdht.uml.cda.util.CDAUtil;
+import org.eclipse.mdht.uml.cda.util.ValidationResult;
+import org.openhealthtools.mdht.uml.cda.consol.ConsolFactory;
+import org.openhealthtools.mdht.uml.cda.consol.ConsolPackage;
+import org.w3c.dom.Document;
+import org.xml.sax.helpers.DefaultHandler;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+    Validates generated documents on its own bounded worker pool so validation can overlap with generation.
+    The MDHT schema and consolidated CDA packages are loaded and exercised once per JVM, before the first document.
+    At most maxQueued documents are waiting or being validated, submit blocks once that many are outstanding.
+ */
+public class ValidationService implements AutoCloseable {
+
+    private static final Object INIT_LOCK = new Object();
+    private static volatile boolean initialized;
+
+    private static final ThreadLocal<DocumentBuilder> DOCUMENT_BUILDER = ThreadLocal.withInitial(() -> {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        try {
+            DocumentBuilder builder = factory.newDocumentBuilder();
+            //Parse errors end up in the report, not on stderr
+            builder.setErrorHandler(new DefaultHandler());
+            return builder;
+        } catch (ParserConfigurationException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private final ValidationTier tier;
+    private final double samplePercent;
+    private final ExecutorService executor;
+    private final int maxQueued;
+    private final Semaphore permits;
+
+    //Reports of invalid documents beyond this many are counted but not kept
+    @Getter @Setter
+    private int maxRetainedReports = 1000;
+
+    private final AtomicLong sampleCounter = new AtomicLong();
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+    private final LongAdder valid = new LongAdder();
+    private final LongAdder invalid = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder errorCount = new LongAdder();
+    private final LongAdder warningCount = new LongAdder();
+    private final LongAdder validationNanos = new LongAdder();
+    private final Map<String, LongAdder> errorCounts = new ConcurrentHashMap<>();
+    private final List<ValidationReport> invalidReports = Collections.synchronizedList(new ArrayList<>());
+
+    public ValidationService(ValidationTier tier) {
+        this(tier, 100, Runtime.getRuntime().availableProcessors());
+    }
+
+    public ValidationService(ValidationTier tier, double samplePercent, int workers) {
+        this(tier, samplePercent, workers, workers * 4);
+    }
+
+    /*
+        samplePercent is the share of submitted documents that is validated, from 0 to 100.
+        Sampling is spread evenly over the submission order, so 5 validates every twentieth document.
+     */
+    public ValidationService(ValidationTier tier, double samplePercent, int workers, int maxQueued) {
+        if (samplePercent < 0 || samplePercent > 100)
+            throw new IllegalArgumentException("samplePercent must be between 0 and 100");
+        if (workers < 1)
+            throw new IllegalArgumentException("workers must be at least 1");
+        if (maxQueued < workers)
+            throw new IllegalArgumentException("maxQueued must be at least the number of workers");
+        this.tier = tier;
+        this.samplePercent = samplePercent;
+        this.maxQueued = maxQueued;
+        this.permits = new Semaphore(maxQueued);
+        this.executor = Executors.newFixedThreadPool(workers, new WorkerThreadFactory());
+        initialize();
+    }
+
+    /*
+        Loads the consolidated CDA package and the CDA schema and runs both tiers once on an empty document,
+        so the first real document does not pay for it. CDAUtil loads its schema lazily without locking,
+        doing it here once also keeps the workers from racing on it.
+     */
+    public static void initialize() {
+        if (initialized)
+            return;
+        synchronized (INIT_LOCK) {
+            if (initialized)
+                return;
+            ConsolPackage.eINSTANCE.eClass();
+            ClinicalDocument warmUpDocument = ConsolFactory.eINSTANCE.createContinuityOfCareDocument2().init();
+            try {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                CDAUtil.save(warmUpDocument, out);
+                validateBytes(out.toByteArray(), ValidationTier.FULL, new ValidationResult());
+            } catch (Exception e) {
+                throw new IllegalStateException("Failed to initialize the CDA validator", e);
+            }
+            initialized = true;
+        }
+    }
+
+    /*
+        Validates a serialized document on the worker pool, exactly as it is shipped
+     */
+    public CompletableFuture<ValidationReport> submit(String documentId, byte[] document) throws InterruptedException {
+        return submit(documentId, result -> validateBytes(document, tier, result));
+    }
+
+    /*
+        Validates a document model on the worker pool. Validation fills in default values on the model,
+        so the caller must not touch the document again until the returned future completes.
+     */
+    public CompletableFuture<ValidationReport> submit(String documentId, ClinicalDocument document) throws InterruptedException {
+        return submit(documentId, result -> validateModel(document, tier, result));
+    }
+
+    /*
+        Validates on the calling thread, regardless of sampling
+     */
+    public ValidationReport validate(String documentId, byte[] document) {
+        submitted.increment();
+        return run(documentId, result -> validateBytes(document, tier, result));
+    }
+
+    public ValidationReport validate(String documentId, ClinicalDocument document) {
+        submitted.increment();
+        return run(documentId, result -> validateModel(document, tier, result));
+    }
+
+    /*
+        Blocks until every document submitted so far has been validated
+     */
+    public void awaitCompletion() throws InterruptedException {
+        permits.acquire(maxQueued);
+        permits.release(maxQueued);
+    }
+
+    public ValidationSummary getSummary() {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        errorCounts.entrySet().stream()
+                .sorted((a, b) -> Long.compare(b.getValue().sum(), a.getValue().sum()))
+                .forEach(e -> counts.put(e.getKey(), e.getValue().sum()));
+        List<ValidationReport> reports;
+        synchronized (invalidReports) {
+            reports = new ArrayList<>(invalidReports);
+        }
+        return new ValidationSummary(submitted.sum(), skipped.sum(), valid.sum(), invalid.sum(), failed.sum(),
+                errorCount.sum(), warningCount.sum(), validationNanos.sum(), counts, reports);
+    }
+
+    /*
+        Waits for outstanding validations, then stops the workers
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(1, TimeUnit.MINUTES))
+                executor.shutdownNow();
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private CompletableFuture<ValidationReport> submit(String documentId, Validation validation) throws InterruptedException {
+        submitted.increment();
+        if (!isSampled()) {
+            skipped.increment();
+            return CompletableFuture.completedFuture(ValidationReport.skipped(documentId));
+        }
+        permits.acquire();
+        CompletableFuture<ValidationReport> future = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                try {
+                    future.complete(run(documentId, validation));
+                } catch (Throwable t) {
+                    future.completeExceptionally(t);
+                } finally {
+                    permits.release();
+                }
+            });
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+        return future;
+    }
+
+    private boolean isSampled() {
+        if (samplePercent >= 100)
+            return true;
+        long n = sampleCounter.getAndIncrement();
+        return (long) ((n + 1) * samplePercent / 100) > (long) (n * samplePercent / 100);
+    }
+
+    private ValidationReport run(String documentId, Validation validation) {
+        ValidationResult result = new ValidationResult();
+        Exception failure = null;
+        long start = System.nanoTime();
+        try {
+            validation.validate(result);
+        } catch (Exception e) {
+            failure = e;
+        }
+        ValidationReport report = new ValidationReport(documentId, tier, result, failure, System.nanoTime() - start);
+        record(report);
+        return report;
+    }
+
+    private void record(ValidationReport report) {
+        validationNanos.add(report.getDurationNanos());
+        errorCount.add(report.getErrors().size());
+        warningCount.add(report.getWarnings().size());
+        if (report.getFailure() != null)
+            failed.increment();
+        else if (report.isValid())
+            valid.increment();
+        else
+            invalid.increment();
+        if (report.isValid())
+            return;
+
+        //A message repeated within one document is counted once
+        report.getErrors().stream().distinct()
+                .forEach(message -> errorCounts.computeIfAbsent(message, m -> new LongAdder()).increment());
+        synchronized (invalidReports) {
+            if (invalidReports.size() < maxRetainedReports)
+                invalidReports.add(report);
+        }
+    }
+
+    private static void validateBytes(byte[] document, ValidationTier tier, ValidationResult result) throws Exception {
+        Document dom = DOCUMENT_BUILDER.get().parse(new ByteArrayInputStream(document));
+        CDAUtil.performSchemaValidation(dom, result);
+        //Loading runs the EMF constraint validation on the loaded model
+        if (tier == ValidationTier.FULL)
+            CDAUtil.load(dom, result);
+    }
+
+    private static void validateModel(ClinicalDocument document, ValidationTier tier, ValidationResult result) {
+        CDAUtil.performSchemaValidation(document, result);
+        if (tier == ValidationTier.FULL)
+            CDAUtil.validate(document, result);
+    }
+
+    @FunctionalInterface
+    private interface Validation {
+        void validate(ValidationResult result) throws Exception;
+    }
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+        private static final AtomicInteger POOL_NUMBER = new AtomicInteger(1);
+        private final int poolNumber = POOL_NUMBER.getAndIncrement();
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "ccd-validation-" + poolNumber + "-worker-" + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.particlehealth.tools.validation;
+
+import lombok.Getter;
+
+import java.util.List;
+import java.util.Map;
+
+/*
+    Snapshot of everything a ValidationService has checked so far.
+    errorCounts counts documents per distinct error message, invalidReports holds the reports of the first invalid documents.
+ */
+@Getter
+public class ValidationSummary {
+
+    final long submitted;
+    final long skipped;
+    final long valid;
+    final long invalid;
+    final long failed;
+    final long errorCount;
+    final long warningCount;
+    final long validationNanos;
+    final Map<String, Long> errorCounts;
+    final List<ValidationReport> invalidReports;
+
+    ValidationSummary(long submitted, long skipped, long valid, long invalid, long failed, long errorCount, long warningCount,
+                      long validationNanos, Map<String, Long> errorCounts, List<ValidationReport> invalidReports) {
+        this.submitted = submitted;
+        this.skipped = skipped;
+        this.valid = valid;
+        this.invalid = invalid;
+        this.failed = failed;
+        this.errorCount = errorCount;
+        this.warningCount = warningCount;
+        this.validationNanos = validationNanos;
+        this.errorCounts = errorCounts;
+        this.invalidReports = invalidReports;
+    }
+
+    public long getValidated() {
+        return valid + invalid + failed;
+    }
+
+    public double getAverageMillis() {
+        long validated = getValidated();
+        return validated == 0 ? 0 : validationNanos / 1_000_000d / validated;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("submitted=%d skipped=%d valid=%d invalid=%d failed=%d errors=%d warnings=%d avg=%.1fms",
+                submitted, skipped, valid, invalid, failed, errorCount, warningCount, getAverageMillis());
+    }
+}
@@ -0,0 +1,8 @@
+package com.particlehealth.tools.validation;
+
+public enum ValidationTier {
+    //XML schema validation of the serialized document only
+    SCHEMA,
+    //Schema validation plus the consolidated CDA template constraints
+    FULL
+}
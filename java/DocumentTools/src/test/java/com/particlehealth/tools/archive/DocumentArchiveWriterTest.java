@@ -0,0 +1,108 @@
+package com.particlehealth.tools.archive;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DocumentArchiveWriterTest {
+
+    @TempDir
+    Path directory;
+
+    private static byte[] document(String patientId) {
+        return ("<ClinicalDocument><id root=\"" + patientId + "\"/></ClinicalDocument>").getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void documentsCanBeReadBackThroughTheIndex() throws IOException {
+        Path archive = directory.resolve("documents.gz");
+        try (DocumentArchiveWriter writer = new DocumentArchiveWriter(archive)) {
+            for (int i = 0; i < 5; i++)
+                writer.write("p" + i, document("p" + i));
+            writer.write("p2", document("p2-again"));
+            assertEquals(6, writer.getDocumentCount());
+        }
+        try (DocumentArchiveReader reader = new DocumentArchiveReader(archive)) {
+            assertEquals(5, reader.getEntries().size());
+            assertArrayEquals(document("p4"), reader.read("p4"));
+            assertArrayEquals(document("p2-again"), reader.read("p2"));
+            assertNull(reader.read("missing"));
+        }
+    }
+
+    @Test
+    void indexLinesAreWrittenWithTheirDocumentBeforeClose() throws IOException {
+        Path archive = directory.resolve("documents.gz");
+        DocumentArchiveWriter writer = new DocumentArchiveWriter(archive, DocumentArchiveWriter.indexPath(archive), Deflater.BEST_SPEED, 1000);
+        try {
+            writer.write("p0", document("p0"));
+            writer.write("p1", document("p1"));
+            List<String> lines = Files.readAllLines(DocumentArchiveWriter.indexPath(archive));
+            assertEquals(3, lines.size());
+            assertEquals(DocumentArchiveWriter.INDEX_HEADER, lines.get(0));
+            //Readable while the writer is still open, as after a crash
+            try (DocumentArchiveReader reader = new DocumentArchiveReader(archive)) {
+                assertArrayEquals(document("p1"), reader.read("p1"));
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    @Test
+    void rejectsInvalidPatientIdsAndSyncIntervals() throws IOException {
+        Path archive = directory.resolve("documents.gz");
+        try (DocumentArchiveWriter writer = new DocumentArchiveWriter(archive)) {
+            assertThrows(IllegalArgumentException.class, () -> writer.write("p\t1", document("p1")));
+            assertThrows(IllegalArgumentException.class, () -> writer.write(null, document("p1")));
+        }
+        assertThrows(IllegalArgumentException.class,
+                () -> new DocumentArchiveWriter(archive, DocumentArchiveWriter.indexPath(archive), Deflater.BEST_SPEED, 0));
+    }
+
+    @Test
+    void closesTheArchiveWhenTheIndexCanNotBeCreated() throws IOException {
+        Path archive = directory.resolve("documents.gz");
+        Path index = Files.createDirectory(directory.resolve("index"));
+        List<FileChannel> opened = new ArrayList<>();
+        DocumentArchiveWriter.ChannelOpener opener = path -> {
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            opened.add(channel);
+            return channel;
+        };
+        assertThrows(IOException.class, () -> new DocumentArchiveWriter(archive, index, Deflater.BEST_SPEED, 1, opener));
+        assertEquals(1, opened.size());
+        assertFalse(opened.get(0).isOpen());
+    }
+
+    @Test
+    void closesBothChannelsWhenTheIndexHeaderCanNotBeWritten() throws IOException {
+        Path archive = directory.resolve("documents.gz");
+        Path index = Files.createFile(directory.resolve("documents.gz.idx"));
+        List<FileChannel> opened = new ArrayList<>();
+        DocumentArchiveWriter.ChannelOpener opener = path -> {
+            //The index is opened read only, so writing its header fails
+            FileChannel channel = path.equals(index)
+                    ? FileChannel.open(path, StandardOpenOption.READ)
+                    : FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            opened.add(channel);
+            return channel;
+        };
+        assertThrows(NonWritableChannelException.class, () -> new DocumentArchiveWriter(archive, index, Deflater.BEST_SPEED, 1, opener));
+        assertEquals(2, opened.size());
+        assertFalse(opened.get(0).isOpen());
+        assertFalse(opened.get(1).isOpen());
+    }
+}
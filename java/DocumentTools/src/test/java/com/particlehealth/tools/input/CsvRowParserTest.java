@@ -0,0 +1,95 @@
+package com.particlehealth.tools.input;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CsvRowParserTest {
+
+    private static CsvRowParser parser(String header) {
+        byte[] bytes = header.getBytes(StandardCharsets.UTF_8);
+        return new CsvRowParser(bytes, bytes.length);
+    }
+
+    private static String[] parse(CsvRowParser parser, String record) throws Exception {
+        byte[] bytes = record.getBytes(StandardCharsets.UTF_8);
+        return parser.parse(bytes, bytes.length);
+    }
+
+    @Test
+    void mapsFieldsToColumnsByHeaderName() throws Exception {
+        String[] values = parse(parser("givenName,patientId,familyName"), "Ada,p1,Lovelace");
+        assertEquals("p1", values[Column.PATIENT_ID.ordinal()]);
+        assertEquals("Ada", values[Column.GIVEN_NAME.ordinal()]);
+        assertEquals("Lovelace", values[Column.FAMILY_NAME.ordinal()]);
+        assertNull(values[Column.EMAIL.ordinal()]);
+    }
+
+    @Test
+    void ignoresUnknownColumns() throws Exception {
+        String[] values = parse(parser("patientId,unused,email"), "p1,whatever,a@b.c");
+        assertEquals("p1", values[Column.PATIENT_ID.ordinal()]);
+        assertEquals("a@b.c", values[Column.EMAIL.ordinal()]);
+    }
+
+    @Test
+    void readsQuotedFieldsWithCommasQuotesAndLineBreaks() throws Exception {
+        String[] values = parse(parser("patientId,addressLine1,familyName"), "p1,\"1, Main \"\"St\"\"\",\"O'Conner\r\nJr\"");
+        assertEquals("1, Main \"St\"", values[Column.ADDRESS_LINE_1.ordinal()]);
+        assertEquals("O'Conner\r\nJr", values[Column.FAMILY_NAME.ordinal()]);
+    }
+
+    @Test
+    void readsEmptyFieldsAsMissing() throws Exception {
+        String[] values = parse(parser("patientId,givenName,familyName,email"), "p1,\"\",,");
+        assertEquals("p1", values[Column.PATIENT_ID.ordinal()]);
+        assertNull(values[Column.GIVEN_NAME.ordinal()]);
+        assertNull(values[Column.FAMILY_NAME.ordinal()]);
+        assertNull(values[Column.EMAIL.ordinal()]);
+    }
+
+    @Test
+    void keepsWhitespaceAndMultiByteCharacters() throws Exception {
+        String[] values = parse(parser("patientId,givenName"), "p1, Zoë ");
+        assertEquals(" Zoë ", values[Column.GIVEN_NAME.ordinal()]);
+    }
+
+    @Test
+    void readsQuotedFieldsLongerThanTheBuffer() throws Exception {
+        String longName = "x".repeat(1000);
+        String[] values = parse(parser("patientId,familyName"), "p1,\"" + longName + "\"");
+        assertEquals(longName, values[Column.FAMILY_NAME.ordinal()]);
+    }
+
+    @Test
+    void acceptsRecordsShorterThanTheHeader() throws Exception {
+        String[] values = parse(parser("patientId,givenName,familyName"), "p1");
+        assertEquals("p1", values[Column.PATIENT_ID.ordinal()]);
+        assertNull(values[Column.GIVEN_NAME.ordinal()]);
+    }
+
+    @Test
+    void rejectsRecordsLongerThanTheHeader() {
+        CsvRowParser parser = parser("patientId,givenName");
+        assertThrows(IllegalArgumentException.class, () -> parse(parser, "p1,Ada,extra"));
+    }
+
+    @Test
+    void rejectsUnterminatedQuotes() {
+        CsvRowParser parser = parser("patientId,givenName");
+        assertThrows(IllegalArgumentException.class, () -> parse(parser, "p1,\"Ada"));
+    }
+
+    @Test
+    void rejectsCharactersAfterAClosingQuote() {
+        CsvRowParser parser = parser("patientId,givenName");
+        assertThrows(IllegalArgumentException.class, () -> parse(parser, "p1,\"Ada\"x"));
+    }
+
+    @Test
+    void requiresAPatientIdColumn() {
+        assertThrows(IllegalArgumentException.class, () -> parser("givenName,familyName"));
+    }
+}
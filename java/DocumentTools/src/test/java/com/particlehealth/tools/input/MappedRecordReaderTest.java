@@ -0,0 +1,83 @@
+package com.particlehealth.tools.input;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MappedRecordReaderTest {
+
+    @TempDir
+    Path directory;
+
+    private List<String> records(byte[] content, boolean quoted, int windowSize) throws IOException {
+        Path file = directory.resolve("records.csv");
+        Files.write(file, content);
+        List<String> records = new ArrayList<>();
+        try (MappedRecordReader reader = new MappedRecordReader(file, quoted, windowSize)) {
+            while (reader.next())
+                records.add(new String(reader.getRecord(), 0, reader.getLength(), StandardCharsets.UTF_8));
+            assertEquals(records.size(), reader.getRecordNumber());
+            assertEquals(reader.getSize(), reader.getPosition());
+        }
+        return records;
+    }
+
+    private List<String> records(String content, boolean quoted, int windowSize) throws IOException {
+        return records(content.getBytes(StandardCharsets.UTF_8), quoted, windowSize);
+    }
+
+    @Test
+    void splitsOnLineBreaksAndDropsEmptyLines() throws IOException {
+        assertEquals(List.of("a,b", "c,d", "e"), records("a,b\r\n\nc,d\n\r\ne", false, 1024));
+    }
+
+    @Test
+    void keepsQuotedLineBreaksInTheRecord() throws IOException {
+        assertEquals(List.of("1,\"two\nlines\"", "2,\"a \"\"q\"\" b\""), records("1,\"two\nlines\"\n2,\"a \"\"q\"\" b\"\n", true, 1024));
+    }
+
+    @Test
+    void splitsQuotedLineBreaksWhenNotQuoted() throws IOException {
+        assertEquals(List.of("{\"a\":\"x", "y\"}"), records("{\"a\":\"x\ny\"}", false, 1024));
+    }
+
+    @Test
+    void readsRecordsAcrossWindowBoundaries() throws IOException {
+        StringBuilder content = new StringBuilder();
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            String record = "p" + i + ",\"" + "v".repeat(i % 17) + "\n" + i + "\"";
+            expected.add(record);
+            content.append(record).append(i % 3 == 0 ? "\r\n" : "\n");
+        }
+        for (int windowSize : new int[]{1, 7, 64, 4096})
+            assertEquals(expected, records(content.toString(), true, windowSize), "window " + windowSize);
+    }
+
+    @Test
+    void growsTheRecordBufferForLongRecords() throws IOException {
+        String longRecord = "x".repeat(20000);
+        assertEquals(List.of(longRecord, "y"), records(longRecord + "\ny", false, 4096));
+    }
+
+    @Test
+    void skipsAByteOrderMark() throws IOException {
+        byte[] content = {(byte) 0xEF, (byte) 0xBB, (byte) 0xBF, 'a', '\n', 'b'};
+        assertEquals(List.of("a", "b"), records(content, false, 1024));
+    }
+
+    @Test
+    void readsEmptyAndTinyFiles() throws IOException {
+        assertEquals(List.of(), records("", false, 1024));
+        assertEquals(List.of("a"), records("a", false, 1024));
+        assertEquals(List.of(), records("\r\n", false, 1024));
+    }
+}
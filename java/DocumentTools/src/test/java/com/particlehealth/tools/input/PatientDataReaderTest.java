@@ -0,0 +1,141 @@
+package com.particlehealth.tools.input;
+
+import com.particlehealth.tools.models.PatientData;
+import com.particlehealth.tools.models.PatientEncounter;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PatientDataReaderTest {
+
+    private static final String HEADER = "patientId,givenName,encounterId,effectiveTime\n";
+
+    @TempDir
+    Path directory;
+
+    private Path csv(String rows) throws IOException {
+        Path file = directory.resolve("patients.csv");
+        Files.writeString(file, HEADER + rows, StandardCharsets.UTF_8);
+        return file;
+    }
+
+    private static List<String> ids(List<PatientData> patients) {
+        return patients.stream().map(PatientData::getPatientId).collect(Collectors.toList());
+    }
+
+    @Test
+    void groupsContiguousRowsIntoPatients() throws IOException {
+        Path file = csv("p1,Ada,e1,2020-01-01T10:00:00Z\np1,Ada,e2,2020-01-02T10:00:00\np2,Bob,,\np3,Cy,e3,2020-01-03T10:00:00-05:00\n");
+        try (PatientDataReader reader = PatientDataReader.open(file)) {
+            List<PatientData> patients = reader.stream().collect(Collectors.toList());
+            assertEquals(List.of("p1", "p2", "p3"), ids(patients));
+            assertEquals(2, patients.get(0).getEncounters().size());
+            assertEquals(0, patients.get(1).getEncounters().size());
+            assertEquals(4, reader.getStatistics().getRows());
+        }
+    }
+
+    @Test
+    void encountersWithTheSamePerformerColumnsShareOnePerformer() throws IOException {
+        Path file = directory.resolve("performers.csv");
+        Files.writeString(file, "patientId,encounterId,effectiveTime,performerGivenName,performerNpi,performerCity\n"
+                + "p1,e1,2020-01-01T10:00:00Z,Quinton,123,Boston\n"
+                + "p1,e2,2020-01-02T10:00:00Z,Quinton,123,Boston\n"
+                + "p1,e3,2020-01-03T10:00:00Z,Quinton,123,Salem\n"
+                + "p1,e4,2020-01-04T10:00:00Z,Quinton,,Boston\n", StandardCharsets.UTF_8);
+        try (PatientDataReader reader = PatientDataReader.open(file)) {
+            List<PatientEncounter> encounters = reader.next().getEncounters();
+            assertSame(encounters.get(0).getPerformer(), encounters.get(1).getPerformer());
+            assertNotSame(encounters.get(0).getPerformer(), encounters.get(2).getPerformer());
+            assertNotSame(encounters.get(0).getPerformer(), encounters.get(3).getPerformer());
+            assertEquals("Salem", encounters.get(2).getPerformer().getAddress().getAddressCity());
+            assertNull(encounters.get(3).getPerformer().getNpi());
+        }
+    }
+
+    @Test
+    void throwsOnMalformedRowsWithoutAHandler() throws IOException {
+        Path file = csv("p1,Ada,e1,2020-01-01T10:00:00Z\np2,Bob,e2,yesterday\n");
+        try (PatientDataReader reader = PatientDataReader.open(file)) {
+            assertEquals("p1", reader.next().getPatientId());
+            MalformedRecordException e = assertThrows(MalformedRecordException.class, reader::next);
+            assertEquals("p2", e.getPatientId());
+            assertEquals(3, e.getRecordNumber());
+        }
+    }
+
+    @Test
+    void skipsPatientsWithAnUnreadableValue() throws IOException {
+        Path file = csv("p1,Ada,e1,2020-01-01T10:00:00Z\np2,Bob,e2,2020-01-01T10:00:00Z\np2,Bob,e3,yesterday\np2,Bob,e4,2020-01-03T10:00:00Z\np3,Cy,,\n");
+        List<MalformedRecordException> failures = new ArrayList<>();
+        try (PatientDataReader reader = PatientDataReader.open(file)) {
+            reader.setMalformedRecordHandler(failures::add);
+            assertEquals(List.of("p1", "p3"), ids(reader.stream().collect(Collectors.toList())));
+            assertEquals(1, reader.getStatistics().getMalformedRecords());
+        }
+        assertEquals(1, failures.size());
+        assertEquals("p2", failures.get(0).getPatientId());
+        assertEquals(4, failures.get(0).getRecordNumber());
+    }
+
+    @Test
+    void unsplittableRecordsFailThePatientAroundThem() throws IOException {
+        Path file = csv("p1,Ada,e1,2020-01-01T10:00:00Z\np1,Ada,\"e2\"x,2020-01-02T10:00:00Z\np1,Ada,e3,2020-01-03T10:00:00Z\np2,Bob,,\n");
+        List<MalformedRecordException> failures = new ArrayList<>();
+        try (PatientDataReader reader = PatientDataReader.open(file)) {
+            reader.setMalformedRecordHandler(failures::add);
+            assertEquals(List.of("p2"), ids(reader.stream().collect(Collectors.toList())));
+        }
+        assertEquals(1, failures.size());
+        assertEquals("p1", failures.get(0).getPatientId());
+        assertEquals(3, failures.get(0).getRecordNumber());
+    }
+
+    @Test
+    void anUnterminatedQuoteEndsTheFileAsOneRecord() throws IOException {
+        Path file = csv("p1,Ada,e1,2020-01-01T10:00:00Z\np2,\"Bob,e2\np2,Bob,e3,2020-01-03T10:00:00Z\n");
+        List<MalformedRecordException> failures = new ArrayList<>();
+        try (PatientDataReader reader = PatientDataReader.open(file)) {
+            reader.setMalformedRecordHandler(failures::add);
+            assertEquals(List.of("p1"), ids(reader.stream().collect(Collectors.toList())));
+        }
+        assertEquals(1, failures.size());
+        assertNull(failures.get(0).getPatientId());
+    }
+
+    @Test
+    void recordsBetweenPatientsFailOnlyThemselves() throws IOException {
+        Path file = csv("p1,Ada,e1,2020-01-01T10:00:00Z\n,NoId,e2,2020-01-02T10:00:00Z\np2,Bob,e3,2020-01-03T10:00:00Z\nx,\"a\"b\n");
+        List<MalformedRecordException> failures = new ArrayList<>();
+        try (PatientDataReader reader = PatientDataReader.open(file)) {
+            reader.setMalformedRecordHandler(failures::add);
+            assertEquals(List.of("p1", "p2"), ids(reader.stream().collect(Collectors.toList())));
+        }
+        assertEquals(2, failures.size());
+        assertNull(failures.get(0).getPatientId());
+        assertEquals(3, failures.get(0).getRecordNumber());
+        assertNull(failures.get(1).getPatientId());
+        assertEquals(5, failures.get(1).getRecordNumber());
+    }
+
+    @Test
+    void missingIdsInsideAPatientFailThatPatient() throws IOException {
+        Path file = csv("p1,Ada,e1,2020-01-01T10:00:00Z\n,Ada,e2,2020-01-02T10:00:00Z\np1,Ada,e3,2020-01-03T10:00:00Z\np2,Bob,,\n");
+        List<MalformedRecordException> failures = new ArrayList<>();
+        try (PatientDataReader reader = PatientDataReader.open(file)) {
+            reader.setMalformedRecordHandler(failures::add);
+            assertEquals(List.of("p2"), ids(reader.stream().collect(Collectors.toList())));
+        }
+        assertEquals(1, failures.size());
+        assertEquals("p1", failures.get(0).getPatientId());
+    }
+}
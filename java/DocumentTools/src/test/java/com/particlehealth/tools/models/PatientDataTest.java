@@ -0,0 +1,113 @@
+package com.particlehealth.tools.models;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PatientDataTest {
+
+    private static PatientEncounter encounter(String id, OffsetDateTime effectiveTime) {
+        PatientEncounter encounter = new PatientEncounter();
+        encounter.setId(id);
+        encounter.setEffectiveTime(effectiveTime);
+        return encounter;
+    }
+
+    private static OffsetDateTime day(int day) {
+        return OffsetDateTime.of(2020, 1, day, 12, 0, 0, 0, ZoneOffset.UTC);
+    }
+
+    private static PatientData patient(PatientEncounter... encounters) {
+        PatientData patientData = new PatientData();
+        patientData.setEncounters(new ArrayList<>(List.of(encounters)));
+        return patientData;
+    }
+
+    @Test
+    void firstEncounterTimeIsTheEarliestInUtc() {
+        PatientData patientData = patient(encounter("a", day(5)), encounter("b", OffsetDateTime.of(2020, 1, 3, 20, 0, 0, 0, ZoneOffset.ofHours(-5))));
+        assertEquals("20200104010000", patientData.getFirstEncounterTime());
+        assertEquals("", new PatientData().getFirstEncounterTime());
+        assertEquals("", patient().getFirstEncounterTime());
+    }
+
+    @Test
+    void firstEncounterTimeFollowsEditsInPlaceAfterInvalidation() {
+        PatientData patientData = patient(encounter("a", day(5)), encounter("b", day(7)));
+        assertEquals("20200105120000", patientData.getFirstEncounterTime());
+
+        patientData.getEncounters().set(1, encounter("c", day(2)));
+        assertEquals("20200105120000", patientData.getFirstEncounterTime());
+        patientData.invalidateTimeline();
+        assertEquals("20200102120000", patientData.getFirstEncounterTime());
+
+        patientData.getEncounters().get(1).setEffectiveTime(day(9));
+        patientData.invalidateTimeline();
+        assertEquals("20200105120000", patientData.getFirstEncounterTime());
+
+        patientData.getEncounters().remove(0);
+        patientData.getEncounters().add(encounter("d", day(1)));
+        patientData.invalidateTimeline();
+        assertEquals("20200101120000", patientData.getFirstEncounterTime());
+    }
+
+    @Test
+    void timelineIsBuiltOnceUntilTheEncountersChange() {
+        PatientData patientData = patient(encounter("a", day(5)), encounter("b", day(7)), encounter("c", day(6)));
+        EncounterTimeline timeline = patientData.getEncounterTimeline();
+        assertSame(timeline, patientData.getEncounterTimeline());
+
+        patientData.getEncounters().set(2, encounter("d", day(8)));
+        assertSame(timeline, patientData.getEncounterTimeline());
+        patientData.invalidateTimeline();
+        EncounterTimeline edited = patientData.getEncounterTimeline();
+        assertNotSame(timeline, edited);
+        assertEquals(List.of("a", "c", "b"), ids(timeline.getEncounters()));
+        assertEquals(List.of("a", "b", "d"), ids(edited.getEncounters()));
+        assertEquals(List.of("b", "d"), ids(edited.between(day(7), day(8))));
+
+        patientData.setEncounters(new ArrayList<>(List.of(encounter("e", day(3)))));
+        assertEquals(List.of("e"), ids(patientData.getEncounterTimeline().getEncounters()));
+        assertEquals("20200103120000", patientData.getFirstEncounterTime());
+    }
+
+    @Test
+    void firstEncounterTimeComesFromABuiltTimeline() {
+        PatientData patientData = patient(encounter("a", day(5)), encounter("b", day(4)));
+        EncounterTimeline timeline = patientData.getEncounterTimeline();
+        assertEquals(timeline.getEarliestTimestamp(), patientData.getFirstEncounterTime());
+        assertSame(timeline.getEarliestTimestamp(), patientData.getFirstEncounterTime());
+    }
+
+    @Test
+    void timelineRangesAreInclusiveAndStable() {
+        PatientData patientData = patient(encounter("a", day(3)), encounter("b", day(1)), encounter("c", day(3)), encounter("d", day(9)));
+        EncounterTimeline timeline = patientData.getEncounterTimeline();
+        assertEquals(List.of("b", "a", "c", "d"), ids(timeline.getEncounters()));
+        assertEquals(List.of("a", "c"), ids(timeline.between(day(3), day(3))));
+        assertEquals(List.of(), ids(timeline.between(day(4), day(8))));
+        assertEquals(List.of("b", "a", "c", "d"), ids(timeline.between(day(1), day(31))));
+        assertEquals(day(1), timeline.getEarliest());
+        assertEquals(day(9), timeline.getLatest());
+        assertThrows(IllegalArgumentException.class, () -> timeline.between(day(5), day(4)));
+    }
+
+    @Test
+    void rejectsEncountersWithoutATime() {
+        PatientData patientData = patient(encounter("a", day(3)), encounter("b", null));
+        assertThrows(IllegalArgumentException.class, patientData::getEncounterTimeline);
+        assertThrows(IllegalArgumentException.class, patientData::getFirstEncounterTime);
+    }
+
+    private static List<String> ids(List<PatientEncounter> encounters) {
+        List<String> ids = new ArrayList<>();
+        for (PatientEncounter encounter : encounters)
+            ids.add(encounter.getId());
+        return ids;
+    }
+}
@@ -0,0 +1,86 @@
+package com.particlehealth.tools.process;
+
+import com.particlehealth.tools.models.OrganizationData;
+import com.particlehealth.tools.models.PatientData;
+import org.junit.jupiter.api.Test;
+
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DocumentFingerprintTest {
+
+    private static String fingerprint(OrganizationData orgData, PatientData patientData) {
+        return DocumentFingerprint.compute(orgData, patientData, false);
+    }
+
+    private static void assertChanges(Consumer<PatientData> change) {
+        OrganizationData orgData = TestData.organization();
+        PatientData patientData = TestData.patient("p1", 3);
+        String before = fingerprint(orgData, patientData);
+        change.accept(patientData);
+        assertNotEquals(before, fingerprint(orgData, patientData));
+    }
+
+    @Test
+    void isStableLowercaseSha256Hex() {
+        String first = fingerprint(TestData.organization(), TestData.patient("p1", 3));
+        assertEquals(first, fingerprint(TestData.organization(), TestData.patient("p1", 3)));
+        assertTrue(first.matches("[0-9a-f]{64}"), first);
+    }
+
+    @Test
+    void changesWithPatientFields() {
+        assertChanges(patient -> patient.setGivenName("Adah"));
+        assertChanges(patient -> patient.setSsn("123-45-6789"));
+        assertChanges(patient -> patient.setEmail(null));
+        assertChanges(patient -> patient.getAddress().getAddressLines().add("Unit 2"));
+    }
+
+    @Test
+    void changesWithEncounters() {
+        assertChanges(patient -> patient.getEncounters().remove(2));
+        assertChanges(patient -> patient.getEncounters().get(1).setStage("new"));
+        assertChanges(patient -> patient.getEncounters().get(0).getPerformer().setNpi("7654321"));
+        assertChanges(patient -> patient.getEncounters().get(0).setPerformer(null));
+        //Same instant, printed differently in the narrative
+        assertChanges(patient -> patient.getEncounters().get(0).setEffectiveTime(
+                patient.getEncounters().get(0).getEffectiveTime().withOffsetSameInstant(ZoneOffset.UTC)));
+    }
+
+    @Test
+    void changesWithOrganizationAndRenderer() {
+        PatientData patientData = TestData.patient("p1", 1);
+        String before = fingerprint(TestData.organization(), patientData);
+        OrganizationData renamed = TestData.organization();
+        renamed.setName("Other Health");
+        assertNotEquals(before, fingerprint(renamed, patientData));
+        assertNotEquals(before, DocumentFingerprint.compute(TestData.organization(), patientData, true));
+    }
+
+    @Test
+    void separatesAdjacentAndMissingValues() {
+        PatientData split = TestData.patient("p1", 0);
+        split.setGivenName("ab");
+        split.setFamilyName("c");
+        PatientData shifted = TestData.patient("p1", 0);
+        shifted.setGivenName("a");
+        shifted.setFamilyName("bc");
+        assertNotEquals(fingerprint(TestData.organization(), split), fingerprint(TestData.organization(), shifted));
+
+        PatientData missing = TestData.patient("p1", 0);
+        missing.setTelephone(null);
+        PatientData empty = TestData.patient("p1", 0);
+        empty.setTelephone("");
+        assertNotEquals(fingerprint(TestData.organization(), missing), fingerprint(TestData.organization(), empty));
+
+        PatientData noList = TestData.patient("p1", 0);
+        noList.setEncounters(null);
+        PatientData emptyList = TestData.patient("p1", 0);
+        emptyList.setEncounters(new ArrayList<>(List.of()));
+        assertNotEquals(fingerprint(TestData.organization(), noList), fingerprint(TestData.organization(), emptyList));
+    }
+}
@@ -0,0 +1,311 @@
+package com.particlehealth.tools.process;
+
+import com.particlehealth.tools.metrics.GenerationPhase;
+import com.particlehealth.tools.metrics.InMemoryGenerationMetrics;
+import com.particlehealth.tools.models.OrganizationData;
+import com.particlehealth.tools.models.PatientData;
+import com.particlehealth.tools.models.PatientEncounter;
+import com.particlehealth.tools.models.Performer;
+import org.eclipse.mdht.uml.cda.ClinicalDocument;
+import org.eclipse.mdht.uml.cda.Section;
+import org.eclipse.mdht.uml.cda.util.CDAUtil;
+import org.eclipse.mdht.uml.hl7.datatypes.IVL_TS;
+import org.junit.jupiter.api.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DocumentGeneratorTest {
+
+    private static final String CDA_NS = "urn:hl7-org:v3";
+    private static final OffsetDateTime CREATION_TIME = OffsetDateTime.of(2024, 3, 1, 12, 0, 0, 0, ZoneOffset.UTC);
+
+    private final DocumentGenerator generator = new DocumentGenerator();
+    private final OrganizationData orgData = TestData.organization();
+
+    private static byte[] save(ClinicalDocument document) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CDAUtil.save(document, out);
+        return out.toByteArray();
+    }
+
+    //The same patient with only the encounters from 'from' to 'to', or with no encounter list when 'to' is negative
+    private static PatientData withEncounters(PatientData patientData, int from, int to) {
+        PatientData copy = TestData.patient(patientData.getPatientId(), 0);
+        copy.setEncounters(to < 0 ? null : new ArrayList<>(patientData.getEncounters().subList(from, to)));
+        return copy;
+    }
+
+    private byte[] generatedAtOnce(PatientData patientData) throws Exception {
+        return save(generator.createCCD(orgData, patientData, CREATION_TIME));
+    }
+
+    private byte[] appendedInMemory(PatientData patientData, int existing) throws Exception {
+        ClinicalDocument document = generator.createCCD(orgData, withEncounters(patientData, 0, existing), CREATION_TIME);
+        generator.appendEncounters(document, patientData.getEncounters().subList(Math.max(existing, 0), patientData.getEncounters().size()));
+        return save(document);
+    }
+
+    private byte[] appendedThroughXml(PatientData patientData, int existing) throws Exception {
+        byte[] document = save(generator.createCCD(orgData, withEncounters(patientData, 0, existing), CREATION_TIME));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        generator.appendEncounters(new ByteArrayInputStream(document),
+                patientData.getEncounters().subList(Math.max(existing, 0), patientData.getEncounters().size()), out);
+        return out.toByteArray();
+    }
+
+    private static void assertSameDocument(byte[] expected, byte[] actual, String description) {
+        String difference = XmlComparison.firstDifference(XmlComparison.parse(expected), XmlComparison.parse(actual));
+        assertNull(difference, description + ": " + difference);
+    }
+
+    @Test
+    void aFailedGenerationIsThrownAndRecorded() {
+        InMemoryGenerationMetrics metrics = new InMemoryGenerationMetrics();
+        generator.setMetrics(metrics);
+        OrganizationData unreachable = TestData.organization();
+        unreachable.setEmail(null);
+        unreachable.setTelephone(null);
+
+        assertThrows(IllegalArgumentException.class, () -> generator.generateDocument(unreachable, TestData.patient("p", 1)));
+        assertEquals(1, metrics.getErrorCount());
+        assertEquals(Map.of(GenerationPhase.BUILD_MODEL.name() + ":" + IllegalArgumentException.class.getName(), 1L),
+                metrics.getErrorCounts());
+    }
+
+    @Test
+    void appendingGivesTheDocumentGeneratedAtOnce() throws Exception {
+        PatientData patientData = TestData.patient("append", 10);
+        byte[] expected = generatedAtOnce(patientData);
+        //-1 starts from a document without an encounters section, 0 from an empty one
+        for (int existing : new int[]{-1, 0, 1, 6, 9}) {
+            assertSameDocument(expected, appendedInMemory(patientData, existing), "in memory after " + existing);
+            assertSameDocument(expected, appendedThroughXml(patientData, existing), "through XML after " + existing);
+        }
+    }
+
+    @Test
+    void appendedEntriesAndRowsAreNumberedAfterTheExistingOnes() throws Exception {
+        PatientData patientData = TestData.patient("numbering", 5);
+        Document document = XmlComparison.parse(appendedThroughXml(patientData, 3));
+
+        NodeList rows = document.getElementsByTagNameNS(CDA_NS, "tbody").item(0).getChildNodes();
+        NodeList references = document.getElementsByTagNameNS(CDA_NS, "reference");
+        NodeList encounters = document.getElementsByTagNameNS(CDA_NS, "encounter");
+        assertEquals(5, rows.getLength());
+        assertEquals(5, references.getLength());
+        for (int i = 0; i < 5; i++) {
+            assertEquals("Encounter" + (i + 1), ((Element) rows.item(i)).getAttribute("ID"));
+            assertEquals("#Encounter" + (i + 1), ((Element) references.item(i)).getAttribute("value"));
+            Element id = (Element) ((Element) encounters.item(i)).getElementsByTagNameNS(CDA_NS, "id").item(0);
+            assertEquals("numbering-" + i, id.getAttribute("root"));
+        }
+    }
+
+    @Test
+    void appendingWidensTheServiceEvent() throws Exception {
+        PatientData patientData = TestData.patient("widen", 2);
+        ClinicalDocument document = generator.createCCD(orgData, patientData, CREATION_TIME);
+        assertServiceEvent(document, "20200101143000", "20240301120000");
+
+        List<PatientEncounter> inside = TestData.patient("widen", 1).getEncounters();
+        inside.get(0).setEffectiveTime(OffsetDateTime.of(2021, 6, 1, 0, 0, 0, 0, ZoneOffset.UTC));
+        generator.appendEncounters(document, inside);
+        assertServiceEvent(document, "20200101143000", "20240301120000");
+
+        List<PatientEncounter> outside = TestData.patient("widen", 2).getEncounters();
+        outside.get(0).setEffectiveTime(OffsetDateTime.of(2030, 1, 2, 3, 4, 5, 0, ZoneOffset.UTC));
+        outside.get(1).setEffectiveTime(OffsetDateTime.of(2019, 12, 31, 22, 0, 0, 0, ZoneOffset.ofHours(-5)));
+        generator.appendEncounters(document, outside);
+        assertServiceEvent(document, "20200101030000", "20300102030405");
+    }
+
+    @Test
+    void aWindowOnlyReadsTheEncountersInIt() {
+        int count = 4096;
+        PatientData patientData = TestData.patient("window", 0);
+        List<PatientEncounter> encounters = new ArrayList<>();
+        List<WatchedEncounter> outside = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            WatchedEncounter encounter = new WatchedEncounter();
+            encounter.setId("window-" + i);
+            encounter.setEffectiveTime(OffsetDateTime.of(2000, 1, 1, 0, 0, 0, 0, ZoneOffset.UTC).plusDays(i));
+            encounter.setEncounterTypeCode("99213");
+            encounter.setStage("follow-up");
+            encounter.setPerformer(TestData.patient("performer", 1).getEncounters().get(0).getPerformer());
+            encounters.add(encounter);
+            if (i < 2000 || i >= 2010)
+                outside.add(encounter);
+        }
+        Collections.shuffle(encounters, new Random(7));
+        patientData.setEncounters(encounters);
+        OffsetDateTime from = OffsetDateTime.of(2000, 1, 1, 0, 0, 0, 0, ZoneOffset.UTC).plusDays(2000);
+
+        for (int call = 0; call < 3; call++) {
+            outside.forEach(WatchedEncounter::reset);
+            ClinicalDocument document = generator.createWindowedCCD(orgData, patientData, from, from.plusDays(9));
+            assertEquals(10, encounterCount(document));
+
+            long reads = 0;
+            for (WatchedEncounter encounter : outside) {
+                assertEquals(0, encounter.otherReads, encounter.getId());
+                reads += encounter.timeReads;
+            }
+            //The first call sorts every encounter once, later ones only binary search the cached timeline
+            if (call == 0)
+                assertTrue(reads >= outside.size(), String.valueOf(reads));
+            else
+                assertTrue(reads <= 2 * (Integer.numberOfTrailingZeros(count) + 1), String.valueOf(reads));
+        }
+    }
+
+    @Test
+    void thePoolBuildsTheSameBytesAsSequentialGeneration() throws Exception {
+        int threshold = 100;
+        int chunk = DocumentGenerator.ENCOUNTER_CHUNK_SIZE;
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            DocumentGenerator pooled = new DocumentGenerator();
+            pooled.setEncounterPool(pool);
+            pooled.setParallelEncounterThreshold(threshold);
+            for (int count : new int[]{0, 1, threshold, threshold + 1, chunk - 1, chunk, chunk + 1, 2 * chunk, 2 * chunk + 1, 4 * chunk + 3}) {
+                PatientData patientData = TestData.patient("pooled", count);
+                AtomicBoolean readOnThePool = new AtomicBoolean();
+                patientData.setEncounters(new ArrayList<>(patientData.getEncounters()) {
+                    @Override
+                    public PatientEncounter get(int index) {
+                        if (Thread.currentThread() instanceof ForkJoinWorkerThread)
+                            readOnThePool.set(true);
+                        return super.get(index);
+                    }
+                });
+                byte[] sequential = save(generator.createCCD(orgData, patientData, CREATION_TIME));
+                byte[] parallel = save(pooled.createCCD(orgData, patientData, CREATION_TIME));
+                assertArrayEquals(sequential, parallel, count + " encounters");
+                assertEquals(count > threshold, readOnThePool.get(), count + " encounters");
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    void aNarrativeFailureWaitsForTheEntriesBeingBuilt() throws Exception {
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            generator.setEncounterPool(pool);
+            generator.setParallelEncounterThreshold(10);
+            AtomicInteger entriesBuilt = new AtomicInteger();
+            PatientData patientData = TestData.patient("failing", 0);
+            List<PatientEncounter> encounters = new ArrayList<>();
+            for (PatientEncounter template : TestData.patient("failing", 2000).getEncounters()) {
+                PatientEncounter encounter = new PatientEncounter() {
+                    //Only entries read the id, slowly enough that most are still to be built when the narrative fails
+                    @Override
+                    public String getId() {
+                        try {
+                            Thread.sleep(1);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        entriesBuilt.incrementAndGet();
+                        return super.getId();
+                    }
+
+                    //Only the narrative reads the stage
+                    @Override
+                    public String getStage() {
+                        throw new IllegalStateException("narrative failed");
+                    }
+                };
+                encounter.setId(template.getId());
+                encounter.setEffectiveTime(template.getEffectiveTime());
+                encounter.setEncounterTypeCode(template.getEncounterTypeCode());
+                encounter.setPerformer(template.getPerformer());
+                encounters.add(encounter);
+            }
+            patientData.setEncounters(encounters);
+
+            assertThrows(IllegalStateException.class, () -> generator.createCCD(orgData, patientData, CREATION_TIME));
+            int builtOnReturn = entriesBuilt.get();
+            Thread.sleep(200);
+            assertEquals(builtOnReturn, entriesBuilt.get());
+            assertTrue(builtOnReturn < encounters.size(), String.valueOf(builtOnReturn));
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static int encounterCount(ClinicalDocument document) {
+        for (Section section : document.getSections()) {
+            if ("46240-8".equals(section.getCode().getCode()))
+                return section.getEncounters().size();
+        }
+        return 0;
+    }
+
+    private static void assertServiceEvent(ClinicalDocument document, String low, String high) {
+        IVL_TS effectiveTime = document.getDocumentationOfs().get(0).getServiceEvent().getEffectiveTime();
+        assertEquals(low, effectiveTime.getLow().getValue());
+        assertEquals(high, effectiveTime.getHigh().getValue());
+    }
+
+    /*
+        Counts reads of its effectiveTime and of everything else a document is built from
+     */
+    private static class WatchedEncounter extends PatientEncounter {
+        int timeReads;
+        int otherReads;
+
+        void reset() {
+            timeReads = 0;
+            otherReads = 0;
+        }
+
+        @Override
+        public OffsetDateTime getEffectiveTime() {
+            timeReads++;
+            return super.getEffectiveTime();
+        }
+
+        @Override
+        public String getId() {
+            otherReads++;
+            return super.getId();
+        }
+
+        @Override
+        public Performer getPerformer() {
+            otherReads++;
+            return super.getPerformer();
+        }
+
+        @Override
+        public String getStage() {
+            otherReads++;
+            return super.getStage();
+        }
+
+        @Override
+        public String getEncounterTypeCode() {
+            otherReads++;
+            return super.getEncounterTypeCode();
+        }
+    }
+}
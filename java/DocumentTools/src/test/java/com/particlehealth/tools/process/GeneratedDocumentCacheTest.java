@@ -0,0 +1,154 @@
+package com.particlehealth.tools.process;
+
+import com.particlehealth.tools.models.OrganizationData;
+import com.particlehealth.tools.models.PatientData;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class GeneratedDocumentCacheTest {
+
+    private static final String SENTINEL = "10000101000000";
+
+    @TempDir
+    Path directory;
+
+    private static byte[] ascii(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static String patched(GeneratedDocumentCache.CachedDocument cached, String creationTime) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        cached.writeTo(out, creationTime);
+        return out.toString(StandardCharsets.US_ASCII);
+    }
+
+    @Test
+    void findsEveryNonOverlappingSentinel() {
+        byte[] document = ascii("<a v=\"" + SENTINEL + "\"/>" + SENTINEL + SENTINEL + "1000010100000");
+        assertArrayEquals(new int[]{6, 23, 37}, GeneratedDocumentCache.findSentinel(document));
+        assertEquals(0, GeneratedDocumentCache.findSentinel(ascii("no time here")).length);
+        assertEquals(0, GeneratedDocumentCache.findSentinel(new byte[0]).length);
+    }
+
+    @Test
+    void sentinelMatchesTheFormattedSentinelTime() {
+        assertEquals(SENTINEL, GenerationContext.current().formatTimestamp(GeneratedDocumentCache.SENTINEL_TIME));
+    }
+
+    @Test
+    void patchesTheCreationTimeAtEveryOffset() throws IOException {
+        byte[] document = ascii(SENTINEL + "<x t=\"" + SENTINEL + "\"/>" + SENTINEL);
+        GeneratedDocumentCache.CachedDocument cached = new GeneratedDocumentCache.CachedDocument(document, GeneratedDocumentCache.findSentinel(document));
+        assertEquals("20240229235959<x t=\"20240229235959\"/>20240229235959", patched(cached, "20240229235959"));
+
+        GeneratedDocumentCache.CachedDocument none = new GeneratedDocumentCache.CachedDocument(ascii("<x/>"), new int[0]);
+        assertEquals("<x/>", patched(none, "20240229235959"));
+    }
+
+    @Test
+    void entriesRoundTripAndDamagedOnesAreRejected() throws IOException {
+        byte[] document = ascii("<x t=\"" + SENTINEL + "\"/>");
+        GeneratedDocumentCache.CachedDocument cached = new GeneratedDocumentCache.CachedDocument(document, GeneratedDocumentCache.findSentinel(document));
+        byte[] entry = cached.toBytes();
+        GeneratedDocumentCache.CachedDocument parsed = GeneratedDocumentCache.CachedDocument.parse(entry);
+        assertArrayEquals(document, parsed.document);
+        assertEquals(patched(cached, "20200101000000"), patched(parsed, "20200101000000"));
+
+        byte[] badMagic = entry.clone();
+        badMagic[0] ^= 1;
+        assertThrows(IOException.class, () -> GeneratedDocumentCache.CachedDocument.parse(badMagic));
+        byte[] badOffset = entry.clone();
+        //First offset, after the magic and the count
+        badOffset[11] = (byte) 100;
+        assertThrows(IOException.class, () -> GeneratedDocumentCache.CachedDocument.parse(badOffset));
+        byte[] truncated = Arrays.copyOf(entry, entry.length - 1);
+        assertThrows(IOException.class, () -> GeneratedDocumentCache.CachedDocument.parse(truncated));
+    }
+
+    @Test
+    void servesUnchangedPatientsFromTheCacheWithTheirOwnCreationTime() throws IOException {
+        DocumentGenerator generator = new DocumentGenerator();
+        generator.setStreamingRenderer(new StaxDocumentRenderer());
+        GeneratedDocumentCache cache = new GeneratedDocumentCache(directory, 1 << 20);
+        OrganizationData orgData = TestData.organization();
+        PatientData patientData = TestData.patient("p1", 5);
+
+        ByteArrayOutputStream first = new ByteArrayOutputStream();
+        cache.write(generator, orgData, patientData, "20200101000000", first);
+        ByteArrayOutputStream second = new ByteArrayOutputStream();
+        cache.write(generator, orgData, patientData, "20210202111111", second);
+
+        DocumentCacheStatistics statistics = cache.getStatistics();
+        assertEquals(1, statistics.getMisses());
+        assertEquals(1, statistics.getHits());
+        assertEquals(0, statistics.getUncacheable());
+        assertEquals(1, statistics.getEntryCount());
+
+        ByteArrayOutputStream reference = new ByteArrayOutputStream();
+        generator.writeDocument(orgData, patientData, OffsetDateTime.of(2021, 2, 2, 11, 11, 11, 0, ZoneOffset.UTC), reference);
+        assertEquals(reference.toString(StandardCharsets.UTF_8), second.toString(StandardCharsets.UTF_8));
+        assertEquals(first.toString(StandardCharsets.UTF_8).replace("20200101000000", "20210202111111"), second.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void regeneratesChangedPatientsAndSurvivesRestartsAndDamage() throws IOException {
+        DocumentGenerator generator = new DocumentGenerator();
+        generator.setStreamingRenderer(new StaxDocumentRenderer());
+        OrganizationData orgData = TestData.organization();
+        PatientData patientData = TestData.patient("p1", 2);
+
+        GeneratedDocumentCache cache = new GeneratedDocumentCache(directory, 1 << 20);
+        cache.write(generator, orgData, patientData, "20200101000000", new ByteArrayOutputStream());
+        patientData.getEncounters().get(0).setStage("new");
+        cache.write(generator, orgData, patientData, "20200101000000", new ByteArrayOutputStream());
+        assertEquals(2, cache.getStatistics().getMisses());
+
+        GeneratedDocumentCache reopened = new GeneratedDocumentCache(directory, 1 << 20);
+        assertEquals(2, reopened.getStatistics().getEntryCount());
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : (Iterable<Path>) files.filter(Files::isRegularFile)::iterator)
+                Files.write(file, ascii("damaged"));
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        reopened.write(generator, orgData, patientData, "20200101000000", out);
+        assertEquals(0, reopened.getStatistics().getHits());
+        assertEquals(1, reopened.getStatistics().getMisses());
+        assertTrue(out.toString(StandardCharsets.UTF_8).contains("<effectiveTime value=\"20200101000000\"/>"));
+    }
+
+    @Test
+    void evictsTheLeastRecentlyUsedBeyondTheLimit() throws IOException {
+        DocumentGenerator generator = new DocumentGenerator();
+        generator.setStreamingRenderer(new StaxDocumentRenderer());
+        OrganizationData orgData = TestData.organization();
+        GeneratedDocumentCache probe = new GeneratedDocumentCache(directory.resolve("probe"), Long.MAX_VALUE);
+        probe.write(generator, orgData, TestData.patient("p0", 3), "20200101000000", new ByteArrayOutputStream());
+        long entrySize = probe.getStatistics().getStoredBytes();
+
+        GeneratedDocumentCache cache = new GeneratedDocumentCache(directory.resolve("cache"), entrySize * 2 + entrySize / 2);
+        cache.write(generator, orgData, TestData.patient("p0", 3), "20200101000000", new ByteArrayOutputStream());
+        cache.write(generator, orgData, TestData.patient("p1", 3), "20200101000000", new ByteArrayOutputStream());
+        //p0 becomes the most recently used, so p1 goes when p2 arrives
+        cache.write(generator, orgData, TestData.patient("p0", 3), "20200101000000", new ByteArrayOutputStream());
+        cache.write(generator, orgData, TestData.patient("p2", 3), "20200101000000", new ByteArrayOutputStream());
+
+        assertEquals(1, cache.getStatistics().getEvictions());
+        assertEquals(2, cache.getStatistics().getEntryCount());
+        cache.write(generator, orgData, TestData.patient("p0", 3), "20200101000000", new ByteArrayOutputStream());
+        cache.write(generator, orgData, TestData.patient("p1", 3), "20200101000000", new ByteArrayOutputStream());
+        assertEquals(2, cache.getStatistics().getHits());
+        assertEquals(4, cache.getStatistics().getMisses());
+    }
+}
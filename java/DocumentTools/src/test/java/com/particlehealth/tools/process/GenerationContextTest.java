@@ -0,0 +1,98 @@
+package com.particlehealth.tools.process;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class GenerationContextTest {
+
+    private static final DateTimeFormatter REFERENCE = DateTimeFormatter.ofPattern("yyyyMMddHHmmss").withZone(ZoneOffset.UTC);
+
+    private final GenerationContext context = GenerationContext.current();
+
+    private void assertFormatsLikeTheFormatter(OffsetDateTime time) {
+        assertEquals(REFERENCE.format(time), context.formatTimestamp(time), time.toString());
+    }
+
+    @Test
+    void formatsInUtc() {
+        assertEquals("20200110093000", context.formatTimestamp(OffsetDateTime.of(2020, 1, 10, 9, 30, 0, 0, ZoneOffset.UTC)));
+        assertEquals("20200101013005", context.formatTimestamp(OffsetDateTime.of(2019, 12, 31, 20, 30, 5, 999_999_999, ZoneOffset.ofHours(-5))));
+    }
+
+    @Test
+    void matchesTheFormatterAtCalendarEdges() {
+        int[][] dates = {{1970, 1, 1}, {1969, 12, 31}, {2000, 2, 29}, {2000, 3, 1}, {1900, 2, 28}, {1900, 3, 1}, {2100, 2, 28},
+                {2100, 3, 1}, {2024, 2, 29}, {2023, 12, 31}, {1, 1, 1}, {1, 3, 1}, {9999, 12, 31}, {1600, 2, 29}};
+        for (int[] date : dates) {
+            for (int[] time : new int[][]{{0, 0, 0}, {23, 59, 59}, {12, 0, 1}}) {
+                for (ZoneOffset offset : new ZoneOffset[]{ZoneOffset.UTC, ZoneOffset.ofHours(14), ZoneOffset.ofHoursMinutes(-9, -30)}) {
+                    OffsetDateTime local = OffsetDateTime.of(date[0], date[1], date[2], time[0], time[1], time[2], 0, offset);
+                    OffsetDateTime utc = local.withOffsetSameInstant(ZoneOffset.UTC);
+                    //Offsets that push the instant outside years 1-9999 are covered by fallsBackOutsideFourDigitYears
+                    if (utc.getYear() >= 1 && utc.getYear() <= 9999)
+                        assertFormatsLikeTheFormatter(local);
+                }
+            }
+        }
+    }
+
+    @Test
+    void fallsBackOutsideFourDigitYears() {
+        assertFormatsLikeTheFormatter(OffsetDateTime.of(0, 12, 31, 23, 59, 59, 0, ZoneOffset.UTC));
+        assertFormatsLikeTheFormatter(OffsetDateTime.of(-44, 3, 15, 12, 0, 0, 0, ZoneOffset.UTC));
+        assertFormatsLikeTheFormatter(OffsetDateTime.of(10000, 1, 1, 0, 0, 0, 0, ZoneOffset.UTC));
+        assertFormatsLikeTheFormatter(OffsetDateTime.of(9999, 12, 31, 23, 0, 0, 0, ZoneOffset.ofHours(-2)));
+    }
+
+    @Test
+    void matchesTheFormatterOnRandomInstants() {
+        Random random = new Random(17);
+        long min = OffsetDateTime.of(1, 1, 1, 0, 0, 0, 0, ZoneOffset.UTC).toEpochSecond();
+        long max = OffsetDateTime.of(9999, 12, 31, 23, 59, 59, 0, ZoneOffset.UTC).toEpochSecond();
+        for (int i = 0; i < 200_000; i++) {
+            long epochSecond = min + Math.floorMod(random.nextLong(), max - min + 1);
+            assertFormatsLikeTheFormatter(OffsetDateTime.ofInstant(Instant.ofEpochSecond(epochSecond, random.nextInt(1_000_000_000)),
+                    ZoneOffset.ofTotalSeconds((random.nextInt(28) - 12) * 1800)));
+        }
+    }
+
+    @Test
+    void returnsIndependentStrings() {
+        String first = context.formatTimestamp(OffsetDateTime.of(2020, 1, 1, 0, 0, 0, 0, ZoneOffset.UTC));
+        context.formatTimestamp(OffsetDateTime.of(2021, 2, 2, 1, 1, 1, 0, ZoneOffset.UTC));
+        assertEquals("20200101000000", first);
+    }
+
+    @Test
+    void reusesTheBufferAndHandsOutANewOneToNestedCalls() {
+        ByteArrayOutputStream buffer = context.acquireBuffer();
+        buffer.write(1);
+        ByteArrayOutputStream nested = context.acquireBuffer();
+        assertNotSame(buffer, nested);
+        context.releaseBuffer(nested);
+        context.releaseBuffer(buffer);
+
+        ByteArrayOutputStream again = context.acquireBuffer();
+        assertSame(buffer, again);
+        assertEquals(0, again.size());
+        context.releaseBuffer(again);
+    }
+
+    @Test
+    void dropsBuffersThatGrewPastTheLimit() {
+        ByteArrayOutputStream buffer = context.acquireBuffer();
+        buffer.write(new byte[GenerationContext.MAX_RETAINED_BUFFER_SIZE + 1], 0, GenerationContext.MAX_RETAINED_BUFFER_SIZE + 1);
+        context.releaseBuffer(buffer);
+        ByteArrayOutputStream next = context.acquireBuffer();
+        assertNotSame(buffer, next);
+        context.releaseBuffer(next);
+    }
+}
@@ -0,0 +1,233 @@
+package com.particlehealth.tools.process;
+
+import com.particlehealth.tools.models.Address;
+import com.particlehealth.tools.models.OrganizationData;
+import com.particlehealth.tools.models.PatientData;
+import com.particlehealth.tools.models.PatientEncounter;
+import com.particlehealth.tools.models.Performer;
+import org.eclipse.mdht.uml.cda.util.CDAUtil;
+import org.junit.jupiter.api.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/*
+    The StAX renderer against the MDHT reference path, compared as parsed XML over seeded random patients.
+    The renderer writes the values the consol2 init() methods fill in as constants, so those values are also
+    checked against the C-CDA R2.1 templates on both documents rather than only against each other.
+ */
+class StaxDocumentRendererEquivalenceTest {
+
+    private static final String CDA_NS = "urn:hl7-org:v3";
+    private static final long SEED = 42L;
+    private static final int PATIENT_COUNT = 200;
+    private static final OffsetDateTime CREATION_TIME = OffsetDateTime.of(2024, 3, 1, 12, 0, 0, 0, ZoneOffset.UTC);
+
+    private static final String[] STAGES = {"new", "pre-op", "post-op", "follow-up"};
+    private static final String[] ENCOUNTER_CODES = {"99204", "98966", "99205", "99213"};
+    private static final String[] NAMES = {"Federico", "Aufderhar", "Helga", "Medico", "Quinton", "Klein", "O'Conner"};
+    private static final String[] STATES = {"MA", "CA", "WA", "AZ", "NY"};
+
+    //Section LOINC code to its C-CDA R2.1 template id root and extension
+    private static final Map<String, List<String>> SECTION_TEMPLATES = new LinkedHashMap<>();
+
+    static {
+        SECTION_TEMPLATES.put("48765-2", List.of("2.16.840.1.113883.10.20.22.2.6.1", "2015-08-01"));
+        SECTION_TEMPLATES.put("10160-0", List.of("2.16.840.1.113883.10.20.22.2.1.1", "2014-06-09"));
+        SECTION_TEMPLATES.put("11450-4", List.of("2.16.840.1.113883.10.20.22.2.5.1", "2015-08-01"));
+        SECTION_TEMPLATES.put("30954-2", List.of("2.16.840.1.113883.10.20.22.2.3.1", "2015-08-01"));
+        SECTION_TEMPLATES.put("29762-2", List.of("2.16.840.1.113883.10.20.22.2.17", "2015-08-01"));
+        SECTION_TEMPLATES.put("8716-3", List.of("2.16.840.1.113883.10.20.22.2.4.1", "2015-08-01"));
+        SECTION_TEMPLATES.put("46240-8", List.of("2.16.840.1.113883.10.20.22.2.22.1", "2015-08-01"));
+    }
+
+    private final DocumentGenerator documentGenerator = new DocumentGenerator();
+    private final StaxDocumentRenderer renderer = new StaxDocumentRenderer();
+
+    private Document reference(OrganizationData orgData, PatientData patientData) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CDAUtil.save(documentGenerator.createCCD(orgData, patientData, CREATION_TIME), out);
+        return XmlComparison.parse(out.toByteArray());
+    }
+
+    private Document rendered(OrganizationData orgData, PatientData patientData) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        renderer.render(orgData, patientData, CREATION_TIME, out);
+        return XmlComparison.parse(out.toByteArray());
+    }
+
+    @Test
+    void rendersTheSameDocumentAsTheModel() throws Exception {
+        Random random = new Random(SEED);
+        for (int i = 0; i < PATIENT_COUNT; i++) {
+            OrganizationData orgData = createOrganization(random);
+            PatientData patientData = createPatient(random, "Patient" + i);
+            Document expected = reference(orgData, patientData);
+            Document actual = rendered(orgData, patientData);
+            String difference = XmlComparison.firstDifference(expected, actual);
+            assertNull(difference, patientData.getPatientId() + ": " + difference);
+        }
+    }
+
+    @Test
+    void bothWriteTheRealmCodeAndTemplateIds() throws Exception {
+        Random random = new Random(SEED);
+        OrganizationData orgData = createOrganization(random);
+        PatientData patientData = createPatient(random, "Templates");
+        patientData.setEncounters(List.of(createEncounter(random, "Templates", 0, createPerformer(random))));
+
+        assertInitValues(reference(orgData, patientData), "model");
+        assertInitValues(rendered(orgData, patientData), "renderer");
+    }
+
+    @Test
+    void aChangedOrganizationIsRenderedWithItsNewValues() throws Exception {
+        OrganizationData orgData = TestData.organization();
+        PatientData patientData = TestData.patient("changed", 2);
+        rendered(orgData, patientData);
+
+        orgData.setName("Renamed Health");
+        String difference = XmlComparison.firstDifference(reference(orgData, patientData), rendered(orgData, patientData));
+        assertNull(difference, "after renaming: " + difference);
+
+        orgData.getAddress().getAddressLines().set(0, "9 Other St");
+        orgData.setEmail(null);
+        difference = XmlComparison.firstDifference(reference(orgData, patientData), rendered(orgData, patientData));
+        assertNull(difference, "after editing in place: " + difference);
+    }
+
+    private static void assertInitValues(Document document, String source) {
+        Element root = document.getDocumentElement();
+        List<Element> realmCodes = children(root, "realmCode");
+        assertEquals(1, realmCodes.size(), source);
+        assertEquals("US", realmCodes.get(0).getAttribute("code"), source);
+
+        List<Element> documentTemplates = children(root, "templateId");
+        assertEquals(List.of("2.16.840.1.113883.10.20.22.1.1:2015-08-01", "2.16.840.1.113883.10.20.22.1.2:2015-08-01"),
+                templateIds(documentTemplates), source);
+
+        Map<String, List<String>> sectionTemplates = new LinkedHashMap<>();
+        NodeList sections = document.getElementsByTagNameNS(CDA_NS, "section");
+        for (int i = 0; i < sections.getLength(); i++) {
+            Element section = (Element) sections.item(i);
+            String code = children(section, "code").get(0).getAttribute("code");
+            List<Element> templates = children(section, "templateId");
+            assertEquals(1, templates.size(), source + " section " + code);
+            sectionTemplates.put(code, List.of(templates.get(0).getAttribute("root"), templates.get(0).getAttribute("extension")));
+        }
+        assertEquals(SECTION_TEMPLATES, sectionTemplates, source);
+
+        NodeList encounters = document.getElementsByTagNameNS(CDA_NS, "encounter");
+        assertEquals(1, encounters.getLength(), source);
+        assertEquals(List.of("2.16.840.1.113883.10.20.22.4.49:2015-08-01"), templateIds(children((Element) encounters.item(0), "templateId")), source);
+    }
+
+    private static List<String> templateIds(List<Element> templateIds) {
+        List<String> ids = new ArrayList<>();
+        for (Element templateId : templateIds)
+            ids.add(templateId.getAttribute("root") + ":" + templateId.getAttribute("extension"));
+        return ids;
+    }
+
+    private static List<Element> children(Element parent, String localName) {
+        List<Element> children = new ArrayList<>();
+        for (Node child = parent.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child.getNodeType() == Node.ELEMENT_NODE && CDA_NS.equals(child.getNamespaceURI()) && localName.equals(child.getLocalName()))
+                children.add((Element) child);
+        }
+        return children;
+    }
+
+    private static OrganizationData createOrganization(Random random) {
+        OrganizationData organizationData = new OrganizationData();
+        organizationData.setName(pick(random, NAMES) + " Health");
+        organizationData.setProviderTaxonomyCode("FakeCodeFromValueset");
+        //At least one of email or telephone is required
+        int telecoms = 1 + random.nextInt(3);
+        if ((telecoms & 1) != 0)
+            organizationData.setEmail("org" + random.nextInt(1000) + "@testing.fake");
+        if ((telecoms & 2) != 0)
+            organizationData.setTelephone("1-234-567-" + (1000 + random.nextInt(9000)));
+        organizationData.setAddress(createAddress(random));
+        return organizationData;
+    }
+
+    private static PatientData createPatient(Random random, String patientId) {
+        PatientData patientData = new PatientData();
+        patientData.setPatientId(patientId);
+        patientData.setGivenName(pick(random, NAMES));
+        patientData.setFamilyName(pick(random, NAMES));
+        patientData.setGender(random.nextBoolean() ? "M" : "F");
+        patientData.setDateOfBirth(String.format("%04d%02d%02d", 1930 + random.nextInt(90), 1 + random.nextInt(12), 1 + random.nextInt(28)));
+        patientData.setAddress(createAddress(random));
+        if (random.nextBoolean())
+            patientData.setEmail(patientId.toLowerCase() + "@test.com");
+        if (random.nextBoolean())
+            patientData.setTelephone("1 234-567-" + (1000 + random.nextInt(9000)));
+
+        int encounterCount = random.nextInt(10) == 0 ? 0 : random.nextInt(40);
+        if (encounterCount > 0 || random.nextBoolean()) {
+            List<Performer> performers = new ArrayList<>();
+            for (int i = 0; i < 1 + random.nextInt(3); i++)
+                performers.add(createPerformer(random));
+            List<PatientEncounter> encounters = new ArrayList<>();
+            for (int i = 0; i < encounterCount; i++)
+                encounters.add(createEncounter(random, patientId, i, performers.get(random.nextInt(performers.size()))));
+            patientData.setEncounters(encounters);
+        }
+        return patientData;
+    }
+
+    private static PatientEncounter createEncounter(Random random, String patientId, int index, Performer performer) {
+        PatientEncounter encounter = new PatientEncounter();
+        encounter.setId(UUID.nameUUIDFromBytes((patientId + index).getBytes(StandardCharsets.UTF_8)).toString());
+        encounter.setEffectiveTime(OffsetDateTime.of(2000 + random.nextInt(22), 1 + random.nextInt(12), 1 + random.nextInt(28),
+                random.nextInt(24), random.nextInt(60), random.nextInt(60), 0, ZoneOffset.ofHours(random.nextInt(5) - 8)));
+        encounter.setEncounterTypeCode(pick(random, ENCOUNTER_CODES));
+        encounter.setStage(pick(random, STAGES));
+        encounter.setPerformer(performer);
+        return encounter;
+    }
+
+    private static Performer createPerformer(Random random) {
+        Performer performer = new Performer();
+        performer.setFamilyName(pick(random, NAMES));
+        performer.setGivenName(pick(random, NAMES));
+        performer.setProviderTaxonomyCode("101YP2500X");
+        if (random.nextBoolean())
+            performer.setNpi(String.valueOf(1000000 + random.nextInt(9000000)));
+        if (random.nextBoolean())
+            performer.setAddress(createAddress(random));
+        return performer;
+    }
+
+    private static Address createAddress(Random random) {
+        Address address = new Address();
+        address.setAddressCity(pick(random, NAMES) + "ville");
+        address.setAddressState(pick(random, STATES));
+        address.setPostalCode(String.format("%05d", random.nextInt(100000)));
+        String[] lines = {random.nextInt(200) + " Main St", "Unit " + random.nextInt(20), "Floor 2"};
+        //At least one address line is required, only the first two are used
+        address.setAddressLines(Arrays.asList(Arrays.copyOf(lines, 1 + random.nextInt(3))));
+        return address;
+    }
+
+    private static String pick(Random random, String[] values) {
+        return values[random.nextInt(values.length)];
+    }
+}
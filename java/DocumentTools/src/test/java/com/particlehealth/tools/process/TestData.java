@@ -0,0 +1,65 @@
+package com.particlehealth.tools.process;
+
+import com.particlehealth.tools.models.Address;
+import com.particlehealth.tools.models.OrganizationData;
+import com.particlehealth.tools.models.PatientData;
+import com.particlehealth.tools.models.PatientEncounter;
+import com.particlehealth.tools.models.Performer;
+
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+
+final class TestData {
+
+    private TestData() {
+    }
+
+    static OrganizationData organization() {
+        OrganizationData organizationData = new OrganizationData();
+        organizationData.setName("Test Health");
+        organizationData.setEmail("org@testing.fake");
+        organizationData.setTelephone("1-234-567-8901");
+        organizationData.setProviderTaxonomyCode("FakeCodeFromValueset");
+        organizationData.setAddress(address("1 Main St"));
+        return organizationData;
+    }
+
+    static PatientData patient(String patientId, int encounterCount) {
+        PatientData patientData = new PatientData();
+        patientData.setPatientId(patientId);
+        patientData.setGivenName("Ada");
+        patientData.setFamilyName("Lovelace");
+        patientData.setGender("F");
+        patientData.setDateOfBirth("19501231");
+        patientData.setEmail(patientId + "@test.com");
+        patientData.setAddress(address("2 Side St"));
+        Performer performer = new Performer();
+        performer.setGivenName("Quinton");
+        performer.setFamilyName("Klein");
+        performer.setNpi("1234567");
+        performer.setProviderTaxonomyCode("101YP2500X");
+        List<PatientEncounter> encounters = new ArrayList<>();
+        for (int i = 0; i < encounterCount; i++) {
+            PatientEncounter encounter = new PatientEncounter();
+            encounter.setId(patientId + "-" + i);
+            encounter.setEffectiveTime(OffsetDateTime.of(2020, 1 + i % 12, 1 + i % 28, 9, 30, 0, 0, ZoneOffset.ofHours(-5)));
+            encounter.setEncounterTypeCode("99213");
+            encounter.setStage("follow-up");
+            encounter.setPerformer(performer);
+            encounters.add(encounter);
+        }
+        patientData.setEncounters(encounters);
+        return patientData;
+    }
+
+    static Address address(String line) {
+        Address address = new Address();
+        address.setAddressLines(new ArrayList<>(List.of(line)));
+        address.setAddressCity("Boston");
+        address.setAddressState("MA");
+        address.setPostalCode("02110");
+        return address;
+    }
+}
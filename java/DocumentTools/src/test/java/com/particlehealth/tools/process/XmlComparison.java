@@ -0,0 +1,83 @@
+package com.particlehealth.tools.process;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+/*
+    Compares documents as parsed XML, ignoring formatting whitespace and attribute order
+ */
+final class XmlComparison {
+
+    private XmlComparison() {
+    }
+
+    static Document parse(byte[] xml) {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        try {
+            Document document = factory.newDocumentBuilder().parse(new ByteArrayInputStream(xml));
+            removeWhitespace(document.getDocumentElement());
+            document.normalizeDocument();
+            return document;
+        } catch (ParserConfigurationException | SAXException | IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    //The path to the first difference and what differs there, null when the documents are equal
+    static String firstDifference(Document expected, Document actual) {
+        if (expected.isEqualNode(actual))
+            return null;
+        return firstDifference(expected.getDocumentElement(), actual.getDocumentElement(), "/" + expected.getDocumentElement().getNodeName());
+    }
+
+    private static void removeWhitespace(Node node) {
+        NodeList children = node.getChildNodes();
+        for (int i = children.getLength() - 1; i >= 0; i--) {
+            Node child = children.item(i);
+            if (child.getNodeType() == Node.TEXT_NODE && child.getTextContent().isBlank())
+                node.removeChild(child);
+            else if (child.getNodeType() == Node.ELEMENT_NODE)
+                removeWhitespace(child);
+        }
+    }
+
+    private static String firstDifference(Node expected, Node actual, String here) {
+        if (!expected.getNodeName().equals(actual.getNodeName()))
+            return here + " expected element " + expected.getNodeName() + " but was " + actual.getNodeName();
+        if (expected.getNodeType() == Node.TEXT_NODE)
+            return here + " expected text '" + expected.getNodeValue() + "' but was '" + actual.getNodeValue() + "'";
+        String attributes = attributeDifference(expected, actual);
+        if (attributes != null)
+            return here + attributes;
+        NodeList expectedChildren = expected.getChildNodes();
+        NodeList actualChildren = actual.getChildNodes();
+        for (int i = 0; i < Math.min(expectedChildren.getLength(), actualChildren.getLength()); i++) {
+            if (!expectedChildren.item(i).isEqualNode(actualChildren.item(i)))
+                return firstDifference(expectedChildren.item(i), actualChildren.item(i), here + "/" + expectedChildren.item(i).getNodeName() + "[" + i + "]");
+        }
+        return here + " expected " + expectedChildren.getLength() + " children but was " + actualChildren.getLength();
+    }
+
+    private static String attributeDifference(Node expected, Node actual) {
+        if (expected.getAttributes() == null || actual.getAttributes() == null)
+            return expected.getAttributes() == actual.getAttributes() ? null : " attributes differ";
+        for (int i = 0; i < expected.getAttributes().getLength(); i++) {
+            Node attribute = expected.getAttributes().item(i);
+            Node other = actual.getAttributes().getNamedItemNS(attribute.getNamespaceURI(), attribute.getLocalName());
+            if (other == null || !other.getNodeValue().equals(attribute.getNodeValue()))
+                return " expected @" + attribute.getNodeName() + "='" + attribute.getNodeValue() + "' but was "
+                        + (other == null ? "missing" : "'" + other.getNodeValue() + "'");
+        }
+        if (expected.getAttributes().getLength() != actual.getAttributes().getLength())
+            return " expected " + expected.getAttributes().getLength() + " attributes but was " + actual.getAttributes().getLength();
+        return null;
+    }
+}
@@ -0,0 +1,95 @@
+package com.particlehealth.tools.benchmarks;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+    Compares two JMH CSV result files (-rf csv) and flags regressions.
+    All benchmarks here run in average-time mode, so for every row, time and gc.alloc.* alike, lower is better.
+    Usage: BenchmarkComparison baseline.csv current.csv [thresholdPercent]. Exits with status 1 on a regression.
+ */
+public class BenchmarkComparison {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out.println("Usage: BenchmarkComparison baseline.csv current.csv [thresholdPercent]");
+            System.exit(2);
+        }
+        double threshold = args.length > 2 ? Double.parseDouble(args[2]) : 10.0;
+        Map<String, Double> baseline = readScores(Path.of(args[0]));
+        Map<String, Double> current = readScores(Path.of(args[1]));
+
+        int regressions = 0;
+        for (Map.Entry<String, Double> entry : current.entrySet()) {
+            Double before = baseline.get(entry.getKey());
+            if (before == null || before == 0) {
+                System.out.printf("NEW        %s %.3f%n", entry.getKey(), entry.getValue());
+                continue;
+            }
+            double change = (entry.getValue() - before) * 100 / before;
+            String status = change > threshold ? "REGRESSION" : change < -threshold ? "IMPROVED" : "SAME";
+            if (change > threshold)
+                regressions++;
+            System.out.printf("%-10s %s %.3f -> %.3f (%+.1f%%)%n", status, entry.getKey(), before, entry.getValue(), change);
+        }
+        System.out.println(regressions + " regressions above " + threshold + "%");
+        if (regressions > 0)
+            System.exit(1);
+    }
+
+    /*
+        Keys each row by benchmark name, unit and parameter values
+     */
+    private static Map<String, Double> readScores(Path file) throws IOException {
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        List<String> header = parseCsvLine(lines.get(0));
+        int benchmarkColumn = header.indexOf("Benchmark");
+        int scoreColumn = header.indexOf("Score");
+        int unitColumn = header.indexOf("Unit");
+
+        Map<String, Double> scores = new LinkedHashMap<>();
+        for (String line : lines.subList(1, lines.size())) {
+            if (line.isBlank())
+                continue;
+            List<String> values = parseCsvLine(line);
+            StringBuilder key = new StringBuilder(values.get(benchmarkColumn));
+            for (int i = 0; i < header.size(); i++) {
+                if (header.get(i).startsWith("Param: ") && i < values.size() && !values.get(i).isEmpty())
+                    key.append(' ').append(header.get(i).substring("Param: ".length())).append('=').append(values.get(i));
+            }
+            key.append(" [").append(values.get(unitColumn)).append(']');
+            scores.put(key.toString(), Double.parseDouble(values.get(scoreColumn)));
+        }
+        return scores;
+    }
+
+    private static List<String> parseCsvLine(String line) {
+        List<String> values = new ArrayList<>();
+        StringBuilder value = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"') {
+                if (quoted && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    value.append('"');
+                    i++;
+                } else {
+                    quoted = !quoted;
+                }
+            } else if (c == ',' && !quoted) {
+                values.add(value.toString());
+                value.setLength(0);
+            } else {
+                value.append(c);
+            }
+        }
+        values.add(value.toString());
+        return values;
+    }
+}
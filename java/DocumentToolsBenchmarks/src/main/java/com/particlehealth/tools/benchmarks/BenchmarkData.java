@@ -0,0 +1,91 @@
+package com.particlehealth.tools.benchmarks;
+
+import com.particlehealth.tools.models.*;
+
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+/*
+    Deterministic inputs for the benchmarks, shaped like Sample.createPatientData
+ */
+public final class BenchmarkData {
+
+    private static final String[] STAGES = {"new", "pre-op", "post-op"};
+    private static final String[] ENCOUNTER_CODES = {"99204", "98966", "99205"};
+    private static final String[] STREET_LINES = {"123 Main St", "4D", "Building 7"};
+
+    private BenchmarkData() {
+    }
+
+    public static OrganizationData createOrganization(int addressLines, int telecoms) {
+        OrganizationData organizationData = new OrganizationData();
+        organizationData.setName("myFakeCompany");
+        organizationData.setProviderTaxonomyCode("FakeCodeFromValueset");
+        organizationData.setEmail("fakeTesting@testing.fake");
+        //CustodianOrganization needs at least one telecom, so the organization always keeps its email
+        if (telecoms > 1)
+            organizationData.setTelephone("1-234-567-8910");
+        organizationData.setAddress(createAddress("Long Island", "WA", "12345", addressLines));
+        return organizationData;
+    }
+
+    /*
+        telecoms: 0 = none, 1 = email, 2 = email and telephone
+     */
+    public static PatientData createPatient(String patientId, int encounterCount, int addressLines, int telecoms, long seed) {
+        Random random = new Random(seed);
+        PatientData pd = new PatientData();
+        pd.setPatientId(patientId);
+        pd.setGivenName("Federico");
+        pd.setFamilyName("Aufderhar");
+        pd.setDateOfBirth("19531029");
+        pd.setGender("M");
+        pd.setAddress(createAddress("Boston", "CA", "16545", addressLines));
+        if (telecoms > 0)
+            pd.setEmail("testpatient1@test.com");
+        if (telecoms > 1)
+            pd.setTelephone("1 234-567-8910");
+
+        List<Performer> performers = Arrays.asList(
+                createPerformer("Medico", "Helga", "1234567", addressLines),
+                createPerformer("Surgeon", "Ines", "7654321", addressLines),
+                createPerformer("Nurse", "Ola", null, addressLines));
+        List<PatientEncounter> encounters = new ArrayList<>(encounterCount);
+        for (int i = 0; i < encounterCount; i++) {
+            PatientEncounter encounter = new PatientEncounter();
+            encounter.setId(new UUID(seed, i).toString());
+            encounter.setEffectiveTime(OffsetDateTime.of(2000 + random.nextInt(22), 1 + random.nextInt(12), 1 + random.nextInt(28),
+                    random.nextInt(24), random.nextInt(60), random.nextInt(60), 0, ZoneOffset.UTC));
+            encounter.setEncounterTypeCode(ENCOUNTER_CODES[random.nextInt(ENCOUNTER_CODES.length)]);
+            encounter.setStage(STAGES[random.nextInt(STAGES.length)]);
+            encounter.setPerformer(performers.get(random.nextInt(performers.size())));
+            encounters.add(encounter);
+        }
+        pd.setEncounters(encounters);
+        return pd;
+    }
+
+    private static Performer createPerformer(String familyName, String givenName, String npi, int addressLines) {
+        Performer p = new Performer();
+        p.setFamilyName(familyName);
+        p.setGivenName(givenName);
+        p.setProviderTaxonomyCode("101YP2500X");
+        p.setNpi(npi);
+        p.setAddress(createAddress("Wilmington", "AZ", "09675", addressLines));
+        return p;
+    }
+
+    private static Address createAddress(String city, String state, String postalCode, int addressLines) {
+        Address address = new Address();
+        address.setAddressCity(city);
+        address.setAddressState(state);
+        address.setPostalCode(postalCode);
+        address.setAddressLines(Arrays.asList(Arrays.copyOf(STREET_LINES, addressLines)));
+        return address;
+    }
+}
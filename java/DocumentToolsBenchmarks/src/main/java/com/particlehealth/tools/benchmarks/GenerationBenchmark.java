@@ -0,0 +1,76 @@
+package com.particlehealth.tools.benchmarks;
+
+import com.particlehealth.tools.models.OrganizationData;
+import com.particlehealth.tools.models.PatientData;
+import com.particlehealth.tools.process.DocumentGenerator;
+import com.particlehealth.tools.process.StaxDocumentRenderer;
+import org.openhealthtools.mdht.uml.cda.consol.ContinuityOfCareDocument2;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/*
+    Building the model and the full generateDocument pipeline, with and without the template cache
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class GenerationBenchmark {
+
+    @Param({"1", "10", "100", "1000", "10000"})
+    public int encounterCount;
+
+    @Param({"1", "2"})
+    public int addressLines;
+
+    @Param({"0", "1", "2"})
+    public int telecoms;
+
+    @Param({"true", "false"})
+    public boolean templateEnabled;
+
+    private DocumentGenerator documentGenerator;
+    private StaxDocumentRenderer renderer;
+    private OrganizationData orgData;
+    private PatientData patientData;
+    private ByteArrayOutputStream out;
+
+    @Setup
+    public void setUp() {
+        documentGenerator = new DocumentGenerator();
+        documentGenerator.setTemplateEnabled(templateEnabled);
+        renderer = new StaxDocumentRenderer();
+        orgData = BenchmarkData.createOrganization(addressLines, telecoms);
+        patientData = BenchmarkData.createPatient("Patient0", encounterCount, addressLines, telecoms, 42L);
+        out = new ByteArrayOutputStream();
+    }
+
+    @Benchmark
+    public ContinuityOfCareDocument2 createCCD() {
+        return documentGenerator.createCCD(orgData, patientData);
+    }
+
+    @Benchmark
+    public int generateDocument() throws IOException {
+        out.reset();
+        documentGenerator.generateDocument(orgData, patientData, out);
+        return out.size();
+    }
+
+    @Benchmark
+    public String generateDocumentString() {
+        return documentGenerator.generateDocument(orgData, patientData);
+    }
+
+    @Benchmark
+    public int staxRender() throws IOException {
+        out.reset();
+        renderer.render(orgData, patientData, out);
+        return out.size();
+    }
+}
@@ -0,0 +1,57 @@
+package com.particlehealth.tools.benchmarks;
+
+import com.particlehealth.tools.process.DocumentGenerator;
+import org.eclipse.mdht.uml.cda.util.CDAUtil;
+import org.openhealthtools.mdht.uml.cda.consol.ContinuityOfCareDocument2;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/*
+    The phases after the model is built: CDAUtil.save and decoding the bytes.
+    The document is built once, so save reuses the resource CDAUtil attaches to it on the first call.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class SerializationBenchmark {
+
+    @Param({"1", "10", "100", "1000", "10000"})
+    public int encounterCount;
+
+    @Param({"1", "2"})
+    public int addressLines;
+
+    @Param({"0", "1", "2"})
+    public int telecoms;
+
+    private ContinuityOfCareDocument2 doc;
+    private ByteArrayOutputStream out;
+    private byte[] documentBytes;
+
+    @Setup
+    public void setUp() throws Exception {
+        doc = new DocumentGenerator().createCCD(BenchmarkData.createOrganization(addressLines, telecoms),
+                BenchmarkData.createPatient("Patient0", encounterCount, addressLines, telecoms, 42L));
+        out = new ByteArrayOutputStream();
+        CDAUtil.save(doc, out);
+        documentBytes = out.toByteArray();
+    }
+
+    @Benchmark
+    public int save() throws Exception {
+        out.reset();
+        CDAUtil.save(doc, out);
+        return out.size();
+    }
+
+    @Benchmark
+    public String decode() {
+        return new String(documentBytes, StandardCharsets.UTF_8);
+    }
+}
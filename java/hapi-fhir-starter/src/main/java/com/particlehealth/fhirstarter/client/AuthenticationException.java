@@ -0,0 +1,15 @@
+package com.particlehealth.fhirstarter.client;
+
+/*
+    No token could be obtained from the auth endpoint
+ */
+public class AuthenticationException extends RuntimeException {
+
+    public AuthenticationException(String message) {
+        super(message);
+    }
+
+    public AuthenticationException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,260 @@
+package com.particlehealth.fhirstarter.client;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/*
+    Fetches a JWT from the /auth endpoint, keeps it until shortly before its exp claim and refreshes it in the background
+    ahead of that, so callers normally get the cached token without waiting.
+    Callers that find no usable token share a single request to /auth. A failed background refresh is retried
+    while the current token is still valid, after that getToken() fetches synchronously and throws an AuthenticationException if it fails.
+    Thread safe.
+ */
+public class CachedJwtProvider implements Closeable {
+
+    //A token closer than this to its expiry is not handed out, it could expire before the request reaches the server
+    public static final Duration MIN_REMAINING_VALIDITY = Duration.ofSeconds(30);
+    //Refresh this long before expiry, or after four fifths of the lifetime for short lived tokens
+    public static final Duration REFRESH_AHEAD = Duration.ofMinutes(5);
+    //Lifetime assumed for a token without an exp claim
+    public static final Duration DEFAULT_LIFETIME = Duration.ofMinutes(30);
+    //Never refresh more often than this, even for tokens that arrive close to or past their expiry
+    private static final Duration MIN_REFRESH_INTERVAL = Duration.ofSeconds(10);
+    private static final Duration MIN_RETRY_DELAY = Duration.ofSeconds(1);
+    private static final Duration MAX_RETRY_DELAY = Duration.ofMinutes(1);
+
+    private static final Pattern EXP_CLAIM = Pattern.compile("\"exp\"\\s*:\\s*(\\d+)");
+
+    private final OkHttpClient httpClient;
+    private final Request authRequest;
+    private final Clock clock;
+    private final ScheduledExecutorService scheduler;
+    private final boolean ownScheduler;
+
+    private volatile Token current;
+    //Guarded by this
+    private CompletableFuture<Token> inFlight;
+    private ScheduledFuture<?> scheduledRefresh;
+    private Duration retryDelay = MIN_RETRY_DELAY;
+    private boolean closed;
+
+    public CachedJwtProvider(String authUrl, String clientId, String clientSecret) {
+        this(SharedHttpClient.get(), authUrl, clientId, clientSecret, null, Clock.systemUTC());
+    }
+
+    /*
+        Without a scheduler, the provider starts a daemon thread of its own, stopped by close()
+     */
+    public CachedJwtProvider(OkHttpClient httpClient, String authUrl, String clientId, String clientSecret,
+                             ScheduledExecutorService scheduler, Clock clock) {
+        this.httpClient = httpClient;
+        this.authRequest = new Request.Builder().url(authUrl)
+                .addHeader("client-id", clientId)
+                .addHeader("client-secret", clientSecret)
+                .build();
+        this.clock = clock;
+        this.ownScheduler = scheduler == null;
+        this.scheduler = scheduler != null ? scheduler : Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "jwt-refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /*
+        The current token, fetched first if there is none or it is about to expire
+     */
+    public String getToken() {
+        Token token = current;
+        if (token != null && token.isUsable(clock.instant()))
+            return token.value;
+        try {
+            return refresh(false).join().value;
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof AuthenticationException)
+                throw (AuthenticationException) e.getCause();
+            if (e.getCause() instanceof Error)
+                throw (Error) e.getCause();
+            throw new AuthenticationException("Token refresh failed", e.getCause());
+        }
+    }
+
+    /*
+        Like getToken(), but never waits on the calling thread: a missing or expiring token is fetched on the scheduler.
+        Fails with an AuthenticationException when the fetch does.
+     */
+    public CompletableFuture<String> getTokenAsync() {
+        Token token = current;
+        if (token != null && token.isUsable(clock.instant()))
+            return CompletableFuture.completedFuture(token.value);
+        return refresh(true).thenApply(fetched -> fetched.value);
+    }
+
+    //null when no token has been fetched yet
+    public Instant getExpiry() {
+        Token token = current;
+        return token == null ? null : token.expiresAt;
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            if (scheduledRefresh != null)
+                scheduledRefresh.cancel(false);
+        }
+        if (ownScheduler)
+            scheduler.shutdownNow();
+    }
+
+    /*
+        Joins the request in flight, or starts one: on the calling thread for a caller that needs a token now,
+        on the scheduler for a background refresh. A scheduler that rejects the refresh, after close() or once a shared
+        scheduler is shut down, fails it with an AuthenticationException rather than leaving it in flight.
+     */
+    private CompletableFuture<Token> refresh(boolean background) {
+        CompletableFuture<Token> future;
+        synchronized (this) {
+            if (inFlight != null)
+                return inFlight;
+            future = new CompletableFuture<>();
+            inFlight = future;
+        }
+        if (!background) {
+            fetch(future);
+            return future;
+        }
+        try {
+            scheduler.execute(() -> fetch(future));
+        } catch (RejectedExecutionException e) {
+            synchronized (this) {
+                if (inFlight == future)
+                    inFlight = null;
+            }
+            future.completeExceptionally(new AuthenticationException("Token refresh could not be scheduled", e));
+        }
+        return future;
+    }
+
+    /*
+        Always clears inFlight and completes the future, also when the request throws an Error,
+        so callers joining it never wait forever
+     */
+    private void fetch(CompletableFuture<Token> future) {
+        Token token = null;
+        Throwable failure = null;
+        try {
+            token = requestToken();
+        } catch (Throwable e) {
+            failure = e;
+        }
+        try {
+            synchronized (this) {
+                inFlight = null;
+                if (token != null) {
+                    current = token;
+                    retryDelay = MIN_RETRY_DELAY;
+                    scheduleRefresh(refreshTime(token));
+                } else if (current != null && current.isUsable(clock.instant())) {
+                    //Retry in the background while the current token lasts
+                    scheduleRefresh(clock.instant().plus(retryDelay));
+                    retryDelay = retryDelay.multipliedBy(2).compareTo(MAX_RETRY_DELAY) > 0 ? MAX_RETRY_DELAY : retryDelay.multipliedBy(2);
+                }
+            }
+        } finally {
+            if (token != null)
+                future.complete(token);
+            else
+                future.completeExceptionally(failure);
+        }
+    }
+
+    private Token requestToken() {
+        Instant requested = clock.instant();
+        try (Response response = httpClient.newCall(authRequest).execute()) {
+            ResponseBody body = response.body();
+            String jwt = body == null ? "" : body.string().trim();
+            if (!response.isSuccessful() || jwt.isEmpty())
+                throw new AuthenticationException("Auth endpoint returned HTTP " + response.code());
+            return new Token(jwt, expiry(jwt, requested), requested);
+        } catch (IOException e) {
+            throw new AuthenticationException("Auth request failed", e);
+        }
+    }
+
+    //Guarded by this
+    private void scheduleRefresh(Instant at) {
+        if (closed)
+            return;
+        if (scheduledRefresh != null)
+            scheduledRefresh.cancel(false);
+        long delay = Math.max(0, Duration.between(clock.instant(), at).toMillis());
+        try {
+            scheduledRefresh = scheduler.schedule(() -> refresh(true), delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            //The scheduler is shut down, getToken() fetches once the token runs out
+            scheduledRefresh = null;
+        }
+    }
+
+    private static Instant refreshTime(Token token) {
+        Duration lifetime = Duration.between(token.issuedAt, token.expiresAt);
+        Duration ahead = lifetime.dividedBy(5).compareTo(REFRESH_AHEAD) < 0 ? lifetime.dividedBy(5) : REFRESH_AHEAD;
+        Instant refreshAt = token.expiresAt.minus(ahead);
+        Instant earliest = token.issuedAt.plus(MIN_REFRESH_INTERVAL);
+        return refreshAt.isBefore(earliest) ? earliest : refreshAt;
+    }
+
+    /*
+        The exp claim of the payload, the second base64url part of the JWT
+     */
+    static Instant expiry(String jwt, Instant issuedAt) {
+        String[] parts = jwt.split("\\.");
+        if (parts.length >= 2) {
+            try {
+                String payload = new String(Base64.getUrlDecoder().decode(parts[1]), StandardCharsets.UTF_8);
+                Matcher exp = EXP_CLAIM.matcher(payload);
+                if (exp.find())
+                    return Instant.ofEpochSecond(Long.parseLong(exp.group(1)));
+            } catch (IllegalArgumentException e) {
+                //Not a JWT we can read, fall through to the default lifetime
+            }
+        }
+        return issuedAt.plus(DEFAULT_LIFETIME);
+    }
+
+    private static class Token {
+        final String value;
+        final Instant expiresAt;
+        final Instant issuedAt;
+
+        Token(String value, Instant expiresAt, Instant issuedAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+            this.issuedAt = issuedAt;
+        }
+
+        boolean isUsable(Instant now) {
+            return now.plus(MIN_REMAINING_VALIDITY).isBefore(expiresAt);
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.particlehealth.fhirstarter.client;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IClientInterceptor;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.interceptor.LoggingInterceptor;
+
+/*
+    Hands out IGenericClients for a tenant's FHIR base URL. Clients share the FhirContext and the connection pool,
+    so creating one per tenant, or per task, is cheap. Thread safe.
+ */
+public class FhirClientFactory {
+
+    private final FhirContext fhirContext;
+    private final boolean logRequests;
+
+    public FhirClientFactory() {
+        this(SharedFhirContext.get(), false);
+    }
+
+    /*
+        logRequests logs every request and response with their bodies, which is slow and meant for debugging
+     */
+    public FhirClientFactory(FhirContext fhirContext, boolean logRequests) {
+        this.fhirContext = fhirContext;
+        this.logRequests = logRequests;
+    }
+
+    public FhirContext getFhirContext() {
+        return fhirContext;
+    }
+
+    /*
+        A client for the server base, e.g. https://host/R4, with the given interceptors such as the tenant's authorization
+     */
+    public IGenericClient newClient(String serverBase, IClientInterceptor... interceptors) {
+        IGenericClient client = fhirContext.newRestfulGenericClient(serverBase);
+        if (logRequests)
+            client.registerInterceptor(createLoggingInterceptor());
+        for (IClientInterceptor interceptor : interceptors)
+            client.registerInterceptor(interceptor);
+        return client;
+    }
+
+    private static LoggingInterceptor createLoggingInterceptor() {
+        LoggingInterceptor loggingInterceptor = new LoggingInterceptor();
+        loggingInterceptor.setLogRequestSummary(true);
+        loggingInterceptor.setLogRequestBody(true);
+        loggingInterceptor.setLogResponseHeaders(true);
+        loggingInterceptor.setLogResponseBody(true);
+        loggingInterceptor.setLogResponseSummary(true);
+        return loggingInterceptor;
+    }
+}
@@ -0,0 +1,29 @@
+package com.particlehealth.fhirstarter.client;
+
+import ca.uhn.fhir.rest.client.api.IClientInterceptor;
+import ca.uhn.fhir.rest.client.api.IHttpRequest;
+import ca.uhn.fhir.rest.client.api.IHttpResponse;
+
+/*
+    Adds the provider's current token to every request, so a client outlives the tokens it was created with.
+    Reading the token is a volatile read unless it has expired.
+ */
+public class JwtAuthInterceptor implements IClientInterceptor {
+
+    private static final String AUTHORIZATION = "Authorization";
+
+    private final CachedJwtProvider tokenProvider;
+
+    public JwtAuthInterceptor(CachedJwtProvider tokenProvider) {
+        this.tokenProvider = tokenProvider;
+    }
+
+    @Override
+    public void interceptRequest(IHttpRequest request) {
+        request.addHeader(AUTHORIZATION, "Bearer " + tokenProvider.getToken());
+    }
+
+    @Override
+    public void interceptResponse(IHttpResponse response) {
+    }
+}
@@ -0,0 +1,247 @@
+package com.particlehealth.fhirstarter.client;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+    Polls $query status URLs until they stop answering 202, for any number of patients at once.
+    Requests go out asynchronously and the waits between them are scheduled, so no thread is held by a waiting query.
+
+    The wait starts short and grows with each 202 up to maxDelay, and follows the server's Retry-After when there is one.
+    maxDelay bounds how late a finished query is seen, it trades latency for requests: the default 5 seconds, reached
+    after waits of 1, 1.5, 2.25 and 3.4 seconds, keeps the bound of the fixed 5 second sleep SampleQuery used while
+    seeing quick queries sooner, at one request per 5 seconds for a long query. A larger maxDelay sends fewer requests
+    but can report a query up to maxDelay after it finished.
+    429, 5xx and connection failures are retried the same way. Every other status is terminal and completes the future
+    with the status code. A query still pending at its deadline fails with a QueryTimeoutException.
+    Futures complete on OkHttp, scheduler or token refresh threads, do heavy work in the *Async stages.
+    A token refresh runs on the token provider's scheduler, never on the poller's.
+ */
+public class QueryStatusPoller implements Closeable {
+
+    public static final Duration DEFAULT_INITIAL_DELAY = Duration.ofSeconds(1);
+    public static final Duration DEFAULT_MAX_DELAY = Duration.ofSeconds(5);
+    //The ten minutes SampleQuery waited
+    public static final Duration DEFAULT_DEADLINE = Duration.ofMinutes(10);
+    private static final double BACKOFF_FACTOR = 1.5;
+    private static final int PENDING = 202;
+    private static final int TOO_MANY_REQUESTS = 429;
+
+    private final OkHttpClient httpClient;
+    private final CachedJwtProvider tokenProvider;
+    private final ScheduledExecutorService scheduler;
+    private final boolean ownScheduler;
+    private final Duration initialDelay;
+    private final Duration maxDelay;
+    //null for no limit
+    private final RateLimiter rateLimiter;
+
+    private final Set<Poll> polls = ConcurrentHashMap.newKeySet();
+    private final AtomicLong requests = new AtomicLong();
+    private volatile boolean closed;
+
+    public QueryStatusPoller(CachedJwtProvider tokenProvider) {
+        this(SharedHttpClient.get(), tokenProvider, null, DEFAULT_INITIAL_DELAY, DEFAULT_MAX_DELAY);
+    }
+
+    public QueryStatusPoller(OkHttpClient httpClient, CachedJwtProvider tokenProvider, ScheduledExecutorService scheduler,
+                             Duration initialDelay, Duration maxDelay) {
+        this(httpClient, tokenProvider, scheduler, initialDelay, maxDelay, null);
+    }
+
+    /*
+        Without a scheduler, the poller starts a daemon thread of its own, stopped by close().
+        With a rate limiter, each request takes a permit and waits for it on the scheduler, without holding a thread.
+     */
+    public QueryStatusPoller(OkHttpClient httpClient, CachedJwtProvider tokenProvider, ScheduledExecutorService scheduler,
+                             Duration initialDelay, Duration maxDelay, RateLimiter rateLimiter) {
+        this.httpClient = httpClient;
+        this.tokenProvider = tokenProvider;
+        this.ownScheduler = scheduler == null;
+        this.scheduler = scheduler != null ? scheduler : Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "query-status-poller");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.initialDelay = initialDelay;
+        this.maxDelay = maxDelay;
+        this.rateLimiter = rateLimiter;
+    }
+
+    public CompletableFuture<Integer> poll(String statusUrl) {
+        return poll(statusUrl, DEFAULT_DEADLINE);
+    }
+
+    /*
+        Completes with the first status other than 202. The first request goes out immediately.
+        Cancelling the future stops polling the URL.
+     */
+    public CompletableFuture<Integer> poll(String statusUrl, Duration deadline) {
+        if (closed)
+            throw new IllegalStateException("Poller is closed");
+        Poll poll = new Poll(statusUrl, System.nanoTime() + deadline.toNanos());
+        polls.add(poll);
+        poll.result.whenComplete((status, failure) -> {
+            polls.remove(poll);
+            Call call = poll.call;
+            if (failure instanceof CancellationException && call != null)
+                call.cancel();
+        });
+        scheduler.execute(poll::send);
+        return poll.result;
+    }
+
+    //Queries not yet terminal
+    public int getPendingCount() {
+        return polls.size();
+    }
+
+    //Status requests sent so far
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    /*
+        Cancels every pending query
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (Poll poll : polls)
+            poll.result.cancel(false);
+        if (ownScheduler)
+            scheduler.shutdownNow();
+    }
+
+    private class Poll implements Callback {
+        final String url;
+        final long deadlineNanos;
+        final CompletableFuture<Integer> result = new CompletableFuture<>();
+        volatile Call call;
+        Duration delay = initialDelay;
+
+        Poll(String url, long deadlineNanos) {
+            this.url = url;
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        //Runs on the scheduler. Neither the permit nor the token is waited for on the scheduler thread
+        void send() {
+            if (result.isDone())
+                return;
+            long permitWait = rateLimiter == null ? 0 : rateLimiter.reserve();
+            if (permitWait > 0)
+                schedule(this::sendNow, permitWait);
+            else
+                sendNow();
+        }
+
+        private void sendNow() {
+            if (result.isDone())
+                return;
+            tokenProvider.getTokenAsync().whenComplete((token, failure) -> {
+                if (failure != null) {
+                    result.completeExceptionally(failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure);
+                    return;
+                }
+                try {
+                    enqueue(token);
+                } catch (RuntimeException e) {
+                    result.completeExceptionally(e);
+                }
+            });
+        }
+
+        private void enqueue(String token) {
+            if (result.isDone())
+                return;
+            Request request = new Request.Builder().url(url).addHeader("Authorization", token).build();
+            requests.incrementAndGet();
+            call = httpClient.newCall(request);
+            call.enqueue(this);
+        }
+
+        @Override
+        public void onResponse(Call call, Response response) {
+            int code;
+            String retryAfter;
+            try (Response closing = response) {
+                code = closing.code();
+                retryAfter = closing.header("Retry-After");
+            }
+            if (code == PENDING || code == TOO_MANY_REQUESTS || code >= 500)
+                retry(retryAfter(retryAfter), "status " + code);
+            else
+                result.complete(code);
+        }
+
+        @Override
+        public void onFailure(Call call, IOException e) {
+            if (call.isCanceled())
+                return;
+            retry(null, e.toString());
+        }
+
+        private void retry(Duration serverDelay, String lastOutcome) {
+            if (result.isDone())
+                return;
+            Duration wait = serverDelay != null ? serverDelay : delay;
+            long remaining = deadlineNanos - System.nanoTime();
+            if (remaining <= 0) {
+                result.completeExceptionally(new QueryTimeoutException("Query still pending at its deadline, last " + lastOutcome + ": " + url));
+                return;
+            }
+            Duration next = delay.multipliedBy((long) (BACKOFF_FACTOR * 100)).dividedBy(100);
+            delay = next.compareTo(maxDelay) > 0 ? maxDelay : next;
+            //A last request right at the deadline rather than none at all
+            schedule(this::send, Math.min(wait.toNanos(), remaining));
+        }
+
+        private void schedule(Runnable task, long delayNanos) {
+            try {
+                scheduler.schedule(task, delayNanos, TimeUnit.NANOSECONDS);
+            } catch (RuntimeException e) {
+                //Scheduler shut down by close()
+                result.completeExceptionally(new CancellationException("Poller closed"));
+            }
+        }
+    }
+
+    /*
+        Retry-After in seconds or as an HTTP date, null when absent or unreadable
+     */
+    public static Duration retryAfter(String header) {
+        if (header == null || header.isBlank())
+            return null;
+        String value = header.trim();
+        try {
+            return Duration.ofSeconds(Math.max(0, Long.parseLong(value)));
+        } catch (NumberFormatException e) {
+            try {
+                Duration until = Duration.between(ZonedDateTime.now(), ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME));
+                return until.isNegative() ? Duration.ZERO : until;
+            } catch (DateTimeParseException ignored) {
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package com.particlehealth.fhirstarter.client;
+
+/*
+    A $query status URL was still pending when its deadline passed
+ */
+public class QueryTimeoutException extends RuntimeException {
+
+    public QueryTimeoutException(String message) {
+        super(message);
+    }
+}
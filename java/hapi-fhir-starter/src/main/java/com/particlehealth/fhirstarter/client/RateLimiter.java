@@ -0,0 +1,84 @@
+package com.particlehealth.fhirstarter.client;
+
+import ca.uhn.fhir.rest.client.api.IClientInterceptor;
+import ca.uhn.fhir.rest.client.api.IHttpRequest;
+import ca.uhn.fhir.rest.client.api.IHttpResponse;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/*
+    Token bucket shared by every request of a run, so the server sees at most permitsPerSecond requests per second
+    on average, with bursts up to burst requests after an idle period. Callers over the rate wait in acquire(),
+    asynchronous callers such as the QueryStatusPoller reserve() a permit and schedule the request for when it is free.
+    Thread safe. Permits are handed out in arrival order, a waiting caller does not hold the lock.
+ */
+public class RateLimiter {
+
+    private final LongSupplier nanoTime;
+    private final long intervalNanos;
+    private final long maxStoredNanos;
+    //Time at which the next permit is free. Earlier than now while permits are stored
+    private long nextFreeNanos;
+
+    public RateLimiter(double permitsPerSecond, int burst) {
+        this(permitsPerSecond, burst, System::nanoTime);
+    }
+
+    //With the clock of a test
+    RateLimiter(double permitsPerSecond, int burst, LongSupplier nanoTime) {
+        if (permitsPerSecond <= 0)
+            throw new IllegalArgumentException("permitsPerSecond must be positive");
+        if (burst < 1)
+            throw new IllegalArgumentException("burst must be at least 1");
+        this.intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond);
+        this.maxStoredNanos = intervalNanos * (burst - 1);
+        this.nanoTime = nanoTime;
+        this.nextFreeNanos = nanoTime.getAsLong();
+    }
+
+    /*
+        Waits until a permit is free
+     */
+    public void acquire() throws InterruptedException {
+        long wait = reserve();
+        if (wait > 0)
+            TimeUnit.NANOSECONDS.sleep(wait);
+    }
+
+    /*
+        Takes the next permit without waiting. Returns the nanoseconds until it is free, zero or less when it is free now.
+        The request must not go out before then.
+     */
+    public synchronized long reserve() {
+        long now = nanoTime.getAsLong();
+        long free = Math.max(nextFreeNanos, now - maxStoredNanos);
+        nextFreeNanos = free + intervalNanos;
+        return free - now;
+    }
+
+    /*
+        Limits the requests of a HAPI client
+     */
+    public IClientInterceptor asClientInterceptor() {
+        return new IClientInterceptor() {
+            @Override
+            public void interceptRequest(IHttpRequest request) {
+                acquireUninterruptibly();
+            }
+
+            @Override
+            public void interceptResponse(IHttpResponse response) {
+            }
+        };
+    }
+
+    private void acquireUninterruptibly() {
+        try {
+            acquire();
+        } catch (InterruptedException e) {
+            //Keep the interrupt for the caller, the request goes out regardless
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.particlehealth.fhirstarter.client;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.PerformanceOptionsEnum;
+import ca.uhn.fhir.okhttp.client.OkHttpRestfulClientFactory;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.MedicationStatement;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Patient;
+
+/*
+    The one R4 FhirContext of the process. Creating a context scans the whole model and is expensive,
+    while a context is thread safe and can serve every client.
+
+    Its clients send requests through SharedHttpClient and do not fetch the server's CapabilityStatement
+    before their first request, so a new client costs no more than the object itself.
+ */
+public final class SharedFhirContext {
+
+    private static final Object LOCK = new Object();
+    private static boolean deferredModelScanning;
+    private static volatile FhirContext context;
+
+    private SharedFhirContext() {
+    }
+
+    /*
+        With deferred scanning each resource type is scanned on first use rather than all of them up front,
+        which shortens startup when only a few types are used. Must be called before the first get()
+     */
+    public static void setDeferredModelScanning(boolean deferred) {
+        synchronized (LOCK) {
+            if (context != null)
+                throw new IllegalStateException("The FhirContext has already been created");
+            deferredModelScanning = deferred;
+        }
+    }
+
+    public static FhirContext get() {
+        FhirContext current = context;
+        if (current != null)
+            return current;
+        synchronized (LOCK) {
+            if (context == null)
+                context = create();
+            return context;
+        }
+    }
+
+    /*
+        Creates the context, scans the resource types the sample uses and loads the JSON parser,
+        so the first request does not pay for them. Returns the time it took in milliseconds
+     */
+    public static long warmUp() {
+        long start = System.nanoTime();
+        FhirContext fhirContext = get();
+        fhirContext.getResourceDefinition(Patient.class);
+        fhirContext.getResourceDefinition(Bundle.class);
+        fhirContext.getResourceDefinition(Parameters.class);
+        fhirContext.getResourceDefinition(MedicationStatement.class);
+        fhirContext.getResourceDefinition(OperationOutcome.class);
+        IParser parser = fhirContext.newJsonParser();
+        parser.parseResource(Patient.class, parser.encodeResourceToString(new Patient().setActive(true)));
+        return (System.nanoTime() - start) / 1_000_000;
+    }
+
+    private static FhirContext create() {
+        FhirContext fhirContext = FhirContext.forR4();
+        if (deferredModelScanning)
+            fhirContext.setPerformanceOptions(PerformanceOptionsEnum.DEFERRED_MODEL_SCANNING);
+        OkHttpRestfulClientFactory clientFactory = new OkHttpRestfulClientFactory(fhirContext);
+        clientFactory.setHttpClient(SharedHttpClient.get());
+        clientFactory.setServerValidationMode(ServerValidationModeEnum.NEVER);
+        fhirContext.setRestfulClientFactory(clientFactory);
+        return fhirContext;
+    }
+}
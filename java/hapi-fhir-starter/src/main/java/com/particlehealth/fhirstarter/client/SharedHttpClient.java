@@ -0,0 +1,47 @@
+package com.particlehealth.fhirstarter.client;
+
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+    The one OkHttpClient of the process, used by the FHIR clients and the plain calls to /auth and the query status URL,
+    so they all reuse the same pooled connections and TLS sessions instead of connecting for every request.
+    Derive variants with get().newBuilder(), which keeps the pool.
+ */
+public final class SharedHttpClient {
+
+    //Idle connections kept open per process, and for how long
+    public static final int MAX_IDLE_CONNECTIONS = 64;
+    public static final long KEEP_ALIVE_SECONDS = 300;
+    //Concurrent requests per process and per host through the asynchronous API
+    public static final int MAX_REQUESTS = 256;
+    public static final int MAX_REQUESTS_PER_HOST = 64;
+    public static final long CONNECT_TIMEOUT_SECONDS = 10;
+    //The same socket timeout SampleQuery set on the HAPI client
+    public static final long READ_TIMEOUT_SECONDS = 40;
+
+    private static final OkHttpClient CLIENT = create();
+
+    private SharedHttpClient() {
+    }
+
+    public static OkHttpClient get() {
+        return CLIENT;
+    }
+
+    private static OkHttpClient create() {
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(MAX_REQUESTS);
+        dispatcher.setMaxRequestsPerHost(MAX_REQUESTS_PER_HOST);
+        return new OkHttpClient.Builder()
+                .connectionPool(new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS))
+                .dispatcher(dispatcher)
+                .connectTimeout(CONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                .readTimeout(READ_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                .writeTimeout(READ_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                .build();
+    }
+}
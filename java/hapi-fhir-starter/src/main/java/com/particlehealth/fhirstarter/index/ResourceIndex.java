@@ -0,0 +1,243 @@
+package com.particlehealth.fhirstarter.index;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import com.particlehealth.fhirstarter.output.ResourceWriter;
+import org.hl7.fhir.r4.model.Resource;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/*
+    The resources of one patient of the indexed types, by type and id, filled while Patient/$everything pages stream in,
+    so per-type extracts are written locally instead of with a search per type.
+    Resources of any other type are only counted and their type recorded, then dropped: $everything is written
+    to its file as it arrives, and the index holds no more than the extracts need.
+
+    In memory it holds the parsed resources. Spilling, it appends each type's resources to an NDJSON file of that type
+    and holds only the id and file position of each, so memory is bounded by the number of resources rather than their size.
+    A resource whose type and id are already indexed is skipped, resources without an id are always kept.
+    Extracts list a type's resources in the order they arrived. Not thread safe, close it to delete the spill files.
+ */
+public class ResourceIndex implements Closeable {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final IParser parser;
+    //null in memory
+    private final Path spillDirectory;
+    private final Set<String> indexedTypes;
+    //Every type added, indexed or not, in the order they first appeared
+    private final Set<String> seenTypes = new LinkedHashSet<>();
+    private final Map<String, TypeEntries> types = new LinkedHashMap<>();
+    private long added;
+    private long count;
+    private long duplicates;
+    private boolean closed;
+
+    private ResourceIndex(FhirContext fhirContext, Path spillDirectory, Collection<String> indexedTypes) {
+        this.parser = fhirContext.newJsonParser().setPrettyPrint(false);
+        this.spillDirectory = spillDirectory;
+        this.indexedTypes = Collections.unmodifiableSet(new LinkedHashSet<>(indexedTypes));
+    }
+
+    /*
+        Indexes the resources of indexedTypes, e.g. the extract types
+     */
+    public static ResourceIndex inMemory(FhirContext fhirContext, Collection<String> indexedTypes) {
+        return new ResourceIndex(fhirContext, null, indexedTypes);
+    }
+
+    /*
+        Spills to a new directory under parent, removed again by close()
+     */
+    public static ResourceIndex spilling(FhirContext fhirContext, Path parent, Collection<String> indexedTypes) throws IOException {
+        Files.createDirectories(parent);
+        return new ResourceIndex(fhirContext, Files.createTempDirectory(parent, "resource-index"), indexedTypes);
+    }
+
+    /*
+        Adds the resource, false if it is not of an indexed type or a resource of the same type and id was added before
+     */
+    public boolean add(Resource resource) throws IOException {
+        if (closed)
+            throw new IllegalStateException("Index is closed");
+        String type = resource.fhirType();
+        added++;
+        seenTypes.add(type);
+        if (!indexedTypes.contains(type))
+            return false;
+        String id = resource.getIdElement() == null ? null : resource.getIdElement().getIdPart();
+        TypeEntries entries = types.get(type);
+        if (entries == null) {
+            entries = new TypeEntries(type);
+            types.put(type, entries);
+        }
+        //Id-less resources are kept under a key no real id can have
+        String key = id != null ? id : "#" + count;
+        if (entries.ids.containsKey(key)) {
+            duplicates++;
+            return false;
+        }
+        entries.ids.put(key, spillDirectory == null ? resource : entries.append(resource));
+        count++;
+        return true;
+    }
+
+    public Set<String> getIndexedTypes() {
+        return indexedTypes;
+    }
+
+    //Resource types added so far, indexed or not, in the order they first appeared
+    public Set<String> getTypes() {
+        return Collections.unmodifiableSet(seenTypes);
+    }
+
+    //Whether a resource of the type was added, indexed or not
+    public boolean contains(String type) {
+        return seenTypes.contains(type);
+    }
+
+    public int count(String type) {
+        TypeEntries entries = types.get(type);
+        return entries == null ? 0 : entries.ids.size();
+    }
+
+    //Resources added, of any type and duplicates included
+    public long getAddedCount() {
+        return added;
+    }
+
+    //Resources indexed, duplicates not included
+    public long getCount() {
+        return count;
+    }
+
+    //Resources skipped as duplicates
+    public long getDuplicateCount() {
+        return duplicates;
+    }
+
+    /*
+        The resource of the type with the id, null if not indexed
+     */
+    public Resource get(String type, String id) throws IOException {
+        TypeEntries entries = types.get(type);
+        Object entry = entries == null ? null : entries.ids.get(id);
+        if (entry == null)
+            return null;
+        return entry instanceof Resource ? (Resource) entry : entries.read((long[]) entry);
+    }
+
+    /*
+        Writes every resource of the type in the order they were added, returns how many.
+        The type must be one of the indexed types.
+     */
+    public long writeTo(String type, ResourceWriter writer) throws IOException {
+        if (!indexedTypes.contains(type))
+            throw new IllegalArgumentException(type + " is not indexed, the index holds " + indexedTypes);
+        TypeEntries entries = types.get(type);
+        if (entries == null)
+            return 0;
+        if (spillDirectory == null) {
+            for (Object resource : entries.ids.values())
+                writer.write((Resource) resource);
+            return entries.ids.size();
+        }
+        entries.flush();
+        long written = 0;
+        try (BufferedReader lines = Files.newBufferedReader(entries.file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = lines.readLine()) != null) {
+                writer.write(parser.parseResource(line));
+                written++;
+            }
+        }
+        return written;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        IOException failure = null;
+        for (TypeEntries entries : types.values()) {
+            try {
+                entries.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        types.clear();
+        seenTypes.clear();
+        if (spillDirectory != null)
+            Files.deleteIfExists(spillDirectory);
+        if (failure != null)
+            throw failure;
+    }
+
+    private class TypeEntries {
+        //id to the Resource in memory, or to the offset and length of its line in the spill file
+        final Map<String, Object> ids = new LinkedHashMap<>();
+        final Path file;
+        OutputStream out;
+        RandomAccessFile in;
+        long size;
+
+        TypeEntries(String type) {
+            this.file = spillDirectory == null ? null : spillDirectory.resolve(type + ".ndjson");
+        }
+
+        long[] append(Resource resource) throws IOException {
+            if (out == null)
+                out = new BufferedOutputStream(Files.newOutputStream(file), BUFFER_SIZE);
+            byte[] line = parser.encodeResourceToString(resource).getBytes(StandardCharsets.UTF_8);
+            long[] position = {size, line.length};
+            out.write(line);
+            out.write('\n');
+            size += line.length + 1;
+            return position;
+        }
+
+        Resource read(long[] position) throws IOException {
+            flush();
+            if (in == null)
+                in = new RandomAccessFile(file.toFile(), "r");
+            byte[] line = new byte[(int) position[1]];
+            in.seek(position[0]);
+            in.readFully(line);
+            return (Resource) parser.parseResource(new String(line, StandardCharsets.UTF_8));
+        }
+
+        void flush() throws IOException {
+            if (out != null)
+                out.flush();
+        }
+
+        void close() throws IOException {
+            try {
+                if (out != null)
+                    out.close();
+                if (in != null)
+                    in.close();
+            } finally {
+                if (file != null)
+                    Files.deleteIfExists(file);
+            }
+        }
+    }
+}
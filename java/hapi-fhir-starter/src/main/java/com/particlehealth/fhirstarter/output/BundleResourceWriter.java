@@ -0,0 +1,42 @@
+package com.particlehealth.fhirstarter.output;
+
+import ca.uhn.fhir.context.FhirContext;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Path;
+
+/*
+    A collection Bundle with one entry per resource, the same document BundleBuilder.addCollectionEntry builds,
+    written as the resources arrive. The Bundle is closed off on commit.
+ */
+class BundleResourceWriter extends ResourceWriter {
+
+    private final String separator;
+
+    BundleResourceWriter(FhirContext fhirContext, Writer out, Path file, boolean prettyPrint) throws IOException {
+        super(fhirContext, out, file, prettyPrint);
+        this.separator = prettyPrint ? "\n" : "";
+        out.write("{\"resourceType\":\"Bundle\",\"type\":\"collection\",\"entry\":[");
+    }
+
+    @Override
+    void beforeResource(Writer out, long index) throws IOException {
+        if (index > 0)
+            out.write(',');
+        out.write(separator);
+        out.write("{\"resource\":");
+    }
+
+    @Override
+    void afterResource(Writer out) throws IOException {
+        out.write('}');
+    }
+
+    @Override
+    void finish(Writer out) throws IOException {
+        out.write(separator);
+        out.write("]}");
+        out.write(separator);
+    }
+}
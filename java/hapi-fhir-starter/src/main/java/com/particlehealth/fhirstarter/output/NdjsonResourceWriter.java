@@ -0,0 +1,30 @@
+package com.particlehealth.fhirstarter.output;
+
+import ca.uhn.fhir.context.FhirContext;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Path;
+
+/*
+    Newline delimited JSON, one resource per line. Never pretty printed, a resource must fit on its line.
+ */
+class NdjsonResourceWriter extends ResourceWriter {
+
+    NdjsonResourceWriter(FhirContext fhirContext, Writer out, Path file) {
+        super(fhirContext, out, file, false);
+    }
+
+    @Override
+    void beforeResource(Writer out, long index) {
+    }
+
+    @Override
+    void afterResource(Writer out) throws IOException {
+        out.write('\n');
+    }
+
+    @Override
+    void finish(Writer out) {
+    }
+}
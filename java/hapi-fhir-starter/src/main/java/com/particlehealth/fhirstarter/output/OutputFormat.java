@@ -0,0 +1,28 @@
+package com.particlehealth.fhirstarter.output;
+
+import java.util.Locale;
+
+public enum OutputFormat {
+    //One resource per line, <name>.ndjson
+    NDJSON(".ndjson"),
+    //A collection Bundle written entry by entry, <name>.json
+    BUNDLE(".json");
+
+    private final String extension;
+
+    OutputFormat(String extension) {
+        this.extension = extension;
+    }
+
+    public String getExtension() {
+        return extension;
+    }
+
+    public static OutputFormat fromName(String name) {
+        try {
+            return valueOf(name.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown output format: " + name);
+        }
+    }
+}
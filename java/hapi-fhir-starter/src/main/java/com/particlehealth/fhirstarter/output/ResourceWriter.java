@@ -0,0 +1,123 @@
+package com.particlehealth.fhirstarter.output;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/*
+    Writes resources to a file as they arrive, so memory is bounded by the resource being written rather than the whole record.
+    The resources go to <file>.tmp, which commit finishes and moves into place. Closing without commit deletes it,
+    so a write that fails part way, a search that fails on a later page, leaves no file rather than a truncated one
+    that still parses. Not thread safe.
+ */
+public abstract class ResourceWriter implements Closeable {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final IParser parser;
+    private final Writer out;
+    private final Path file;
+    private final Path temporary;
+    //Handed to the parser, which flushes and closes the writer it encodes to after every resource
+    private final Writer parserOut;
+    private long count;
+    private boolean committed;
+
+    ResourceWriter(FhirContext fhirContext, Writer out, Path file, boolean prettyPrint) {
+        this.parser = fhirContext.newJsonParser().setPrettyPrint(prettyPrint);
+        this.out = out;
+        this.file = file;
+        this.temporary = temporaryFile(file);
+        this.parserOut = new FilterWriter(out) {
+            @Override
+            public void flush() {
+                //Flushed when the file is closed
+            }
+
+            @Override
+            public void close() {
+                //Left open for the next resource
+            }
+        };
+    }
+
+    /*
+        Writes to <directory>/<name><extension of the format> once committed
+     */
+    public static ResourceWriter open(FhirContext fhirContext, Path directory, String name, OutputFormat format, boolean prettyPrint) throws IOException {
+        Path file = directory.resolve(name + format.getExtension());
+        Path temporary = temporaryFile(file);
+        Writer out = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(temporary), StandardCharsets.UTF_8), BUFFER_SIZE);
+        try {
+            return format == OutputFormat.NDJSON
+                    ? new NdjsonResourceWriter(fhirContext, out, file)
+                    : new BundleResourceWriter(fhirContext, out, file, prettyPrint);
+        } catch (IOException | RuntimeException e) {
+            try {
+                out.close();
+            } finally {
+                Files.deleteIfExists(temporary);
+            }
+            throw e;
+        }
+    }
+
+    private static Path temporaryFile(Path file) {
+        return file.resolveSibling(file.getFileName() + ".tmp");
+    }
+
+    public void write(IBaseResource resource) throws IOException {
+        beforeResource(out, count);
+        parser.encodeResourceToWriter(resource, parserOut);
+        afterResource(out);
+        count++;
+    }
+
+    //Resources written so far
+    public long getCount() {
+        return count;
+    }
+
+    /*
+        Finishes the file and moves it into place, replacing an earlier one. Call once every resource is written.
+     */
+    public void commit() throws IOException {
+        if (committed)
+            throw new IllegalStateException(file + " is already committed");
+        finish(out);
+        out.close();
+        Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        committed = true;
+    }
+
+    /*
+        Deletes the temporary file unless committed
+     */
+    @Override
+    public void close() throws IOException {
+        if (committed)
+            return;
+        try {
+            out.close();
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    abstract void beforeResource(Writer out, long index) throws IOException;
+
+    abstract void afterResource(Writer out) throws IOException;
+
+    abstract void finish(Writer out) throws IOException;
+}
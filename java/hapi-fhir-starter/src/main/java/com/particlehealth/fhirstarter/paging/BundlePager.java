@@ -0,0 +1,171 @@
+package com.particlehealth.fhirstarter.paging;
+
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import org.hl7.fhir.r4.model.Bundle;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+    Walks a paged search, e.g. Patient/$everything, requesting the next page as soon as its link is known
+    instead of after the current page has been consumed, so the network wait overlaps with processing.
+    At most prefetchDepth fetched pages wait for the consumer, with one more request in flight.
+
+    A failed request ends the paging: next() throws a PageFetchException naming the page, after the pages before it.
+    Not thread safe, one consumer per pager. Close it to stop fetching early.
+ */
+public class BundlePager implements Iterator<Bundle>, Closeable {
+
+    public static final int DEFAULT_PREFETCH_DEPTH = 2;
+
+    //Shared by pagers without an executor of their own. Threads are created per fetching pager and end when idle
+    private static final ExecutorService DEFAULT_EXECUTOR = Executors.newCachedThreadPool(new FetchThreadFactory());
+    private static final Page END = new Page(null, null);
+
+    private final IGenericClient client;
+    private final String firstPageUrl;
+    private final BlockingQueue<Page> pages;
+    private final Future<?> fetcher;
+
+    private Bundle nextPage;
+    private boolean finished;
+    private volatile boolean closed;
+    private int consumed;
+
+    public BundlePager(IGenericClient client, String firstPageUrl) {
+        this(client, firstPageUrl, DEFAULT_PREFETCH_DEPTH);
+    }
+
+    public BundlePager(IGenericClient client, String firstPageUrl, int prefetchDepth) {
+        this(client, firstPageUrl, prefetchDepth, DEFAULT_EXECUTOR);
+    }
+
+    public BundlePager(IGenericClient client, String firstPageUrl, int prefetchDepth, ExecutorService executor) {
+        if (prefetchDepth < 1)
+            throw new IllegalArgumentException("prefetchDepth must be at least 1");
+        this.client = client;
+        this.firstPageUrl = firstPageUrl;
+        this.pages = new ArrayBlockingQueue<>(prefetchDepth);
+        this.fetcher = executor.submit(this::fetchPages);
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (nextPage != null)
+            return true;
+        if (finished)
+            return false;
+        Page page;
+        try {
+            page = pages.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            close();
+            throw new PageFetchException("Interrupted while waiting for page " + (consumed + 1), e);
+        }
+        if (page == END) {
+            finished = true;
+            return false;
+        }
+        if (page.failure != null) {
+            finished = true;
+            throw page.failure;
+        }
+        nextPage = page.bundle;
+        return true;
+    }
+
+    @Override
+    public Bundle next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        Bundle page = nextPage;
+        nextPage = null;
+        consumed++;
+        return page;
+    }
+
+    //Pages handed out so far
+    public int getPageCount() {
+        return consumed;
+    }
+
+    /*
+        Stops fetching and drops the pages not consumed yet
+     */
+    @Override
+    public void close() {
+        if (closed)
+            return;
+        closed = true;
+        finished = true;
+        nextPage = null;
+        fetcher.cancel(true);
+        pages.clear();
+    }
+
+    private void fetchPages() {
+        String url = firstPageUrl;
+        int pageNumber = 1;
+        //END or the failure that ends the paging, queued whatever happens unless the pager was closed, so hasNext never waits forever
+        Page last = END;
+        try {
+            while (url != null && !closed) {
+                Bundle bundle;
+                try {
+                    bundle = client.search().byUrl(url).returnBundle(Bundle.class).execute();
+                } catch (Throwable e) {
+                    last = new Page(null, new PageFetchException("Failed to fetch page " + pageNumber + ": " + url, e));
+                    return;
+                }
+                Bundle.BundleLinkComponent next = bundle.getLink(Bundle.LINK_NEXT);
+                url = next == null ? null : next.getUrl();
+                pages.put(new Page(bundle, null));
+                pageNumber++;
+            }
+        } catch (InterruptedException e) {
+            //Closed by the consumer
+            Thread.currentThread().interrupt();
+            last = null;
+        } catch (Throwable e) {
+            last = new Page(null, new PageFetchException("Paging failed after page " + (pageNumber - 1), e));
+        } finally {
+            if (last != null && !closed) {
+                try {
+                    pages.put(last);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    private static class Page {
+        final Bundle bundle;
+        final PageFetchException failure;
+
+        Page(Bundle bundle, PageFetchException failure) {
+            this.bundle = bundle;
+            this.failure = failure;
+        }
+    }
+
+    private static class FetchThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "bundle-pager-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
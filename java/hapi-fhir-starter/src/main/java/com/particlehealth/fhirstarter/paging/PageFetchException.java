@@ -0,0 +1,11 @@
+package com.particlehealth.fhirstarter.paging;
+
+/*
+    A page of a paged search could not be fetched. The cause is the client's exception, usually a BaseServerResponseException.
+ */
+public class PageFetchException extends RuntimeException {
+
+    public PageFetchException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
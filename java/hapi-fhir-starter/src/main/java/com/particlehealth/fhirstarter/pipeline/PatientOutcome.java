@@ -0,0 +1,64 @@
+package com.particlehealth.fhirstarter.pipeline;
+
+/*
+    How one patient's flow ended. A failed flow names the stage it stopped at.
+ */
+public class PatientOutcome {
+
+    private final int index;
+    private final String patientId;
+    private final PipelineStage failedStage;
+    private final Throwable failure;
+    private final long resourceCount;
+    private final long elapsedNanos;
+
+    PatientOutcome(int index, String patientId, PipelineStage failedStage, Throwable failure, long resourceCount, long elapsedNanos) {
+        this.index = index;
+        this.patientId = patientId;
+        this.failedStage = failedStage;
+        this.failure = failure;
+        this.resourceCount = resourceCount;
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    //Position of the patient in the input, from 0
+    public int getIndex() {
+        return index;
+    }
+
+    //null when registration failed
+    public String getPatientId() {
+        return patientId;
+    }
+
+    public boolean isSucceeded() {
+        return failure == null;
+    }
+
+    //null when the flow succeeded
+    public PipelineStage getFailedStage() {
+        return failedStage;
+    }
+
+    //null when the flow succeeded
+    public Throwable getFailure() {
+        return failure;
+    }
+
+    //Resources written for the patient
+    public long getResourceCount() {
+        return resourceCount;
+    }
+
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    @Override
+    public String toString() {
+        String patient = "patient #" + index + (patientId != null ? " (" + patientId + ")" : "");
+        return isSucceeded()
+                ? patient + ": " + resourceCount + " resources in " + elapsedNanos / 1_000_000 + " ms"
+                : patient + ": failed at " + failedStage + ": " + failure;
+    }
+}
@@ -0,0 +1,165 @@
+package com.particlehealth.fhirstarter.pipeline;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import com.particlehealth.fhirstarter.index.ResourceIndex;
+import com.particlehealth.fhirstarter.output.OutputFormat;
+import com.particlehealth.fhirstarter.output.ResourceWriter;
+import com.particlehealth.fhirstarter.paging.BundlePager;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.StringType;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/*
+    The requests of one patient's flow against a Particle host, one method per stage except polling.
+    Holds no state of a patient, so one flow serves any number of patients at once. Configure it before the first patient.
+
+    Patient/$everything is indexed while it is written, and the per-type extracts are written from that index,
+    which keeps only the resources of the extract types.
+    With searchMissingTypes, an extract type that $everything did not contain is searched for on the server instead.
+ */
+public class PatientQueryFlow {
+
+    public static final List<String> DEFAULT_EXTRACT_TYPES = Collections.singletonList("MedicationStatement");
+
+    private final IGenericClient client;
+    private final String host;
+    private final FhirContext fhirContext;
+    private final Path outputDirectory;
+    private final OutputFormat outputFormat;
+    private final boolean prettyPrint;
+    private List<String> extractTypes = DEFAULT_EXTRACT_TYPES;
+    private boolean searchMissingTypes;
+    //null to index in memory
+    private Path spillDirectory;
+
+    /*
+        client is a client for host + "/R4" carrying the authorization
+     */
+    public PatientQueryFlow(IGenericClient client, String host, FhirContext fhirContext,
+                            Path outputDirectory, OutputFormat outputFormat, boolean prettyPrint) {
+        this.client = client;
+        this.host = host;
+        this.fhirContext = fhirContext;
+        this.outputDirectory = outputDirectory;
+        this.outputFormat = outputFormat;
+        this.prettyPrint = prettyPrint;
+    }
+
+    public List<String> getExtractTypes() {
+        return extractTypes;
+    }
+
+    /*
+        Resource types written to <patientId>_<type>, MedicationStatement by default
+     */
+    public void setExtractTypes(List<String> extractTypes) {
+        this.extractTypes = Collections.unmodifiableList(new ArrayList<>(extractTypes));
+    }
+
+    public boolean isSearchMissingTypes() {
+        return searchMissingTypes;
+    }
+
+    /*
+        Whether an extract type missing from $everything is searched for, Type?patient=<id>.
+        Off by default, the extract is then empty.
+     */
+    public void setSearchMissingTypes(boolean searchMissingTypes) {
+        this.searchMissingTypes = searchMissingTypes;
+    }
+
+    public Path getSpillDirectory() {
+        return spillDirectory;
+    }
+
+    /*
+        Where indexes spill their resources to disk, null (the default) to hold them in memory
+     */
+    public void setSpillDirectory(Path spillDirectory) {
+        this.spillDirectory = spillDirectory;
+    }
+
+    /*
+        Registers the demographics, returns the patient id
+     */
+    public String register(Patient patient) {
+        MethodOutcome outcome = client.create().resource(patient).prettyPrint().encodedJson().accept("application/fhir+json").execute();
+        return outcome.getId().getIdPart();
+    }
+
+    /*
+        Queries Particle Health connected networks for the patient, returns the status URL to poll
+     */
+    public String startQuery(String patientId) {
+        Parameters inParams = new Parameters();
+        inParams.addParameter().setName("purpose").setValue(new StringType("TREATMENT"));
+        Parameters outParams = client.operation().onInstance(new IdType("Patient", patientId)).named("$query").withParameters(inParams).execute();
+        return outParams.getParameter("status").primitiveValue();
+    }
+
+    /*
+        Writes Patient/$everything to <patientId>_everything and returns the index of its extract type resources,
+        for writeExtracts. Resources of other types are only written. The caller closes the index.
+     */
+    public ResourceIndex writeEverything(String patientId) throws IOException {
+        ResourceIndex index = spillDirectory == null
+                ? ResourceIndex.inMemory(fhirContext, extractTypes)
+                : ResourceIndex.spilling(fhirContext, spillDirectory, extractTypes);
+        try {
+            writeSearch(patientId + "_everything", host + "/R4/Patient/" + patientId + "/$everything", index);
+            return index;
+        } catch (IOException | RuntimeException e) {
+            index.close();
+            throw e;
+        }
+    }
+
+    /*
+        Writes each extract type to <patientId>_<type> from the index of the patient's $everything,
+        or from a search when the type is missing and searchMissingTypes is set. Returns the number of resources written.
+     */
+    public long writeExtracts(String patientId, ResourceIndex index) throws IOException {
+        long written = 0;
+        for (String type : extractTypes) {
+            String name = patientId + "_" + type;
+            if (!index.contains(type) && searchMissingTypes) {
+                written += writeSearch(name, host + "/R4/" + type + "?patient=" + patientId, null);
+                continue;
+            }
+            try (ResourceWriter writer = ResourceWriter.open(fhirContext, outputDirectory, name, outputFormat, prettyPrint)) {
+                written += index.writeTo(type, writer);
+                writer.commit();
+            }
+        }
+        return written;
+    }
+
+    //Every page of the search written, and indexed if given, as it arrives. The next page is requested meanwhile.
+    //The file is only put in place after the last page, a failed page leaves none
+    private long writeSearch(String name, String url, ResourceIndex index) throws IOException {
+        try (ResourceWriter writer = ResourceWriter.open(fhirContext, outputDirectory, name, outputFormat, prettyPrint);
+             BundlePager pages = new BundlePager(client, url)) {
+            while (pages.hasNext()) {
+                for (Bundle.BundleEntryComponent component : pages.next().getEntry()) {
+                    Resource resource = component.getResource();
+                    writer.write(resource);
+                    if (index != null)
+                        index.add(resource);
+                }
+            }
+            writer.commit();
+            return writer.getCount();
+        }
+    }
+}
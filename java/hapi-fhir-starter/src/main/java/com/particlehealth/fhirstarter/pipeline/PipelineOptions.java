@@ -0,0 +1,70 @@
+package com.particlehealth.fhirstarter.pipeline;
+
+import com.particlehealth.fhirstarter.client.QueryStatusPoller;
+
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Map;
+
+/*
+    Concurrency limits and retry settings of a QueryOrchestrator.
+    maxPatientsInFlight bounds the patients between registration and their last download, polling ones included.
+    A stage limit bounds the patients in that stage at once: the threads of the stage for the blocking stages,
+    the outstanding status polls for POLL.
+ */
+public class PipelineOptions {
+
+    public static final int DEFAULT_MAX_PATIENTS_IN_FLIGHT = 500;
+    public static final int DEFAULT_STAGE_LIMIT = 16;
+
+    private int maxPatientsInFlight = DEFAULT_MAX_PATIENTS_IN_FLIGHT;
+    private final Map<PipelineStage, Integer> stageLimits = new EnumMap<>(PipelineStage.class);
+    private RetryPolicy retryPolicy = new RetryPolicy();
+    private Duration pollDeadline = QueryStatusPoller.DEFAULT_DEADLINE;
+
+    public int getMaxPatientsInFlight() {
+        return maxPatientsInFlight;
+    }
+
+    public PipelineOptions setMaxPatientsInFlight(int maxPatientsInFlight) {
+        if (maxPatientsInFlight < 1)
+            throw new IllegalArgumentException("maxPatientsInFlight must be at least 1");
+        this.maxPatientsInFlight = maxPatientsInFlight;
+        return this;
+    }
+
+    /*
+        DEFAULT_STAGE_LIMIT unless set, POLL is bounded by maxPatientsInFlight unless set
+     */
+    public int getStageLimit(PipelineStage stage) {
+        Integer limit = stageLimits.get(stage);
+        if (limit != null)
+            return limit;
+        return stage == PipelineStage.POLL ? maxPatientsInFlight : DEFAULT_STAGE_LIMIT;
+    }
+
+    public PipelineOptions setStageLimit(PipelineStage stage, int limit) {
+        if (limit < 1)
+            throw new IllegalArgumentException("Limit of " + stage + " must be at least 1");
+        stageLimits.put(stage, limit);
+        return this;
+    }
+
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    public PipelineOptions setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+        return this;
+    }
+
+    public Duration getPollDeadline() {
+        return pollDeadline;
+    }
+
+    public PipelineOptions setPollDeadline(Duration pollDeadline) {
+        this.pollDeadline = pollDeadline;
+        return this;
+    }
+}
@@ -0,0 +1,13 @@
+package com.particlehealth.fhirstarter.pipeline;
+
+/*
+    The steps of one patient's flow, in order. Downloads include writing the resources to their files,
+    EXTRACTS writes the per-type extracts from the $everything index and searches for missing types if enabled.
+ */
+public enum PipelineStage {
+    REGISTER,
+    QUERY,
+    POLL,
+    EVERYTHING,
+    EXTRACTS
+}
@@ -0,0 +1,65 @@
+package com.particlehealth.fhirstarter.pipeline;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+    Result of a QueryOrchestrator run: patient counts, throughput, the statistics of every stage and the failed patients.
+ */
+public class PipelineSummary {
+
+    private final long patients;
+    private final long resources;
+    private final long elapsedNanos;
+    private final Map<PipelineStage, StageStatistics> stages;
+    private final List<PatientOutcome> failures;
+
+    PipelineSummary(long patients, long resources, long elapsedNanos, Map<PipelineStage, StageStatistics> stages, List<PatientOutcome> failures) {
+        this.patients = patients;
+        this.resources = resources;
+        this.elapsedNanos = elapsedNanos;
+        this.stages = Collections.unmodifiableMap(new EnumMap<>(stages));
+        this.failures = Collections.unmodifiableList(failures);
+    }
+
+    public long getPatients() {
+        return patients;
+    }
+
+    public long getSucceeded() {
+        return patients - failures.size();
+    }
+
+    public List<PatientOutcome> getFailures() {
+        return failures;
+    }
+
+    //Resources written over all patients
+    public long getResources() {
+        return resources;
+    }
+
+    public double getElapsedSeconds() {
+        return elapsedNanos / 1e9;
+    }
+
+    public double getPatientsPerSecond() {
+        return elapsedNanos == 0 ? 0 : patients / getElapsedSeconds();
+    }
+
+    public StageStatistics getStage(PipelineStage stage) {
+        return stages.get(stage);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder summary = new StringBuilder(String.format(
+                "Patients: %d (%d succeeded, %d failed) in %.1f s, %.2f patients/s, %d resources written%n",
+                patients, getSucceeded(), failures.size(), getElapsedSeconds(), getPatientsPerSecond(), resources));
+        for (StageStatistics stage : stages.values())
+            summary.append(stage).append(System.lineSeparator());
+        return summary.toString();
+    }
+}
@@ -0,0 +1,288 @@
+package com.particlehealth.fhirstarter.pipeline;
+
+import com.particlehealth.fhirstarter.client.QueryStatusPoller;
+import com.particlehealth.fhirstarter.index.ResourceIndex;
+import org.hl7.fhir.r4.model.Patient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+    Runs the register, $query, poll, $everything and extracts flow for many patients at once,
+    each patient an independent pipeline whose failure is recorded and ends only that patient.
+
+    Every blocking stage has a fixed pool of as many threads as its limit, and a patient moves on by being queued
+    for the next stage's pool. Polling holds no thread, the QueryStatusPoller completes a future when the query is done.
+    Failed stages are retried by the RetryPolicy after a wait on a scheduler thread, not on a stage thread.
+    Requests are rate limited by the client and poller handed in, see RateLimiter.
+ */
+public class QueryOrchestrator implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(QueryOrchestrator.class);
+
+    private static final int QUERY_COMPLETE = 200;
+
+    private final PatientQueryFlow flow;
+    private final QueryStatusPoller poller;
+    private final PipelineOptions options;
+    private final RetryPolicy retryPolicy;
+
+    private final Map<PipelineStage, ExecutorService> stageExecutors = new EnumMap<>(PipelineStage.class);
+    private final ScheduledExecutorService retryScheduler;
+    private final Semaphore pollSlots;
+
+    public QueryOrchestrator(PatientQueryFlow flow, QueryStatusPoller poller, PipelineOptions options) {
+        this.flow = flow;
+        this.poller = poller;
+        this.options = options;
+        this.retryPolicy = options.getRetryPolicy();
+        for (PipelineStage stage : PipelineStage.values()) {
+            if (stage != PipelineStage.POLL)
+                stageExecutors.put(stage, Executors.newFixedThreadPool(options.getStageLimit(stage), new StageThreadFactory(stage)));
+        }
+        this.retryScheduler = Executors.newSingleThreadScheduledExecutor(new StageThreadFactory(null));
+        this.pollSlots = new Semaphore(options.getStageLimit(PipelineStage.POLL));
+    }
+
+    /*
+        Runs every patient and returns once all of them succeeded or failed.
+        Patients are taken from the iterator as slots free up, so it may be backed by a large file.
+     */
+    public PipelineSummary run(Iterator<Patient> patients) throws InterruptedException {
+        Run run = new Run();
+        Semaphore inFlight = new Semaphore(options.getMaxPatientsInFlight());
+        int index = 0;
+        while (patients.hasNext()) {
+            Patient patient = patients.next();
+            inFlight.acquire();
+            PatientRun patientRun = new PatientRun(index++);
+            runPatient(run, patientRun, patient).whenComplete((resources, failure) -> {
+                try {
+                    run.finish(patientRun, resources, failure);
+                } finally {
+                    inFlight.release();
+                }
+            });
+        }
+        inFlight.acquire(options.getMaxPatientsInFlight());
+        inFlight.release(options.getMaxPatientsInFlight());
+        return run.summarize(index);
+    }
+
+    /*
+        Stops the stage threads. Patients still running fail
+     */
+    @Override
+    public void close() {
+        for (ExecutorService executor : stageExecutors.values())
+            executor.shutdownNow();
+        retryScheduler.shutdownNow();
+    }
+
+    private CompletableFuture<Long> runPatient(Run run, PatientRun patient, Patient demographics) {
+        return submit(run, patient, PipelineStage.REGISTER, () -> flow.register(demographics))
+                .thenCompose(patientId -> {
+                    patient.patientId = patientId;
+                    return submit(run, patient, PipelineStage.QUERY, () -> startQuery(patientId));
+                })
+                .thenCompose(statusUrl -> poll(run, patient, statusUrl))
+                .thenCompose(ignored -> submit(run, patient, PipelineStage.EVERYTHING, () -> flow.writeEverything(patient.patientId)))
+                .thenCompose(index -> submit(run, patient, PipelineStage.EXTRACTS,
+                        () -> index.getAddedCount() + flow.writeExtracts(patient.patientId, index))
+                        .whenComplete((written, failure) -> closeIndex(index)));
+    }
+
+    private static void closeIndex(ResourceIndex index) {
+        try {
+            index.close();
+        } catch (IOException e) {
+            logger.warn("Failed to remove the spill files of an index: " + e);
+        }
+    }
+
+    //Takes a poll slot before the query starts, so no query is started that cannot be polled
+    private String startQuery(String patientId) throws InterruptedException {
+        pollSlots.acquire();
+        try {
+            return flow.startQuery(patientId);
+        } catch (RuntimeException | Error e) {
+            pollSlots.release();
+            throw e;
+        }
+    }
+
+    private CompletableFuture<Integer> poll(Run run, PatientRun patient, String statusUrl) {
+        StageStatistics statistics = run.stages.get(PipelineStage.POLL);
+        patient.stage = PipelineStage.POLL;
+        long start = System.nanoTime();
+        CompletableFuture<Integer> status;
+        try {
+            status = poller.poll(statusUrl, options.getPollDeadline());
+        } catch (RuntimeException e) {
+            pollSlots.release();
+            statistics.recordFailure();
+            return CompletableFuture.failedFuture(e);
+        }
+        return status.thenApply(code -> {
+            if (code != QUERY_COMPLETE)
+                throw new IllegalStateException("Query ended with status " + code + ": " + statusUrl);
+            return code;
+        }).whenComplete((code, failure) -> {
+            pollSlots.release();
+            if (failure == null)
+                statistics.recordSuccess(System.nanoTime() - start);
+            else
+                statistics.recordFailure();
+        });
+    }
+
+    private <T> CompletableFuture<T> submit(Run run, PatientRun patient, PipelineStage stage, StageCall<T> call) {
+        patient.stage = stage;
+        CompletableFuture<T> result = new CompletableFuture<>();
+        new Attempt<>(run.stages.get(stage), stage, call, result).submit();
+        return result;
+    }
+
+    private class Attempt<T> implements Runnable {
+        final StageStatistics statistics;
+        final PipelineStage stage;
+        final StageCall<T> call;
+        final CompletableFuture<T> result;
+        final long firstStart = System.nanoTime();
+        int attempt = 1;
+        long queuedAt;
+
+        Attempt(StageStatistics statistics, PipelineStage stage, StageCall<T> call, CompletableFuture<T> result) {
+            this.statistics = statistics;
+            this.stage = stage;
+            this.call = call;
+            this.result = result;
+        }
+
+        void submit() {
+            queuedAt = System.nanoTime();
+            try {
+                stageExecutors.get(stage).execute(this);
+            } catch (RuntimeException e) {
+                //Shut down by close()
+                result.completeExceptionally(e);
+            }
+        }
+
+        //Completes the result or schedules the next attempt whatever the call throws, so run() never waits forever
+        @Override
+        public void run() {
+            statistics.recordQueued(System.nanoTime() - queuedAt);
+            T value;
+            try {
+                value = call.call();
+            } catch (Throwable e) {
+                if (e instanceof InterruptedException)
+                    Thread.currentThread().interrupt();
+                retryOrFail(e);
+                return;
+            }
+            statistics.recordSuccess(System.nanoTime() - firstStart);
+            result.complete(value);
+        }
+
+        private void retryOrFail(Throwable failure) {
+            try {
+                if (retryPolicy.shouldRetry(stage, failure, attempt)) {
+                    statistics.recordRetry();
+                    long delay = retryPolicy.delayMillis(failure, attempt);
+                    attempt++;
+                    retryScheduler.schedule(this::submit, delay, TimeUnit.MILLISECONDS);
+                    return;
+                }
+            } catch (RuntimeException e) {
+                //Retry scheduler shut down by close()
+                failure.addSuppressed(e);
+            }
+            statistics.recordFailure();
+            result.completeExceptionally(failure);
+        }
+    }
+
+    private interface StageCall<T> {
+        T call() throws Exception;
+    }
+
+    //Written by the stage threads of the patient one after the other
+    private static class PatientRun {
+        final int index;
+        final long start = System.nanoTime();
+        volatile String patientId;
+        volatile PipelineStage stage;
+
+        PatientRun(int index) {
+            this.index = index;
+        }
+    }
+
+    private static class Run {
+        final long start = System.nanoTime();
+        final Map<PipelineStage, StageStatistics> stages = new EnumMap<>(PipelineStage.class);
+        final List<PatientOutcome> failures = Collections.synchronizedList(new ArrayList<>());
+        final AtomicLong resources = new AtomicLong();
+
+        Run() {
+            for (PipelineStage stage : PipelineStage.values())
+                stages.put(stage, new StageStatistics(stage));
+        }
+
+        void finish(PatientRun patient, Long written, Throwable failure) {
+            if (failure == null) {
+                resources.addAndGet(written);
+                return;
+            }
+            long elapsed = System.nanoTime() - patient.start;
+            Throwable cause = failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
+            PatientOutcome outcome = new PatientOutcome(patient.index, patient.patientId, patient.stage, cause, 0, elapsed);
+            failures.add(outcome);
+            logger.warn(outcome.toString());
+        }
+
+        PipelineSummary summarize(int patients) {
+            List<PatientOutcome> failed;
+            synchronized (failures) {
+                failed = new ArrayList<>(failures);
+            }
+            failed.sort((a, b) -> Integer.compare(a.getIndex(), b.getIndex()));
+            return new PipelineSummary(patients, resources.get(), System.nanoTime() - start, stages, failed);
+        }
+    }
+
+    private static class StageThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger count = new AtomicInteger();
+
+        StageThreadFactory(PipelineStage stage) {
+            this.prefix = stage == null ? "pipeline-retry-" : "pipeline-" + stage.name().toLowerCase() + "-";
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, prefix + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
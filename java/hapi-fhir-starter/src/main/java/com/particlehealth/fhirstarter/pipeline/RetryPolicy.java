@@ -0,0 +1,129 @@
+package com.particlehealth.fhirstarter.pipeline;
+
+import ca.uhn.fhir.rest.client.exceptions.FhirClientConnectionException;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import com.particlehealth.fhirstarter.client.QueryStatusPoller;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.UnknownHostException;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/*
+    Decides whether a failed stage is run again and how long to wait first.
+    429, 5xx and connection failures are retried, anything else fails the patient at once.
+    The wait is drawn uniformly from zero to baseDelay * 2^(attempt - 1), capped at maxDelay, so patients throttled
+    together do not come back together. A Retry-After from the server is the minimum wait, also when it exceeds maxDelay.
+
+    Registration and $query are not idempotent: after a 5xx or a connection broken mid-request the patient may have been
+    created or the query started, and sending again could duplicate it. They are only retried when the connection
+    could not be made at all, registration also on 429. Polling retries on its own and is never retried here.
+ */
+public class RetryPolicy {
+
+    public static final int DEFAULT_MAX_ATTEMPTS = 4;
+    public static final Duration DEFAULT_BASE_DELAY = Duration.ofSeconds(1);
+    public static final Duration DEFAULT_MAX_DELAY = Duration.ofSeconds(30);
+    private static final int TOO_MANY_REQUESTS = 429;
+
+    private final int maxAttempts;
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+
+    public RetryPolicy() {
+        this(DEFAULT_MAX_ATTEMPTS, DEFAULT_BASE_DELAY, DEFAULT_MAX_DELAY);
+    }
+
+    /*
+        maxAttempts counts the first attempt, 1 disables retries
+     */
+    public RetryPolicy(int maxAttempts, Duration baseDelay, Duration maxDelay) {
+        if (maxAttempts < 1)
+            throw new IllegalArgumentException("maxAttempts must be at least 1");
+        this.maxAttempts = maxAttempts;
+        this.baseDelayMillis = baseDelay.toMillis();
+        this.maxDelayMillis = maxDelay.toMillis();
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /*
+        Whether the stage is run again after failing attempt number 'attempt', counted from 1
+     */
+    public boolean shouldRetry(PipelineStage stage, Throwable failure, int attempt) {
+        if (attempt >= maxAttempts || stage == PipelineStage.POLL)
+            return false;
+        if (stage == PipelineStage.REGISTER || stage == PipelineStage.QUERY) {
+            if (isConnectFailure(failure))
+                return true;
+            return stage == PipelineStage.REGISTER && statusCode(rootServerFailure(failure)) == TOO_MANY_REQUESTS;
+        }
+        Throwable cause = rootServerFailure(failure);
+        //Checked first, HAPI reports connection failures as a server response with status 0
+        if (cause instanceof FhirClientConnectionException || cause instanceof IOException)
+            return true;
+        int status = statusCode(cause);
+        return status == TOO_MANY_REQUESTS || status >= 500;
+    }
+
+    /*
+        Milliseconds to wait before attempt number attempt + 1
+     */
+    public long delayMillis(Throwable failure, int attempt) {
+        long ceiling = Math.min(maxDelayMillis, baseDelayMillis << Math.min(attempt - 1, 20));
+        long delay = ThreadLocalRandom.current().nextLong(ceiling + 1);
+        Duration serverDelay = retryAfter(rootServerFailure(failure));
+        if (serverDelay != null)
+            delay = Math.max(delay, serverDelay.toMillis());
+        return delay;
+    }
+
+    //The request never reached the server: refused, unreachable or unknown host
+    private static boolean isConnectFailure(Throwable failure) {
+        for (Throwable current = failure; current != null; current = current.getCause()) {
+            if (current instanceof ConnectException || current instanceof NoRouteToHostException || current instanceof UnknownHostException)
+                return true;
+            if (current.getCause() == current)
+                break;
+        }
+        return false;
+    }
+
+    //-1 for a failure without an HTTP status
+    private static int statusCode(Throwable failure) {
+        if (failure instanceof FhirClientConnectionException || !(failure instanceof BaseServerResponseException))
+            return -1;
+        return ((BaseServerResponseException) failure).getStatusCode();
+    }
+
+    //The HTTP or connection failure behind wrappers such as PageFetchException, or the failure itself
+    private static Throwable rootServerFailure(Throwable failure) {
+        for (Throwable current = failure; current != null; current = current.getCause()) {
+            if (current instanceof BaseServerResponseException || current instanceof FhirClientConnectionException
+                    || current instanceof IOException)
+                return current;
+            if (current.getCause() == current)
+                break;
+        }
+        return failure;
+    }
+
+    private static Duration retryAfter(Throwable failure) {
+        if (!(failure instanceof BaseServerResponseException))
+            return null;
+        Map<String, List<String>> headers = ((BaseServerResponseException) failure).getResponseHeaders();
+        if (headers == null)
+            return null;
+        for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+            if ("Retry-After".equalsIgnoreCase(header.getKey()) && header.getValue() != null && !header.getValue().isEmpty())
+                return QueryStatusPoller.retryAfter(header.getValue().get(0));
+        }
+        return null;
+    }
+}
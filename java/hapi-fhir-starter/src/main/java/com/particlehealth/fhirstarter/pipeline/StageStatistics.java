@@ -0,0 +1,81 @@
+package com.particlehealth.fhirstarter.pipeline;
+
+import java.util.Arrays;
+
+/*
+    Outcomes and latencies of one stage over a run. Latency runs from the first attempt to the last,
+    retries and their waits included. Queue time is the wait for a free slot of the stage. Thread safe.
+ */
+public class StageStatistics {
+
+    private final PipelineStage stage;
+    private long succeeded;
+    private long failed;
+    private long retries;
+    private long queuedNanos;
+    private long[] latencies = new long[1024];
+    private int latencyCount;
+
+    StageStatistics(PipelineStage stage) {
+        this.stage = stage;
+    }
+
+    synchronized void recordQueued(long nanos) {
+        queuedNanos += nanos;
+    }
+
+    synchronized void recordRetry() {
+        retries++;
+    }
+
+    synchronized void recordSuccess(long latencyNanos) {
+        succeeded++;
+        if (latencyCount == latencies.length)
+            latencies = Arrays.copyOf(latencies, latencies.length * 2);
+        latencies[latencyCount++] = latencyNanos;
+    }
+
+    synchronized void recordFailure() {
+        failed++;
+    }
+
+    public PipelineStage getStage() {
+        return stage;
+    }
+
+    public synchronized long getSucceeded() {
+        return succeeded;
+    }
+
+    public synchronized long getFailed() {
+        return failed;
+    }
+
+    public synchronized long getRetries() {
+        return retries;
+    }
+
+    /*
+        Latency of the successful runs at the percentile, 0 - 100, in milliseconds. 0 without any
+     */
+    public synchronized double getLatencyMillis(double percentile) {
+        if (latencyCount == 0)
+            return 0;
+        long[] sorted = Arrays.copyOf(latencies, latencyCount);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100 * latencyCount) - 1;
+        return sorted[Math.max(0, Math.min(latencyCount - 1, index))] / 1e6;
+    }
+
+    //Mean wait for a slot of the stage, in milliseconds
+    public synchronized double getMeanQueuedMillis() {
+        long runs = succeeded + failed + retries;
+        return runs == 0 ? 0 : queuedNanos / 1e6 / runs;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%-12s ok=%d failed=%d retries=%d p50=%.0fms p95=%.0fms max=%.0fms queued=%.0fms", stage,
+                succeeded, failed, retries, getLatencyMillis(50), getLatencyMillis(95), getLatencyMillis(100), getMeanQueuedMillis());
+    }
+}
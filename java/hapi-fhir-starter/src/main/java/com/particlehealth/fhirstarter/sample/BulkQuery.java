@@ -0,0 +1,144 @@
+package com.particlehealth.fhirstarter.sample;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import com.particlehealth.fhirstarter.client.AuthenticationException;
+import com.particlehealth.fhirstarter.client.CachedJwtProvider;
+import com.particlehealth.fhirstarter.client.FhirClientFactory;
+import com.particlehealth.fhirstarter.client.JwtAuthInterceptor;
+import com.particlehealth.fhirstarter.client.QueryStatusPoller;
+import com.particlehealth.fhirstarter.client.RateLimiter;
+import com.particlehealth.fhirstarter.client.SharedFhirContext;
+import com.particlehealth.fhirstarter.client.SharedHttpClient;
+import com.particlehealth.fhirstarter.output.OutputFormat;
+import com.particlehealth.fhirstarter.pipeline.PatientOutcome;
+import com.particlehealth.fhirstarter.pipeline.PatientQueryFlow;
+import com.particlehealth.fhirstarter.pipeline.PipelineOptions;
+import com.particlehealth.fhirstarter.pipeline.PipelineStage;
+import com.particlehealth.fhirstarter.pipeline.PipelineSummary;
+import com.particlehealth.fhirstarter.pipeline.QueryOrchestrator;
+import com.particlehealth.fhirstarter.pipeline.RetryPolicy;
+import org.apache.commons.cli.*;
+import org.hl7.fhir.r4.model.Patient;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Objects;
+
+/*
+    Runs the SampleQuery flow for every Patient in an NDJSON file, many patients at once, and prints a summary per stage.
+    Each patient's resources and extracts are written to the output directory as SampleQuery writes them.
+ */
+public class BulkQuery {
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Options options = new Options();
+        for (String[] required : new String[][]{
+                {"id", "client-id", "client-id for requesting a JWT"},
+                {"secret", "client-secret", "client-secret for requesting a JWT"},
+                {"host", "host", "Particle Host"},
+                {"input", "input", "NDJSON file of Patient resources to register and query"}}) {
+            Option option = new Option(required[0], required[1], true, required[2]);
+            option.setRequired(true);
+            options.addOption(option);
+        }
+        options.addOption(new Option("output", "output-dir", true, "Directory for the resources (default: current directory)"));
+        options.addOption(new Option("format", "output-format", true, "bundle (default) or ndjson, one resource per line"));
+        options.addOption(new Option("pretty", "pretty-print", false, "Pretty print bundle output"));
+        options.addOption(new Option("extract", "extract-types", true, "Comma separated resource types written from $everything (default MedicationStatement)"));
+        options.addOption(new Option("search", "search-missing", false, "Search the server for extract types missing from $everything"));
+        options.addOption(new Option("spill", "spill-dir", true, "Index $everything on disk in this directory instead of in memory"));
+        options.addOption(new Option("inflight", "max-in-flight", true, "Patients in flight at once, polling ones included (default "
+                + PipelineOptions.DEFAULT_MAX_PATIENTS_IN_FLIGHT + ")"));
+        options.addOption(new Option("threads", "stage-threads", true, "Threads of each stage other than polling (default "
+                + PipelineOptions.DEFAULT_STAGE_LIMIT + ")"));
+        options.addOption(new Option("rate", "requests-per-second", true, "Requests per second to the host (default 20)"));
+        options.addOption(new Option("attempts", "max-attempts", true, "Attempts per stage on 429, 5xx and connection failures (default "
+                + RetryPolicy.DEFAULT_MAX_ATTEMPTS + ")"));
+
+        CommandLine cmd;
+        PipelineOptions pipelineOptions = new PipelineOptions();
+        OutputFormat outputFormat;
+        double requestsPerSecond;
+        try {
+            cmd = new DefaultParser().parse(options, args);
+            outputFormat = OutputFormat.fromName(cmd.getOptionValue("output-format", "bundle"));
+            pipelineOptions.setMaxPatientsInFlight(Integer.parseInt(cmd.getOptionValue("max-in-flight",
+                    String.valueOf(PipelineOptions.DEFAULT_MAX_PATIENTS_IN_FLIGHT))));
+            if (cmd.hasOption("stage-threads")) {
+                int threads = Integer.parseInt(cmd.getOptionValue("stage-threads"));
+                for (PipelineStage stage : PipelineStage.values()) {
+                    if (stage != PipelineStage.POLL)
+                        pipelineOptions.setStageLimit(stage, threads);
+                }
+            }
+            pipelineOptions.setRetryPolicy(new RetryPolicy(Integer.parseInt(cmd.getOptionValue("max-attempts",
+                    String.valueOf(RetryPolicy.DEFAULT_MAX_ATTEMPTS))), RetryPolicy.DEFAULT_BASE_DELAY, RetryPolicy.DEFAULT_MAX_DELAY));
+            requestsPerSecond = Double.parseDouble(cmd.getOptionValue("requests-per-second", "20"));
+        } catch (ParseException | IllegalArgumentException e) {
+            System.out.println("couldn't get command line arguments " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+        String host = cmd.getOptionValue("host");
+        Path outputDirectory = Paths.get(cmd.getOptionValue("output-dir", ""));
+        Files.createDirectories(outputDirectory.toAbsolutePath());
+
+        FhirContext fhirContext = SharedFhirContext.get();
+        CachedJwtProvider tokenProvider = new CachedJwtProvider(host + "/auth", cmd.getOptionValue("client-id"), cmd.getOptionValue("client-secret"));
+        try {
+            tokenProvider.getToken();
+        } catch (AuthenticationException e) {
+            System.out.println("No JWT retrieved from auth endpoint: " + e.getMessage());
+            return;
+        }
+
+        //One budget for every request to the host, FHIR calls and status polls alike
+        RateLimiter rateLimiter = new RateLimiter(requestsPerSecond, (int) Math.max(1, Math.ceil(requestsPerSecond)));
+        IGenericClient client = new FhirClientFactory(fhirContext, false)
+                .newClient(host + "/R4", new JwtAuthInterceptor(tokenProvider), rateLimiter.asClientInterceptor());
+        PatientQueryFlow flow = new PatientQueryFlow(client, host, fhirContext, outputDirectory, outputFormat, cmd.hasOption("pretty-print"));
+        if (cmd.hasOption("extract-types"))
+            flow.setExtractTypes(Arrays.asList(cmd.getOptionValue("extract-types").split("\\s*,\\s*")));
+        flow.setSearchMissingTypes(cmd.hasOption("search-missing"));
+        if (cmd.hasOption("spill-dir"))
+            flow.setSpillDirectory(Paths.get(cmd.getOptionValue("spill-dir")));
+
+        PipelineSummary summary;
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(cmd.getOptionValue("input")), StandardCharsets.UTF_8);
+             QueryStatusPoller poller = new QueryStatusPoller(SharedHttpClient.get(), tokenProvider, null,
+                     QueryStatusPoller.DEFAULT_INITIAL_DELAY, QueryStatusPoller.DEFAULT_MAX_DELAY, rateLimiter);
+             QueryOrchestrator orchestrator = new QueryOrchestrator(flow, poller, pipelineOptions)) {
+            IParser parser = fhirContext.newJsonParser();
+            Iterator<Patient> patients = reader.lines()
+                    .filter(line -> !line.isBlank())
+                    .map(line -> parsePatient(parser, line))
+                    .filter(Objects::nonNull)
+                    .iterator();
+            summary = orchestrator.run(patients);
+        } finally {
+            tokenProvider.close();
+        }
+
+        System.out.print(summary);
+        for (PatientOutcome failure : summary.getFailures())
+            System.out.println(failure);
+    }
+
+    //null for a line that is not a Patient, which is reported and skipped
+    private static Patient parsePatient(IParser parser, String line) {
+        try {
+            return parser.parseResource(Patient.class, line);
+        } catch (RuntimeException e) {
+            System.out.println("Skipping input line, not a Patient: " + e.getMessage());
+            return null;
+        }
+    }
+}
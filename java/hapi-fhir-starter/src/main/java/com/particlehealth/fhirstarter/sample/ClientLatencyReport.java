@@ -0,0 +1,75 @@
+package com.particlehealth.fhirstarter.sample;
+
+import com.particlehealth.fhirstarter.client.SharedFhirContext;
+import com.particlehealth.fhirstarter.client.SharedHttpClient;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.apache.commons.cli.*;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/*
+    Reports the FhirContext startup time and the latency of GET requests to a URL,
+    once with a new OkHttpClient per request as SampleQuery used to, once through the shared connection pool.
+    Run once with and once without -deferred-scanning to compare the startup times.
+ */
+public class ClientLatencyReport {
+
+    public static void main(String[] args) throws IOException {
+        Options options = new Options();
+        Option urlArg = new Option("url", "url", true, "URL to GET, e.g. the Particle host's /auth or a FHIR metadata endpoint");
+        urlArg.setRequired(true);
+        options.addOption(urlArg);
+        options.addOption(new Option("n", "requests", true, "Requests per mode (default 20)"));
+        options.addOption(new Option("deferred", "deferred-scanning", false, "Scan FHIR resource types on first use instead of at startup"));
+
+        CommandLine cmd;
+        try {
+            cmd = new DefaultParser().parse(options, args);
+        } catch (ParseException e) {
+            System.out.println("couldn't get command line arguments " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+        String url = cmd.getOptionValue("url");
+        int requests = Integer.parseInt(cmd.getOptionValue("requests", "20"));
+        boolean deferred = cmd.hasOption("deferred-scanning");
+        if (requests < 1) {
+            System.out.println("requests must be at least 1");
+            System.exit(1);
+        }
+
+        SharedFhirContext.setDeferredModelScanning(deferred);
+        long startupMillis = SharedFhirContext.warmUp();
+        System.out.println("FhirContext startup" + (deferred ? " (deferred scanning): " : ": ") + startupMillis + " ms");
+
+        Request request = new Request.Builder().url(url).build();
+        long[] fresh = new long[requests];
+        for (int i = 0; i < requests; i++)
+            fresh[i] = time(new OkHttpClient(), request);
+        long[] pooled = new long[requests];
+        for (int i = 0; i < requests; i++)
+            pooled[i] = time(SharedHttpClient.get(), request);
+
+        print("New client per request", fresh);
+        print("Shared connection pool", pooled);
+    }
+
+    private static long time(OkHttpClient client, Request request) throws IOException {
+        long start = System.nanoTime();
+        try (Response response = client.newCall(request).execute()) {
+            response.body().bytes();
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static void print(String label, long[] nanos) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        double mean = Arrays.stream(sorted).average().orElse(0);
+        System.out.println(String.format("%s: first=%.1fms p50=%.1fms p90=%.1fms mean=%.1fms", label,
+                nanos[0] / 1e6, sorted[sorted.length / 2] / 1e6, sorted[(int) (sorted.length * 0.9)] / 1e6, mean / 1e6));
+    }
+}
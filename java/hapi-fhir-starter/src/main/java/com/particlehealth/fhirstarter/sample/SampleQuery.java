@@ -1,23 +1,25 @@
 package com.particlehealth.fhirstarter.sample;
 
 import ca.uhn.fhir.context.FhirContext;
-import ca.uhn.fhir.parser.IParser;
-import ca.uhn.fhir.rest.api.MethodOutcome;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
-import ca.uhn.fhir.rest.client.interceptor.BearerTokenAuthInterceptor;
-import ca.uhn.fhir.rest.client.interceptor.LoggingInterceptor;
-import ca.uhn.fhir.util.BundleBuilder;
-import okhttp3.OkHttpClient;
-import okhttp3.Request;
-import okhttp3.Response;
+import com.particlehealth.fhirstarter.client.AuthenticationException;
+import com.particlehealth.fhirstarter.client.CachedJwtProvider;
+import com.particlehealth.fhirstarter.client.FhirClientFactory;
+import com.particlehealth.fhirstarter.client.JwtAuthInterceptor;
+import com.particlehealth.fhirstarter.client.QueryStatusPoller;
+import com.particlehealth.fhirstarter.client.SharedFhirContext;
+import com.particlehealth.fhirstarter.index.ResourceIndex;
+import com.particlehealth.fhirstarter.output.OutputFormat;
+import com.particlehealth.fhirstarter.pipeline.PatientQueryFlow;
 import org.apache.commons.cli.*;
-import org.hl7.fhir.instance.model.api.IBaseBundle;
 import org.hl7.fhir.r4.model.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.CompletionException;
 
 public class SampleQuery {
     private static final Logger logger = LoggerFactory.getLogger(SampleQuery.class);
@@ -25,122 +27,64 @@ public class SampleQuery {
     private static String clientId;
     private static String clientSecret;
     private static String host;
+    private static OutputFormat outputFormat = OutputFormat.BUNDLE;
+    private static boolean prettyPrint;
+    private static List<String> extractTypes = PatientQueryFlow.DEFAULT_EXTRACT_TYPES;
+    private static boolean searchMissingTypes;
+    private static Path spillDirectory;
 
     private static FhirContext fhirContext;
 
 
     public static void main(String[] args) throws IOException {
         ParseArguments(args);
-        //Generate the JWT to be used for calls to the FHIR server
-        String jwt = authorize();
-        if (jwt == null) {
-            System.out.println("No JWT retrieved from auth endpoint");
+        logger.info("FhirContext ready in " + SharedFhirContext.warmUp() + " ms");
+        //Generate the JWT to be used for calls to the FHIR server, refreshed before it expires
+        CachedJwtProvider tokenProvider = new CachedJwtProvider(host + "/auth", clientId, clientSecret);
+        try {
+            tokenProvider.getToken();
+        } catch (AuthenticationException e) {
+            System.out.println("No JWT retrieved from auth endpoint: " + e.getMessage());
             return;
         }
         // Get the client with interceptors and auth token set
-        IGenericClient client = getClient(jwt);
+        IGenericClient client = getClient(tokenProvider);
+        //Resources are written as their pages arrive
+        PatientQueryFlow flow = new PatientQueryFlow(client, host, fhirContext, Paths.get(""), outputFormat, prettyPrint);
+        flow.setExtractTypes(extractTypes);
+        flow.setSearchMissingTypes(searchMissingTypes);
+        flow.setSpillDirectory(spillDirectory);
 
         // Create the demographics.
         Patient patient = createPatient2();
 
         // Register the Patient.
-        MethodOutcome outcome = client.create().resource(patient).prettyPrint().encodedJson().accept("application/fhir+json").execute();
-        logger.info("created patient with id: " + outcome.getId().getIdPart());
+        String patientId = flow.register(patient);
+        logger.info("created patient with id: " + patientId);
 
         // Query Particle Health connected networks.
-        Parameters inParams = new Parameters();
-        inParams.addParameter().setName("purpose").setValue(new StringType("TREATMENT"));
-        Parameters outParams = client.operation().onInstance(outcome.getId()).named("$query").withParameters(inParams).execute();
-
-        String queryURL = outParams.getParameter("status").primitiveValue();
-        String patientId = outcome.getId().getIdPart();
+        String queryURL = flow.startQuery(patientId);
 
         //Check if result is a 200, if so we're good to query for resources
-        Integer result = getPatientQuery(jwt, queryURL);
+        Integer result = getPatientQuery(tokenProvider, queryURL);
         if (result == null || result != 200)
             return;
 
-        //patient-everything
-        Bundle bundlePage = client.search().byUrl(host + "/R4/Patient/" + patientId + "/$everything").returnBundle(Bundle.class).execute();
-
-        // Build patient-everything bundle
-        BundleBuilder builder = new BundleBuilder(fhirContext);
-        buildBundle(builder, bundlePage);
-
-        // iterate through all pages, writing each bundle to builder
-        while (bundlePage.getLink(Bundle.LINK_NEXT) != null) {
-            bundlePage = client.search().byUrl(bundlePage.getLink(Bundle.LINK_NEXT).getUrl()).returnBundle(Bundle.class).execute();
-            buildBundle(builder, bundlePage);
-        }
-
-        // write bundle to file
-        IParser parser = fhirContext.newJsonParser();
-        parser.setPrettyPrint(true);
-        FileWriter writer = new FileWriter(patientId + "_everything.json");
-
-        IBaseBundle masterBundle = builder.getBundle();
-        parser.encodeResourceToWriter(masterBundle, writer);
-        writer.close();
-
-        // retrieve specific resource - MedicationStatement
-        bundlePage = client.search().byUrl(host + "/R4/MedicationStatement?patient=" + patientId).returnBundle(Bundle.class).execute();
-
-        // Build MedicationStatement bundle
-        BundleBuilder medicationBuilder = new BundleBuilder(fhirContext);
-        FileWriter medicationWriter = new FileWriter(patientId + "_MedicationStatement.json");
-        buildBundle(medicationBuilder, bundlePage);
-        while(bundlePage.getLink(Bundle.LINK_NEXT) != null){
-            bundlePage = client.search().byUrl(bundlePage.getLink(Bundle.LINK_NEXT).getUrl()).returnBundle(Bundle.class).execute();
-            buildBundle(medicationBuilder, bundlePage);
-        }
-
-        // write bundle to file
-        IBaseBundle masterMedicationBundle = medicationBuilder.getBundle();
-        parser.encodeResourceToWriter(masterMedicationBundle, medicationWriter);
-        medicationWriter.close();
-    }
-
-    private static void buildBundle (BundleBuilder builder, Bundle bundle) {
-        for(Bundle.BundleEntryComponent component : bundle.getEntry()){
-            builder.addCollectionEntry(component.getResource());
-        }
-        //return builder;
-    }
-
-    private static String authorize() {
-        OkHttpClient client = new OkHttpClient();
-        Request req = new Request.Builder().url(host + "/auth")
-                .addHeader("client-id", clientId)
-                .addHeader("client-secret", clientSecret)
-                .build();
-
-        try (Response resp = client.newCall(req).execute()) {
-            return resp.body().string();
-        } catch (IOException e) {
-            e.printStackTrace();
-            return null;
+        //patient-everything, its extract type resources indexed by type and id as it is written
+        try (ResourceIndex index = flow.writeEverything(patientId)) {
+            // write specific resources, e.g. MedicationStatement, from the index instead of searching for them again
+            flow.writeExtracts(patientId, index);
+            logger.info("$everything held " + index.getAddedCount() + " resources of types " + index.getTypes());
         }
     }
 
-    private static Integer getPatientQuery(String jwt, String url) {
-        OkHttpClient client = new OkHttpClient();
-        Request req = new Request.Builder().url(url).addHeader("Authorization", jwt).build();
-
-        Response resp = null;
-        try {
-            long startTime = System.currentTimeMillis(); //fetch starting time
-            while ((System.currentTimeMillis() - startTime) < 600000) {
-                resp = client.newCall(req).execute();
-                if (resp.code() != 202)
-                    break;
-                Thread.sleep(5000);
-            }
-        } catch(Exception e) {
-            System.out.println(e);
+    private static Integer getPatientQuery(CachedJwtProvider tokenProvider, String url) {
+        try (QueryStatusPoller poller = new QueryStatusPoller(tokenProvider)) {
+            return poller.poll(url).join();
+        } catch (CompletionException e) {
+            System.out.println(e.getCause());
             return null;
         }
-
-        return (resp == null) ? null : resp.code();
     }
 
     private static void ParseArguments(String[] args) {
@@ -158,6 +102,24 @@ public class SampleQuery {
         hostArg.setRequired(true);
         options.addOption(hostArg);
 
+        Option formatArg = new Option("format", "output-format", true, "bundle (default) or ndjson, one resource per line");
+        options.addOption(formatArg);
+
+        Option prettyArg = new Option("pretty", "pretty-print", false, "Pretty print bundle output");
+        options.addOption(prettyArg);
+
+        Option extractArg = new Option("extract", "extract-types", true, "Comma separated resource types written from $everything (default MedicationStatement)");
+        options.addOption(extractArg);
+
+        Option searchMissingArg = new Option("search", "search-missing", false, "Search the server for extract types missing from $everything");
+        options.addOption(searchMissingArg);
+
+        Option spillArg = new Option("spill", "spill-dir", true, "Index $everything on disk in this directory instead of in memory");
+        options.addOption(spillArg);
+
+        Option deferredArg = new Option("deferred", "deferred-scanning", false, "Scan FHIR resource types on first use instead of at startup");
+        options.addOption(deferredArg);
+
         CommandLineParser parser = new DefaultParser();
         CommandLine cmd = null;
         try {
@@ -173,25 +135,28 @@ public class SampleQuery {
         clientId = cmd.getOptionValue("client-id");
         clientSecret = cmd.getOptionValue("client-secret");
         host = cmd.getOptionValue("host");
+        prettyPrint = cmd.hasOption("pretty-print");
+        if (cmd.hasOption("extract-types"))
+            extractTypes = Arrays.asList(cmd.getOptionValue("extract-types").split("\\s*,\\s*"));
+        searchMissingTypes = cmd.hasOption("search-missing");
+        if (cmd.hasOption("spill-dir"))
+            spillDirectory = Paths.get(cmd.getOptionValue("spill-dir"));
+        SharedFhirContext.setDeferredModelScanning(cmd.hasOption("deferred-scanning"));
+        if (cmd.hasOption("output-format")) {
+            try {
+                outputFormat = OutputFormat.fromName(cmd.getOptionValue("output-format"));
+            } catch (IllegalArgumentException e) {
+                System.out.println(e.getMessage());
+                System.exit(1);
+            }
+        }
     }
 
-    private static IGenericClient getClient(String jwt) {
-        //This is an expensive operation. Set this to be a singleton object in an actual application
-        fhirContext = FhirContext.forR4();
-        fhirContext.getRestfulClientFactory().setSocketTimeout(40*1000);
-      //  fhirContext.setPerformanceOptions(PerformanceOptionsEnum.DEFERRED_MODEL_SCANNING);
-        IGenericClient client = fhirContext.newRestfulGenericClient(host + "/R4");
-        LoggingInterceptor loggingInterceptor = new LoggingInterceptor();
-        loggingInterceptor.setLogRequestSummary(true);
-        loggingInterceptor.setLogRequestBody(true);
-        loggingInterceptor.setLogResponseHeaders(true);
-        loggingInterceptor.setLogResponseBody(true);
-        loggingInterceptor.setLogResponseHeaders(true);
-        loggingInterceptor.setLogResponseSummary(true);
-        client.registerInterceptor(loggingInterceptor);
-        BearerTokenAuthInterceptor authInterceptor = new BearerTokenAuthInterceptor(jwt);
-        client.registerInterceptor(authInterceptor);
-        return client;
+    private static IGenericClient getClient(CachedJwtProvider tokenProvider) {
+        //One context and connection pool per process, clients are cheap
+        fhirContext = SharedFhirContext.get();
+        FhirClientFactory clientFactory = new FhirClientFactory(fhirContext, true);
+        return clientFactory.newClient(host + "/R4", new JwtAuthInterceptor(tokenProvider));
     }
 
     // ~An important note about the old Java date package~
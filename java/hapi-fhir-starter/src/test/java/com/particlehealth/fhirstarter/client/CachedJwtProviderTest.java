@@ -0,0 +1,242 @@
+package com.particlehealth.fhirstarter.client;
+
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.Base64;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CachedJwtProviderTest {
+
+    private static final Instant START = Instant.parse("2024-03-01T12:00:00Z");
+
+    private final MutableClock clock = new MutableClock(START);
+    private final RecordingScheduler scheduler = new RecordingScheduler();
+    private final AtomicInteger requests = new AtomicInteger();
+    //What the auth endpoint answers next
+    private volatile String nextToken;
+    private volatile int status = 200;
+    private volatile Error error;
+    private CachedJwtProvider provider;
+
+    @AfterEach
+    void shutDown() {
+        if (provider != null)
+            provider.close();
+        scheduler.shutdownNow();
+    }
+
+    private CachedJwtProvider provider() {
+        return provider(scheduler);
+    }
+
+    //With a null scheduler the provider runs its own
+    private CachedJwtProvider provider(ScheduledExecutorService scheduler) {
+        OkHttpClient httpClient = new OkHttpClient.Builder()
+                .addInterceptor(chain -> {
+                    requests.incrementAndGet();
+                    if (error != null)
+                        throw error;
+                    return new Response.Builder()
+                            .request(chain.request())
+                            .protocol(Protocol.HTTP_1_1)
+                            .code(status)
+                            .message("auth")
+                            .body(ResponseBody.create(status == 200 ? nextToken : "", MediaType.get("text/plain")))
+                            .build();
+                })
+                .build();
+        provider = new CachedJwtProvider(httpClient, "http://auth.test/auth", "id", "secret", scheduler, clock);
+        return provider;
+    }
+
+    private static String jwt(Instant exp, String subject) {
+        String payload = "{\"sub\":\"" + subject + "\",\"exp\":" + exp.getEpochSecond() + "}";
+        return "eyJhbGciOiJIUzI1NiJ9." + Base64.getUrlEncoder().withoutPadding().encodeToString(payload.getBytes(StandardCharsets.UTF_8)) + ".sig";
+    }
+
+    @Test
+    void expiryIsTheExpClaim() {
+        Instant exp = START.plusSeconds(3600);
+        assertEquals(exp, CachedJwtProvider.expiry(jwt(exp, "a"), START));
+    }
+
+    @Test
+    void expiryFallsBackToTheDefaultLifetime() {
+        Instant fallback = START.plus(CachedJwtProvider.DEFAULT_LIFETIME);
+        assertEquals(fallback, CachedJwtProvider.expiry("opaque-token", START));
+        assertEquals(fallback, CachedJwtProvider.expiry("a.!!not base64!!.c", START));
+        String noExp = "h." + Base64.getUrlEncoder().encodeToString("{\"sub\":\"a\"}".getBytes(StandardCharsets.UTF_8)) + ".s";
+        assertEquals(fallback, CachedJwtProvider.expiry(noExp, START));
+    }
+
+    @Test
+    void reusesTheTokenUntilShortlyBeforeItExpires() {
+        Instant exp = START.plus(Duration.ofMinutes(10));
+        nextToken = jwt(exp, "first");
+        CachedJwtProvider provider = provider();
+        assertEquals(nextToken, provider.getToken());
+        assertEquals(jwt(exp, "first"), provider.getToken());
+        assertEquals(1, requests.get());
+        assertEquals(exp, provider.getExpiry());
+
+        clock.set(exp.minus(CachedJwtProvider.MIN_REMAINING_VALIDITY).minusSeconds(1));
+        assertEquals(jwt(exp, "first"), provider.getToken());
+        assertEquals(1, requests.get());
+
+        clock.set(exp.minusSeconds(20));
+        nextToken = jwt(exp.plus(Duration.ofMinutes(10)), "second");
+        assertEquals(nextToken, provider.getToken());
+        assertEquals(2, requests.get());
+    }
+
+    @Test
+    void refreshesInTheBackgroundAheadOfExpiry() throws Exception {
+        Instant exp = START.plus(Duration.ofHours(1));
+        nextToken = jwt(exp, "first");
+        CachedJwtProvider provider = provider();
+        provider.getToken();
+        assertEquals(Duration.ofHours(1).minus(CachedJwtProvider.REFRESH_AHEAD).toMillis(), scheduler.lastDelayMillis);
+
+        String second = jwt(exp.plus(Duration.ofHours(1)), "second");
+        nextToken = second;
+        scheduler.lastTask.run();
+        assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+            while (!second.equals(provider.getToken()))
+                Thread.sleep(5);
+        });
+        assertEquals(2, requests.get());
+    }
+
+    @Test
+    void refreshesShortLivedTokensAfterFourFifthsOfTheirLifetime() {
+        nextToken = jwt(START.plusSeconds(100), "short");
+        provider().getToken();
+        assertEquals(80_000, scheduler.lastDelayMillis);
+    }
+
+    @Test
+    void aFailedRequestThrowsAndTheNextCallTriesAgain() {
+        status = 503;
+        CachedJwtProvider provider = provider();
+        assertThrows(AuthenticationException.class, provider::getToken);
+
+        status = 200;
+        nextToken = jwt(START.plusSeconds(3600), "after");
+        assertTimeoutPreemptively(Duration.ofSeconds(10), () -> assertEquals(nextToken, provider.getToken()));
+        assertEquals(2, requests.get());
+    }
+
+    @Test
+    void anErrorDuringTheRequestDoesNotLeaveItInFlight() {
+        error = new StackOverflowError();
+        CachedJwtProvider provider = provider();
+        assertThrows(StackOverflowError.class, provider::getToken);
+
+        error = null;
+        nextToken = jwt(START.plusSeconds(3600), "after");
+        assertTimeoutPreemptively(Duration.ofSeconds(10), () -> assertEquals(nextToken, provider.getToken()));
+    }
+
+    private static class MutableClock extends Clock {
+        private volatile Instant now;
+
+        MutableClock(Instant now) {
+            this.now = now;
+        }
+
+        void set(Instant now) {
+            this.now = now;
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public Instant instant() {
+            return now;
+        }
+    }
+
+    @Test
+    void getTokenAsyncFailsAfterClose() {
+        nextToken = jwt(START.plusSeconds(3600), "closed");
+        CachedJwtProvider provider = provider(null);
+        provider.close();
+
+        CompletableFuture<String> token = provider.getTokenAsync();
+        CompletionException failure = assertTimeoutPreemptively(Duration.ofSeconds(10),
+                () -> assertThrows(CompletionException.class, token::join));
+        assertTrue(failure.getCause() instanceof AuthenticationException, String.valueOf(failure.getCause()));
+        assertEquals(0, requests.get());
+    }
+
+    @Test
+    void aRejectedRefreshDoesNotStayInFlight() {
+        nextToken = jwt(START.plusSeconds(3600), "after");
+        CachedJwtProvider provider = provider();
+        scheduler.shutdownNow();
+
+        assertTimeoutPreemptively(Duration.ofSeconds(10), () -> assertThrows(CompletionException.class, provider.getTokenAsync()::join));
+        assertTimeoutPreemptively(Duration.ofSeconds(10), () -> assertEquals(nextToken, provider.getToken()));
+        assertEquals(1, requests.get());
+    }
+
+    /*
+        Records the refresh the provider schedules for later instead of running it, the test runs it when it wants to
+     */
+    private static class RecordingScheduler extends ScheduledThreadPoolExecutor {
+        volatile Runnable lastTask;
+        volatile long lastDelayMillis = -1;
+
+        RecordingScheduler() {
+            super(1);
+        }
+
+        //Background refreshes themselves still run on the pool
+        @Override
+        public void execute(Runnable command) {
+            super.schedule(command, 0, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
+            lastTask = () -> {
+                try {
+                    callable.call();
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            };
+            lastDelayMillis = unit.toMillis(delay);
+            return super.schedule(() -> null, 1, TimeUnit.DAYS);
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package com.particlehealth.fhirstarter.client;
+
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class QueryStatusPollerTest {
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "test-poller");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private CachedJwtProvider tokenProvider;
+    private QueryStatusPoller poller;
+
+    @AfterEach
+    void shutDown() {
+        if (poller != null)
+            poller.close();
+        if (tokenProvider != null)
+            tokenProvider.close();
+        scheduler.shutdownNow();
+    }
+
+    private static OkHttpClient client(Interceptor interceptor) {
+        return new OkHttpClient.Builder().addInterceptor(interceptor).build();
+    }
+
+    private static Response response(Interceptor.Chain chain, int code, String body, String retryAfter) {
+        Response.Builder builder = new Response.Builder()
+                .request(chain.request())
+                .protocol(Protocol.HTTP_1_1)
+                .code(code)
+                .message("test")
+                .body(ResponseBody.create(body, MediaType.get("text/plain")));
+        if (retryAfter != null)
+            builder.header("Retry-After", retryAfter);
+        return builder.build();
+    }
+
+    private QueryStatusPoller poller(Interceptor auth, Interceptor status) {
+        return poller(auth, status, null);
+    }
+
+    private QueryStatusPoller poller(Interceptor auth, Interceptor status, RateLimiter rateLimiter) {
+        tokenProvider = new CachedJwtProvider(client(auth), "http://auth.test/auth", "id", "secret", null, Clock.systemUTC());
+        poller = new QueryStatusPoller(client(status), tokenProvider, scheduler, Duration.ofMillis(1), Duration.ofMillis(10), rateLimiter);
+        return poller;
+    }
+
+    @Test
+    void retryAfterInSeconds() {
+        assertEquals(Duration.ofSeconds(30), QueryStatusPoller.retryAfter("30"));
+        assertEquals(Duration.ofSeconds(5), QueryStatusPoller.retryAfter(" 5 "));
+        assertEquals(Duration.ZERO, QueryStatusPoller.retryAfter("-3"));
+    }
+
+    @Test
+    void retryAfterAsAnHttpDate() {
+        String inTwoMinutes = DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now(ZoneOffset.UTC).plusSeconds(120));
+        Duration wait = QueryStatusPoller.retryAfter(inTwoMinutes);
+        assertTrue(wait.compareTo(Duration.ofSeconds(110)) > 0 && wait.compareTo(Duration.ofSeconds(120)) <= 0, wait.toString());
+
+        String past = DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now(ZoneOffset.UTC).minusHours(1));
+        assertEquals(Duration.ZERO, QueryStatusPoller.retryAfter(past));
+    }
+
+    @Test
+    void retryAfterIsNullWhenMissingOrUnreadable() {
+        assertNull(QueryStatusPoller.retryAfter(null));
+        assertNull(QueryStatusPoller.retryAfter(""));
+        assertNull(QueryStatusPoller.retryAfter("  "));
+        assertNull(QueryStatusPoller.retryAfter("soon"));
+    }
+
+    @Test
+    void pollsUntilTheStatusIsNoLongerPending() {
+        AtomicInteger statusRequests = new AtomicInteger();
+        List<String> tokens = new CopyOnWriteArrayList<>();
+        QueryStatusPoller poller = poller(
+                chain -> response(chain, 200, "token", null),
+                chain -> {
+                    tokens.add(chain.request().header("Authorization"));
+                    return response(chain, statusRequests.incrementAndGet() < 3 ? 202 : 200, "", "0");
+                });
+        int status = assertTimeoutPreemptively(Duration.ofSeconds(10), () -> poller.poll("http://fhir.test/status/1").join());
+        assertEquals(200, status);
+        assertEquals(3, poller.getRequestCount());
+        assertEquals(List.of("token", "token", "token"), tokens);
+    }
+
+    @Test
+    void aTokenRefreshDoesNotHoldThePollerThread() throws Exception {
+        CountDownLatch authRelease = new CountDownLatch(1);
+        List<String> authThreads = new CopyOnWriteArrayList<>();
+        QueryStatusPoller poller = poller(
+                chain -> {
+                    authThreads.add(Thread.currentThread().getName());
+                    try {
+                        authRelease.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return response(chain, 200, "token", null);
+                },
+                chain -> response(chain, 200, "", null));
+        CompletableFuture<Integer> result = poller.poll("http://fhir.test/status/1");
+
+        //The poller thread stays free for other work while /auth is slow
+        CountDownLatch ran = new CountDownLatch(1);
+        scheduler.execute(ran::countDown);
+        boolean free = ran.await(5, TimeUnit.SECONDS);
+        authRelease.countDown();
+        assertTrue(free);
+
+        int status = assertTimeoutPreemptively(Duration.ofSeconds(10), result::join);
+        assertEquals(200, status);
+        assertFalse(authThreads.contains("test-poller"), authThreads.toString());
+    }
+
+    @Test
+    void aFailedTokenFetchFailsThePoll() {
+        QueryStatusPoller poller = poller(
+                chain -> response(chain, 401, "", null),
+                chain -> response(chain, 200, "", null));
+        CompletableFuture<Integer> result = poller.poll("http://fhir.test/status/1");
+        Throwable failure = assertTimeoutPreemptively(Duration.ofSeconds(10), () -> assertThrows(Exception.class, result::join));
+        assertTrue(failure.getCause() instanceof AuthenticationException, String.valueOf(failure.getCause()));
+        assertEquals(0, poller.getRequestCount());
+    }
+
+    @Test
+    void requestsWaitForTheirPermitBeforeTheyAreSent() {
+        List<Long> sentAt = new CopyOnWriteArrayList<>();
+        QueryStatusPoller poller = poller(
+                chain -> response(chain, 200, "token", null),
+                chain -> {
+                    sentAt.add(System.nanoTime());
+                    return response(chain, sentAt.size() < 3 ? 202 : 200, "", "0");
+                },
+                new RateLimiter(10, 1));
+        int status = assertTimeoutPreemptively(Duration.ofSeconds(10), () -> poller.poll("http://fhir.test/status/1").join());
+        assertEquals(200, status);
+        assertEquals(3, sentAt.size());
+        //Retry-After 0 would poll at once, the limiter spaces the requests 100 ms apart
+        for (int i = 1; i < sentAt.size(); i++)
+            assertTrue(sentAt.get(i) - sentAt.get(i - 1) >= TimeUnit.MILLISECONDS.toNanos(90), String.valueOf(sentAt));
+    }
+}
@@ -0,0 +1,59 @@
+package com.particlehealth.fhirstarter.client;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RateLimiterTest {
+
+    private static final long MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private long now;
+
+    @Test
+    void permitsAreSpacedByTheInterval() {
+        RateLimiter limiter = new RateLimiter(10, 1, () -> now);
+        assertEquals(0, limiter.reserve());
+        assertEquals(100 * MILLI, limiter.reserve());
+        assertEquals(200 * MILLI, limiter.reserve());
+
+        now += 150 * MILLI;
+        assertEquals(150 * MILLI, limiter.reserve());
+    }
+
+    @Test
+    void anIdleLimiterStoresUpToTheBurst() {
+        RateLimiter limiter = new RateLimiter(10, 3, () -> now);
+        now += TimeUnit.SECONDS.toNanos(60);
+        assertTrue(limiter.reserve() <= 0);
+        assertTrue(limiter.reserve() <= 0);
+        assertTrue(limiter.reserve() <= 0);
+        assertEquals(100 * MILLI, limiter.reserve());
+    }
+
+    @Test
+    void fractionalRates() {
+        RateLimiter limiter = new RateLimiter(0.5, 1, () -> now);
+        limiter.reserve();
+        assertEquals(TimeUnit.SECONDS.toNanos(2), limiter.reserve());
+    }
+
+    @Test
+    void rejectsInvalidSettings() {
+        assertThrows(IllegalArgumentException.class, () -> new RateLimiter(0, 1));
+        assertThrows(IllegalArgumentException.class, () -> new RateLimiter(-1, 1));
+        assertThrows(IllegalArgumentException.class, () -> new RateLimiter(10, 0));
+    }
+
+    @Test
+    void acquireWaitsForThePermit() throws InterruptedException {
+        RateLimiter limiter = new RateLimiter(20, 1);
+        long start = System.nanoTime();
+        for (int i = 0; i < 4; i++)
+            limiter.acquire();
+        //Three intervals of 50 ms after the first, free permit
+        assertTrue(System.nanoTime() - start >= 140 * MILLI);
+    }
+}
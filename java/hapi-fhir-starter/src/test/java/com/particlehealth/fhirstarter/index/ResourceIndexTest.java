@@ -0,0 +1,110 @@
+package com.particlehealth.fhirstarter.index;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.particlehealth.fhirstarter.output.OutputFormat;
+import com.particlehealth.fhirstarter.output.ResourceWriter;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.MedicationStatement;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Resource;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ResourceIndexTest {
+
+    private static final FhirContext FHIR_CONTEXT = FhirContext.forR4();
+    private static final List<String> EXTRACT_TYPES = List.of("MedicationStatement");
+
+    @TempDir
+    Path directory;
+
+    //A patient, two medication statements, a condition and a repeated statement
+    private static void addEverything(ResourceIndex index) throws IOException {
+        assertFalse(index.add(new Patient().setId("p1")));
+        assertTrue(index.add(new MedicationStatement().setId("m1")));
+        assertFalse(index.add(new Condition().setId("c1")));
+        assertTrue(index.add(new MedicationStatement().setId("m2")));
+        assertFalse(index.add(new MedicationStatement().setId("m1")));
+    }
+
+    @Test
+    void keepsOnlyTheIndexedTypes() throws IOException {
+        try (ResourceIndex index = ResourceIndex.inMemory(FHIR_CONTEXT, EXTRACT_TYPES)) {
+            addEverything(index);
+            assertEquals(5, index.getAddedCount());
+            assertEquals(2, index.getCount());
+            assertEquals(1, index.getDuplicateCount());
+            assertEquals(2, index.count("MedicationStatement"));
+            assertEquals(0, index.count("Condition"));
+            assertNotNull(index.get("MedicationStatement", "m2"));
+            assertNull(index.get("Patient", "p1"));
+            assertEquals(Set.of("MedicationStatement"), index.getIndexedTypes());
+        }
+    }
+
+    @Test
+    void recordsEveryTypeSeenInOrder() throws IOException {
+        try (ResourceIndex index = ResourceIndex.inMemory(FHIR_CONTEXT, EXTRACT_TYPES)) {
+            addEverything(index);
+            assertEquals(List.of("Patient", "MedicationStatement", "Condition"), List.copyOf(index.getTypes()));
+            assertTrue(index.contains("Condition"));
+            assertTrue(index.contains("MedicationStatement"));
+            assertFalse(index.contains("Encounter"));
+        }
+    }
+
+    @Test
+    void writesAnIndexedTypeAndRejectsOthers() throws IOException {
+        try (ResourceIndex index = ResourceIndex.inMemory(FHIR_CONTEXT, EXTRACT_TYPES)) {
+            addEverything(index);
+            assertEquals(List.of("m1", "m2"), written(index, "MedicationStatement"));
+            try (ResourceWriter writer = ResourceWriter.open(FHIR_CONTEXT, directory, "condition", OutputFormat.NDJSON, false)) {
+                assertThrows(IllegalArgumentException.class, () -> index.writeTo("Condition", writer));
+            }
+        }
+    }
+
+    @Test
+    void spillsOnlyTheIndexedTypes() throws IOException {
+        Path parent = directory.resolve("spill");
+        try (ResourceIndex index = ResourceIndex.spilling(FHIR_CONTEXT, parent, EXTRACT_TYPES)) {
+            addEverything(index);
+            Path spillDirectory;
+            try (Stream<Path> children = Files.list(parent)) {
+                spillDirectory = children.findFirst().orElseThrow();
+            }
+            try (Stream<Path> files = Files.list(spillDirectory)) {
+                assertEquals(List.of("MedicationStatement.ndjson"),
+                        files.map(file -> file.getFileName().toString()).collect(Collectors.toList()));
+            }
+            assertEquals("m1", index.get("MedicationStatement", "m1").getIdElement().getIdPart());
+            assertEquals(List.of("m1", "m2"), written(index, "MedicationStatement"));
+        }
+        try (Stream<Path> children = Files.list(parent)) {
+            assertEquals(0, children.count());
+        }
+    }
+
+    //Ids of the resources writeTo writes, in order
+    private List<String> written(ResourceIndex index, String type) throws IOException {
+        try (ResourceWriter writer = ResourceWriter.open(FHIR_CONTEXT, directory, type, OutputFormat.NDJSON, false)) {
+            index.writeTo(type, writer);
+            writer.commit();
+        }
+        Path file = directory.resolve(type + OutputFormat.NDJSON.getExtension());
+        return Files.readAllLines(file, StandardCharsets.UTF_8).stream()
+                .map(line -> ((Resource) FHIR_CONTEXT.newJsonParser().parseResource(line)).getIdElement().getIdPart())
+                .collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,80 @@
+package com.particlehealth.fhirstarter.output;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.r4.model.MedicationStatement;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ResourceWriterTest {
+
+    private static final FhirContext FHIR_CONTEXT = FhirContext.forR4();
+
+    @TempDir
+    Path directory;
+
+    private List<String> files() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.map(file -> file.getFileName().toString()).sorted().collect(Collectors.toList());
+        }
+    }
+
+    @Test
+    void aCommittedBundleIsMovedIntoPlace() throws IOException {
+        try (ResourceWriter writer = ResourceWriter.open(FHIR_CONTEXT, directory, "everything", OutputFormat.BUNDLE, false)) {
+            writer.write(new MedicationStatement().setId("m1"));
+            writer.write(new MedicationStatement().setId("m2"));
+            assertEquals(List.of("everything.json.tmp"), files());
+            writer.commit();
+        }
+        assertEquals(List.of("everything.json"), files());
+        String bundle = Files.readString(directory.resolve("everything.json"), StandardCharsets.UTF_8);
+        assertTrue(bundle.startsWith("{\"resourceType\":\"Bundle\""), bundle);
+        assertTrue(bundle.endsWith("]}"), bundle);
+    }
+
+    @Test
+    void closingWithoutCommitLeavesNoFile() throws IOException {
+        try (ResourceWriter writer = ResourceWriter.open(FHIR_CONTEXT, directory, "everything", OutputFormat.BUNDLE, false)) {
+            writer.write(new MedicationStatement().setId("m1"));
+        }
+        assertEquals(List.of(), files());
+    }
+
+    @Test
+    void aFailedWriteKeepsTheFileFromAnEarlierRun() throws IOException {
+        try (ResourceWriter writer = ResourceWriter.open(FHIR_CONTEXT, directory, "extract", OutputFormat.NDJSON, false)) {
+            writer.write(new MedicationStatement().setId("m1"));
+            writer.commit();
+        }
+        Path file = directory.resolve("extract.ndjson");
+        List<String> earlier = Files.readAllLines(file, StandardCharsets.UTF_8);
+
+        assertThrows(IllegalStateException.class, () -> {
+            try (ResourceWriter writer = ResourceWriter.open(FHIR_CONTEXT, directory, "extract", OutputFormat.NDJSON, false)) {
+                writer.write(new MedicationStatement().setId("m2"));
+                throw new IllegalStateException("page 2 failed");
+            }
+        });
+        assertEquals(List.of("extract.ndjson"), files());
+        assertEquals(earlier, Files.readAllLines(file, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void commitsOnlyOnce() throws IOException {
+        try (ResourceWriter writer = ResourceWriter.open(FHIR_CONTEXT, directory, "extract", OutputFormat.NDJSON, false)) {
+            writer.commit();
+            assertThrows(IllegalStateException.class, writer::commit);
+        }
+        assertEquals(List.of("extract.ndjson"), files());
+    }
+}
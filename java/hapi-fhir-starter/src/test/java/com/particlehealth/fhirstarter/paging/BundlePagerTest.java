@@ -0,0 +1,118 @@
+package com.particlehealth.fhirstarter.paging;
+
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.gclient.IQuery;
+import ca.uhn.fhir.rest.gclient.IUntypedQuery;
+import org.hl7.fhir.r4.model.Bundle;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Proxy;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BundlePagerTest {
+
+    /*
+        A client whose searches run fetch with the requested url. Every step of the fluent search API is the same proxy.
+     */
+    private static IGenericClient client(Function<String, Bundle> fetch) {
+        String[] url = new String[1];
+        return (IGenericClient) Proxy.newProxyInstance(BundlePagerTest.class.getClassLoader(),
+                new Class<?>[]{IGenericClient.class, IUntypedQuery.class, IQuery.class},
+                (self, method, args) -> {
+                    switch (method.getName()) {
+                        case "byUrl":
+                            url[0] = (String) args[0];
+                            return self;
+                        case "execute":
+                            return fetch.apply(url[0]);
+                        case "hashCode":
+                            return System.identityHashCode(self);
+                        case "equals":
+                            return self == args[0];
+                        case "toString":
+                            return "client";
+                        default:
+                            return self;
+                    }
+                });
+    }
+
+    private static Bundle page(String nextUrl) {
+        Bundle bundle = new Bundle();
+        if (nextUrl != null)
+            bundle.addLink().setRelation(Bundle.LINK_NEXT).setUrl(nextUrl);
+        return bundle;
+    }
+
+    @Test
+    void followsNextLinksInOrder() {
+        List<String> fetched = new ArrayList<>();
+        IGenericClient client = client(url -> {
+            fetched.add(url);
+            int number = Integer.parseInt(url.substring(url.lastIndexOf('=') + 1));
+            return page(number < 5 ? "page?n=" + (number + 1) : null);
+        });
+        assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+            try (BundlePager pager = new BundlePager(client, "page?n=1", 1)) {
+                int pages = 0;
+                while (pager.hasNext()) {
+                    assertNotNull(pager.next());
+                    pages++;
+                }
+                assertEquals(5, pages);
+                assertEquals(5, pager.getPageCount());
+            }
+        });
+        assertEquals(List.of("page?n=1", "page?n=2", "page?n=3", "page?n=4", "page?n=5"), fetched);
+    }
+
+    @Test
+    void aFailedRequestEndsThePagingAfterTheEarlierPages() {
+        IGenericClient client = client(url -> {
+            if (url.endsWith("2"))
+                throw new IllegalStateException("server down");
+            return page("page?n=2");
+        });
+        assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+            try (BundlePager pager = new BundlePager(client, "page?n=1")) {
+                assertTrue(pager.hasNext());
+                pager.next();
+                PageFetchException e = assertThrows(PageFetchException.class, pager::hasNext);
+                assertTrue(e.getCause() instanceof IllegalStateException);
+                assertFalse(pager.hasNext());
+            }
+        });
+    }
+
+    @Test
+    void anErrorInTheFetcherStillEndsThePaging() {
+        IGenericClient client = client(url -> {
+            if (url.endsWith("2"))
+                throw new StackOverflowError();
+            return page("page?n=2");
+        });
+        assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+            try (BundlePager pager = new BundlePager(client, "page?n=1")) {
+                pager.next();
+                PageFetchException e = assertThrows(PageFetchException.class, pager::next);
+                assertTrue(e.getCause() instanceof StackOverflowError);
+            }
+        });
+    }
+
+    @Test
+    void closingStopsTheFetcher() {
+        IGenericClient client = client(url -> page(url + "0"));
+        assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+            BundlePager pager = new BundlePager(client, "page?n=1", 1);
+            pager.next();
+            pager.close();
+            assertFalse(pager.hasNext());
+        });
+    }
+}
@@ -0,0 +1,103 @@
+package com.particlehealth.fhirstarter.pipeline;
+
+import ca.uhn.fhir.rest.client.exceptions.FhirClientConnectionException;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import ca.uhn.fhir.rest.server.exceptions.UnclassifiedServerFailureException;
+import com.particlehealth.fhirstarter.paging.PageFetchException;
+import org.junit.jupiter.api.Test;
+
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RetryPolicyTest {
+
+    private final RetryPolicy policy = new RetryPolicy(4, Duration.ofMillis(100), Duration.ofSeconds(1));
+
+    private static Throwable status(int code) {
+        return new UnclassifiedServerFailureException(code, "HTTP " + code);
+    }
+
+    private static Throwable connectionRefused() {
+        return new FhirClientConnectionException(new ConnectException("Connection refused"));
+    }
+
+    private static Throwable readTimeout() {
+        return new FhirClientConnectionException(new SocketTimeoutException("Read timed out"));
+    }
+
+    @Test
+    void downloadsAreRetriedOnThrottlingServerErrorsAndConnectionFailures() {
+        for (PipelineStage stage : new PipelineStage[]{PipelineStage.EVERYTHING, PipelineStage.EXTRACTS}) {
+            assertTrue(policy.shouldRetry(stage, status(429), 1));
+            assertTrue(policy.shouldRetry(stage, new InternalErrorException("down"), 1));
+            assertTrue(policy.shouldRetry(stage, status(503), 1));
+            assertTrue(policy.shouldRetry(stage, connectionRefused(), 1));
+            assertTrue(policy.shouldRetry(stage, readTimeout(), 1));
+            assertTrue(policy.shouldRetry(stage, new PageFetchException("page 3", status(502)), 1));
+            assertFalse(policy.shouldRetry(stage, new ResourceNotFoundException("gone"), 1));
+            assertFalse(policy.shouldRetry(stage, new IllegalStateException("bug"), 1));
+        }
+    }
+
+    @Test
+    void queryIsOnlyRetriedWhenTheConnectionCouldNotBeMade() {
+        assertTrue(policy.shouldRetry(PipelineStage.QUERY, connectionRefused(), 1));
+        assertTrue(policy.shouldRetry(PipelineStage.QUERY, new FhirClientConnectionException(new UnknownHostException("fhir.test")), 1));
+        assertFalse(policy.shouldRetry(PipelineStage.QUERY, readTimeout(), 1));
+        assertFalse(policy.shouldRetry(PipelineStage.QUERY, new InternalErrorException("down"), 1));
+        assertFalse(policy.shouldRetry(PipelineStage.QUERY, status(503), 1));
+        assertFalse(policy.shouldRetry(PipelineStage.QUERY, status(429), 1));
+    }
+
+    @Test
+    void registrationIsRetriedOnThrottlingAndWhenTheConnectionCouldNotBeMade() {
+        assertTrue(policy.shouldRetry(PipelineStage.REGISTER, status(429), 1));
+        assertTrue(policy.shouldRetry(PipelineStage.REGISTER, connectionRefused(), 1));
+        assertFalse(policy.shouldRetry(PipelineStage.REGISTER, readTimeout(), 1));
+        assertFalse(policy.shouldRetry(PipelineStage.REGISTER, status(500), 1));
+    }
+
+    @Test
+    void pollingAndErrorsAreNeverRetried() {
+        assertFalse(policy.shouldRetry(PipelineStage.POLL, connectionRefused(), 1));
+        assertFalse(policy.shouldRetry(PipelineStage.EVERYTHING, new StackOverflowError(), 1));
+    }
+
+    @Test
+    void stopsAfterMaxAttempts() {
+        assertTrue(policy.shouldRetry(PipelineStage.EVERYTHING, status(503), 3));
+        assertFalse(policy.shouldRetry(PipelineStage.EVERYTHING, status(503), 4));
+        assertFalse(new RetryPolicy(1, Duration.ofMillis(100), Duration.ofSeconds(1)).shouldRetry(PipelineStage.EVERYTHING, status(503), 1));
+        assertThrows(IllegalArgumentException.class, () -> new RetryPolicy(0, Duration.ofMillis(100), Duration.ofSeconds(1)));
+    }
+
+    @Test
+    void delayIsBelowTheGrowingCeiling() {
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(policy.delayMillis(status(503), 1) <= 100);
+            assertTrue(policy.delayMillis(status(503), 3) <= 400);
+            assertTrue(policy.delayMillis(status(503), 30) <= 1000);
+            assertTrue(policy.delayMillis(status(503), 1) >= 0);
+        }
+    }
+
+    @Test
+    void retryAfterIsALowerBoundBeyondTheMaximumDelay() {
+        BaseServerResponseException throttled = new UnclassifiedServerFailureException(429, "slow down");
+        throttled.addResponseHeader("retry-after", "5");
+        for (int i = 0; i < 100; i++) {
+            assertEquals(5000, policy.delayMillis(throttled, 1));
+            assertEquals(5000, policy.delayMillis(new PageFetchException("page 2", throttled), 4));
+        }
+
+        BaseServerResponseException shortWait = new UnclassifiedServerFailureException(503, "busy");
+        shortWait.addResponseHeader("Retry-After", "0");
+        assertTrue(policy.delayMillis(shortWait, 1) <= 100);
+    }
+}